@@ -9,14 +9,18 @@ import org.drjekyll.matomo.tracker.parameters.UniqueId;
 import org.drjekyll.matomo.tracker.parameters.UnixTimestamp;
 import org.drjekyll.matomo.tracker.parameters.VisitorId;
 
-import lombok.Builder;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
 import lombok.Value;
 
 /**
  * Describes the action that should be tracked by Matomo
  */
-@Builder
 @Value
+@AllArgsConstructor(access = AccessLevel.PACKAGE)
 public class Action {
 
   /**
@@ -493,8 +497,7 @@ public class Action {
    * Default is {@code false}
    */
   @TrackingParameter(name = "send_image")
-  @Builder.Default
-  Boolean sendImage = false;
+  Boolean sendImage;
 
   /**
    * If set to true, the request will be a Heartbeat request which will not track any new activity (such as a new visit,
@@ -513,4 +516,51 @@ public class Action {
   @TrackingParameter(name = "bots")
   Boolean bots;
 
+  /**
+   * The priority of the action within the tracker, it is not sent to Matomo. If not set, goal conversions, ecommerce
+   * interactions and actions with revenue have a high priority and heartbeats have a low priority.
+   */
+  ActionPriority priority;
+
+  /**
+   * The tracking parameters shared with other actions, e.g. of the same page load or visit. The parameters of this
+   * action take precedence over the ones of the template. See {@link ActionTemplate}
+   */
+  ActionTemplate template;
+
+  /**
+   * The presence bits of the first 64 tracking parameters in the order of their declaration, set by the builder
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @EqualsAndHashCode.Exclude
+  @ToString.Exclude
+  long presentParameters;
+
+  /**
+   * The presence bits of the tracking parameters after the first 64
+   */
+  @Getter(AccessLevel.PACKAGE)
+  @EqualsAndHashCode.Exclude
+  @ToString.Exclude
+  long morePresentParameters;
+
+  /**
+   * @return A new builder, {@code sendImage} is set to false
+   */
+  public static ActionBuilder builder() {
+    return new ActionBuilder();
+  }
+
+  /**
+   * Builds an {@link Action}. The setters are generated from the fields of the action. They record which tracking
+   * parameters are set, so encoding an action only visits its set parameters.
+   */
+  public static class ActionBuilder extends AbstractActionBuilder {
+
+    ActionBuilder() {
+      sendImage(false);
+    }
+
+  }
+
 }
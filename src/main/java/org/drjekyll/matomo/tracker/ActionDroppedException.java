@@ -0,0 +1,14 @@
+package org.drjekyll.matomo.tracker;
+
+/**
+ * The action was dropped without being sent, e.g. because the tracking queue is full
+ */
+public class ActionDroppedException extends RuntimeException {
+
+  private static final long serialVersionUID = 2814962273958151330L;
+
+  ActionDroppedException(String message) {
+    super(message);
+  }
+
+}
@@ -0,0 +1,16 @@
+package org.drjekyll.matomo.tracker;
+
+/**
+ * The action was sent, but the Matomo endpoint reported some actions of the bulk request as invalid without reporting
+ * which ones, e.g. for bulk requests without a token auth. The action may have been tracked or rejected. It is not sent
+ * again, as the tracked actions of the bulk request would be counted twice.
+ */
+public class ActionPossiblyRejectedException extends RuntimeException {
+
+  private static final long serialVersionUID = 4518067293215640953L;
+
+  ActionPossiblyRejectedException(String message) {
+    super(message);
+  }
+
+}
@@ -0,0 +1,39 @@
+package org.drjekyll.matomo.tracker;
+
+/**
+ * The importance of an action. If the tracking queue is full and {@link BackpressurePolicy#DROP_BY_PRIORITY} is used,
+ * actions with a lower priority are dropped first. With {@code priorityLanes}, each priority is queued and sent
+ * separately.
+ */
+public enum ActionPriority {
+
+  /**
+   * Heartbeat requests ({@code ping})
+   */
+  LOW,
+
+  /**
+   * All actions that are neither heartbeats nor conversions
+   */
+  NORMAL,
+
+  /**
+   * Goal conversions, ecommerce interactions and actions with revenue
+   */
+  HIGH;
+
+  static ActionPriority of(Action action) {
+    if (action.getPriority() != null) {
+      return action.getPriority();
+    }
+    if (action.getGoalId() != null || action.getEcommerceId() != null || action.getEcommerceItems() != null
+      || action.getRevenue() != null) {
+      return HIGH;
+    }
+    if (Boolean.TRUE.equals(action.getPing())) {
+      return LOW;
+    }
+    return NORMAL;
+  }
+
+}
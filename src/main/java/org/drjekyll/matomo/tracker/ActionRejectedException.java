@@ -0,0 +1,14 @@
+package org.drjekyll.matomo.tracker;
+
+/**
+ * The action was sent, but the Matomo endpoint reported it as invalid in the response of the bulk request
+ */
+public class ActionRejectedException extends RuntimeException {
+
+  private static final long serialVersionUID = -3349826107618244906L;
+
+  ActionRejectedException(String message) {
+    super(message);
+  }
+
+}
@@ -0,0 +1,14 @@
+package org.drjekyll.matomo.tracker;
+
+/**
+ * The action was not sent yet, but written to the spool. It will be sent later, even after a restart.
+ */
+public class ActionSpooledException extends RuntimeException {
+
+  private static final long serialVersionUID = -5719634487420975136L;
+
+  ActionSpooledException(String message) {
+    super(message);
+  }
+
+}
@@ -0,0 +1,104 @@
+package org.drjekyll.matomo.tracker;
+
+import java.io.Serializable;
+
+import javax.annotation.Nullable;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.ToString;
+
+/**
+ * The tracking parameters shared by several actions, e.g. the visitor ID, user agent, language, IP address and URL of
+ * a page load. The parameters are validated and encoded once when the template is created. An action that references
+ * the template with {@code Action.builder().template(...)} only encodes its own parameters, which are appended to the
+ * encoded parameters of the template. If both set the same parameter, the value of the action takes precedence.
+ *
+ * <p>A template is immutable, so it can be used by several threads at once. It is serializable and can be stored in a
+ * web session, e.g. to track all actions of a visit with the same visitor parameters.</p>
+ */
+@Getter(AccessLevel.PACKAGE)
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+@EqualsAndHashCode
+@ToString
+public final class ActionTemplate implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The encoded parameters, each starting with an ampersand
+   */
+  private final String query;
+
+  /**
+   * The site ID of the template, null if the actions or the configuration set it
+   */
+  @Nullable
+  private final Integer siteId;
+
+  /**
+   * The visitor ID or the user ID of the template to route the actions of the same visitor to the same endpoint
+   */
+  @Nullable
+  private final String routingKey;
+
+  /**
+   * Whether the encoded parameters contain a token auth, so the default token auth is not added
+   */
+  private final boolean tokenAuth;
+
+  /**
+   * Creates a template from the parameters of the given action. The priority of the action is ignored, as it is not a
+   * tracking parameter. If the action references a template itself, its parameters are included.
+   *
+   * @param action The action with the shared parameters
+   * @return The template to reference from the actions to be tracked
+   */
+  public static ActionTemplate of(@NonNull Action action) {
+    ActionTemplate template = action.getTemplate();
+    StringBuilder query = new StringBuilder();
+    if (template != null) {
+      query.append(template.query);
+    }
+    ActionEncoder.encode(action, query);
+    String routingKey = null;
+    if (action.getVisitorId() != null) {
+      routingKey = action.getVisitorId().toString();
+    } else if (action.getUserId() != null) {
+      routingKey = action.getUserId();
+    } else if (template != null) {
+      routingKey = template.routingKey;
+    }
+    return new ActionTemplate(
+      query.toString(),
+      siteId(action),
+      routingKey,
+      hasTokenAuth(action) || template != null && template.tokenAuth
+    );
+  }
+
+  /**
+   * @return The site ID of the action or of its template, null if neither sets it
+   */
+  @Nullable
+  static Integer siteId(Action action) {
+    if (action.getSiteId() != null || action.getTemplate() == null) {
+      return action.getSiteId();
+    }
+    return action.getTemplate().siteId;
+  }
+
+  /**
+   * @return Whether the action or its template sets a token auth
+   */
+  static boolean hasTokenAuth(Action action) {
+    if (action.getTokenAuth() != null && !action.getTokenAuth().trim().isEmpty()) {
+      return true;
+    }
+    return action.getTemplate() != null && action.getTemplate().tokenAuth;
+  }
+
+}
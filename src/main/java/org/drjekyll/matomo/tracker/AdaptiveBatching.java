@@ -0,0 +1,132 @@
+package org.drjekyll.matomo.tracker;
+
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Tunes the flush delay and the batch size of a sender from the outcomes of its bulk requests with an additive
+ * increase, multiplicative decrease (AIMD) controller:
+ *
+ * <ul>
+ *   <li>Transient failures (see {@link RetryScheduler#isRetryable(Throwable)}) halve the batch size and double the
+ *   delay, so an overloaded endpoint receives fewer and smaller bulk requests.</li>
+ *   <li>If the 99th percentile of the delivery latency (from queueing the oldest query of a batch until its bulk request
+ *   completed) exceeds the target, the delay is halved. If the round trip alone takes more than half of the target, the
+ *   batch size is halved as well.</li>
+ *   <li>Otherwise the batch size grows step by step. The delay grows if the batch was at least half full, so waiting
+ *   pays off with larger batches under load, and shrinks if it was not, so sparse actions are sent without needless
+ *   delay.</li>
+ * </ul>
+ *
+ * <p>If adaptive batching is disabled, the configured delay and maximum batch size are used.</p>
+ */
+@Slf4j
+class AdaptiveBatching {
+
+  private static final int SAMPLES = 128;
+
+  private static final int STEPS = 32;
+
+  private final boolean enabled;
+
+  private final long targetLatencyNanos;
+
+  private final long minDelayNanos;
+
+  private final long maxDelayNanos;
+
+  private final long delayStepNanos;
+
+  private final int minBatchSize;
+
+  private final int maxBatchSize;
+
+  private final int batchSizeStep;
+
+  private final long[] latencies = new long[SAMPLES];
+
+  private int samples;
+
+  private int position;
+
+  private volatile long delayNanos;
+
+  private volatile int batchSize;
+
+  AdaptiveBatching(TrackerConfiguration trackerConfiguration) {
+    enabled = trackerConfiguration.isAdaptiveBatching();
+    targetLatencyNanos = trackerConfiguration.getAdaptiveTargetLatency().toNanos();
+    minDelayNanos = trackerConfiguration.getAdaptiveMinDelay().toNanos();
+    maxDelayNanos = Math.max(minDelayNanos, trackerConfiguration.getAdaptiveMaxDelay().toNanos());
+    delayStepNanos = Math.max(1L, (maxDelayNanos - minDelayNanos) / STEPS);
+    maxBatchSize = Math.max(1, trackerConfiguration.getMaxBatchSize());
+    minBatchSize = Math.max(1, Math.min(trackerConfiguration.getAdaptiveMinBatchSize(), maxBatchSize));
+    batchSizeStep = Math.max(1, (maxBatchSize - minBatchSize) / STEPS);
+    long delay = trackerConfiguration.getDelay().toNanos();
+    delayNanos = enabled ? Math.max(minDelayNanos, Math.min(maxDelayNanos, delay)) : delay;
+    batchSize = maxBatchSize;
+  }
+
+  long getDelayMillis() {
+    return delayNanos / 1000000L;
+  }
+
+  int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * Records the outcome of a bulk request
+   *
+   * @param count           The number of queries in the bulk request
+   * @param roundTripNanos  The duration of the bulk request
+   * @param latencyNanos    The duration since the oldest query of the bulk request was queued
+   * @param throwable       The failure or null if the request succeeded
+   */
+  synchronized void record(int count, long roundTripNanos, long latencyNanos, @Nullable Throwable throwable) {
+    if (!enabled) {
+      return;
+    }
+    if (throwable != null) {
+      if (RetryScheduler.isRetryable(RetryScheduler.unwrap(throwable))) {
+        decreaseBatchSize();
+        delayNanos = Math.min(maxDelayNanos, Math.max(delayNanos, 1L) * 2L);
+        log.debug("Bulk request failed, adapted delay to {} ms and batch size to {}", getDelayMillis(), batchSize);
+      }
+      return;
+    }
+    latencies[position] = latencyNanos;
+    position = (position + 1) % SAMPLES;
+    samples = Math.min(samples + 1, SAMPLES);
+    if (percentile99() > targetLatencyNanos) {
+      delayNanos = Math.max(minDelayNanos, delayNanos / 2L);
+      if (roundTripNanos > targetLatencyNanos / 2L) {
+        decreaseBatchSize();
+      }
+      log.debug("Delivery latency exceeds target, adapted delay to {} ms and batch size to {}", getDelayMillis(),
+        batchSize
+      );
+    } else {
+      batchSize = Math.min(maxBatchSize, batchSize + batchSizeStep);
+      if (2 * count >= batchSize) {
+        delayNanos = Math.min(maxDelayNanos, delayNanos + delayStepNanos);
+      } else {
+        delayNanos = Math.max(minDelayNanos, delayNanos - delayStepNanos);
+      }
+    }
+  }
+
+  private void decreaseBatchSize() {
+    batchSize = Math.max(minBatchSize, batchSize / 2);
+  }
+
+  private long percentile99() {
+    long[] sorted = Arrays.copyOf(latencies, samples);
+    Arrays.sort(sorted);
+    return sorted[(int) Math.ceil(samples * 0.99) - 1];
+  }
+
+}
@@ -0,0 +1,40 @@
+package org.drjekyll.matomo.tracker;
+
+/**
+ * Defines what happens to a new action if the tracking queue is full. Dropped actions are counted (see
+ * {@link MatomoTracker#getDroppedActions()}) and their futures complete exceptionally with an
+ * {@link ActionDroppedException}.
+ */
+public enum BackpressurePolicy {
+
+  /**
+   * Blocks the tracking thread until there is enough space in the queue or the {@code backpressureTimeout} elapsed.
+   * The action is dropped if the timeout elapsed.
+   */
+  BLOCK,
+
+  /**
+   * Drops the new action
+   */
+  DROP_NEWEST,
+
+  /**
+   * Drops the oldest queued actions until the new action fits into the queue
+   */
+  DROP_OLDEST,
+
+  /**
+   * Drops the oldest queued actions with the lowest {@link ActionPriority} below the priority of the new action. Drops
+   * the new action if there is no such action. The actions are queued by priority, so the actions of a visitor are
+   * only sent in order within the same priority.
+   */
+  DROP_BY_PRIORITY,
+
+  /**
+   * Moves the queued actions to the spool. Their futures complete exceptionally with an
+   * {@link ActionSpooledException}. Drops the new action if no spool directory is configured. The queue is written to
+   * the spool by the tracking thread, so {@link MatomoTracker#track(Action)} blocks on disk I/O while it is full.
+   */
+  SPILL
+
+}
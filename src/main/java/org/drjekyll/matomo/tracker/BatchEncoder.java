@@ -0,0 +1,108 @@
+package org.drjekyll.matomo.tracker;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+
+/**
+ * Encodes the actions of queries that were queued with deferred encoding when they are flushed. Batches larger than
+ * the threshold are split into fork-join subtasks. Each subtask encodes into the query buffer of its worker thread (see
+ * {@link QueryCreator}), so the actions are encoded in parallel without contention.
+ */
+class BatchEncoder {
+
+  private final QueryCreator queryCreator;
+
+  private final int threshold;
+
+  private final ForkJoinPool pool;
+
+  /**
+   * The average size of the encoded queries, used as the weight of queries that are not encoded yet
+   */
+  private volatile int estimatedSize = 256;
+
+  BatchEncoder(TrackerConfiguration trackerConfiguration, QueryCreator queryCreator, Executor executor) {
+    this.queryCreator = queryCreator;
+    threshold = Math.max(1, trackerConfiguration.getParallelEncodingThreshold());
+    pool = executor instanceof ForkJoinPool ? (ForkJoinPool) executor : ForkJoinPool.commonPool();
+  }
+
+  int getEstimatedSize() {
+    return estimatedSize;
+  }
+
+  /**
+   * Encodes the queries that are not encoded yet
+   *
+   * @param failed Receives the queries whose action could not be encoded and the reason, possibly on another thread
+   */
+  void encode(List<QueuedQuery> queries, BiConsumer<QueuedQuery, RuntimeException> failed) {
+    if (queries.isEmpty()) {
+      return;
+    }
+    EncodingTask task = new EncodingTask(queries, 0, queries.size(), failed);
+    if (queries.size() > threshold) {
+      pool.invoke(task);
+    } else {
+      task.compute();
+    }
+    long bytes = 0L;
+    int encoded = 0;
+    for (QueuedQuery queued : queries) {
+      if (queued.isEncoded()) {
+        bytes += queued.size();
+        encoded++;
+      }
+    }
+    if (encoded > 0) {
+      estimatedSize = (int) ((estimatedSize + bytes / encoded) / 2L);
+    }
+  }
+
+  private final class EncodingTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient List<QueuedQuery> queries;
+
+    private final int from;
+
+    private final int to;
+
+    private final transient BiConsumer<QueuedQuery, RuntimeException> failed;
+
+    private EncodingTask(
+      List<QueuedQuery> queries, int from, int to, BiConsumer<QueuedQuery, RuntimeException> failed
+    ) {
+      this.queries = queries;
+      this.from = from;
+      this.to = to;
+      this.failed = failed;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > threshold) {
+        int middle = (from + to) >>> 1;
+        invokeAll(
+          new EncodingTask(queries, from, middle, failed),
+          new EncodingTask(queries, middle, to, failed)
+        );
+        return;
+      }
+      for (int i = from; i < to; i++) {
+        QueuedQuery queued = queries.get(i);
+        try {
+          queued.encode(queryCreator);
+        } catch (RuntimeException e) {
+          failed.accept(queued, e);
+        }
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,98 @@
+package org.drjekyll.matomo.tracker;
+
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+
+import javax.annotation.Nullable;
+
+/**
+ * A bounded multi-producer queue that never blocks. A slot is reserved with a compare-and-set on the size counter
+ * before the element is linked into a {@link ConcurrentLinkedQueue}, so producers neither wait for each other nor for
+ * the consumer draining the queue. Additionally, the total weight of the queued elements (e.g. their size in bytes) is
+ * tracked.
+ *
+ * @param <E> the type of the queued elements
+ */
+class BoundedQueue<E> {
+
+  private final Queue<E> elements = new ConcurrentLinkedQueue<>();
+
+  private final AtomicInteger size = new AtomicInteger();
+
+  private final AtomicLong weight = new AtomicLong();
+
+  private final int capacity;
+
+  private final ToIntFunction<? super E> weigher;
+
+  BoundedQueue(int capacity) {
+    this(capacity, element -> 1);
+  }
+
+  BoundedQueue(int capacity, ToIntFunction<? super E> weigher) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive");
+    }
+    this.capacity = capacity;
+    this.weigher = weigher;
+  }
+
+  boolean offer(E element) {
+    int current;
+    do {
+      current = size.get();
+      if (current >= capacity) {
+        return false;
+      }
+    } while (!size.compareAndSet(current, current + 1));
+    weight.addAndGet(weigher.applyAsInt(element));
+    elements.offer(element);
+    return true;
+  }
+
+  int drainTo(Collection<? super E> target, int maxElements) {
+    int drained = 0;
+    long drainedWeight = 0L;
+    E element;
+    while (drained < maxElements && (element = elements.poll()) != null) {
+      target.add(element);
+      drainedWeight += weigher.applyAsInt(element);
+      drained++;
+    }
+    weight.addAndGet(-drainedWeight);
+    size.addAndGet(-drained);
+    return drained;
+  }
+
+  /**
+   * Removes the head of the queue
+   *
+   * @return the removed element or null if the queue is empty
+   */
+  @Nullable
+  E poll() {
+    E element = elements.poll();
+    if (element != null) {
+      weight.addAndGet(-weigher.applyAsInt(element));
+      size.decrementAndGet();
+    }
+    return element;
+  }
+
+  int size() {
+    return size.get();
+  }
+
+  long weight() {
+    return weight.get();
+  }
+
+  boolean isEmpty() {
+    return size.get() == 0;
+  }
+
+}
@@ -0,0 +1,270 @@
+package org.drjekyll.matomo.tracker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.annotation.Nullable;
+
+/**
+ * The body of a bulk request. The payload is never built in memory as a whole. The envelope and the queries are
+ * written piece by piece through a small buffer, either directly into an output stream or as a sequence of chunks.
+ * Payloads are compressed on the fly if configured and large enough.
+ */
+class BulkPayload {
+
+  static final int BUFFER_SIZE = 8192;
+
+  private static final byte[] PREFIX = "{\"requests\":[".getBytes(StandardCharsets.US_ASCII);
+
+  private final Collection<String> queries;
+
+  private final byte[] suffix;
+
+  private final long length;
+
+  @Nullable
+  private final Compression compression;
+
+  private BulkPayload(Collection<String> queries, byte[] suffix, long length, @Nullable Compression compression) {
+    this.queries = queries;
+    this.suffix = suffix;
+    this.length = length;
+    this.compression = compression;
+  }
+
+  static BulkPayload create(Collection<String> queries, TrackerConfiguration trackerConfiguration) {
+    StringBuilder suffix = new StringBuilder("]");
+    if (trackerConfiguration.getDefaultTokenAuth() != null) {
+      suffix.append(",\"token_auth\":\"").append(trackerConfiguration.getDefaultTokenAuth()).append('"');
+    }
+    suffix.append('}');
+    byte[] suffixBytes = suffix.toString().getBytes(StandardCharsets.UTF_8);
+    long length = PREFIX.length + suffixBytes.length + Math.max(0, queries.size() - 1);
+    for (String query : queries) {
+      length += utf8Length(query) + 3L;
+    }
+    Compression compression = trackerConfiguration.getCompression();
+    if (compression == Compression.NONE || length < trackerConfiguration.getCompressionThreshold()) {
+      return new BulkPayload(queries, suffixBytes, length, null);
+    }
+    return new BulkPayload(queries, suffixBytes, length, compression);
+  }
+
+  /**
+   * @return the uncompressed size of the payload in bytes
+   */
+  long getLength() {
+    return length;
+  }
+
+  boolean isCompressed() {
+    return compression != null;
+  }
+
+  @Nullable
+  String getContentEncoding() {
+    return compression == null ? null : compression.getContentEncoding();
+  }
+
+  /**
+   * Writes the (compressed) payload into the given stream. The stream will not be closed.
+   */
+  void writeTo(OutputStream outputStream) throws IOException {
+    OutputStream target = compression == null ? outputStream : compression.wrap(new NonClosingOutputStream(
+      outputStream));
+    Writer writer = new Writer(target);
+    writer.write(PREFIX);
+    Iterator<String> iterator = queries.iterator();
+    while (iterator.hasNext()) {
+      writer.writeQuery(iterator.next(), iterator.hasNext());
+    }
+    writer.write(suffix);
+    writer.flush();
+    if (compression != null) {
+      target.close();
+    }
+  }
+
+  /**
+   * Produces the (compressed) payload lazily as a sequence of chunks of roughly {@link #BUFFER_SIZE} bytes, e.g. to be
+   * published as a request body one chunk after another.
+   */
+  Iterable<byte[]> chunks() {
+    return ChunkIterator::new;
+  }
+
+  private static long utf8Length(CharSequence value) {
+    long utf8Length = 0L;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        utf8Length++;
+      } else if (c < 0x800) {
+        utf8Length += 2L;
+      } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+        && Character.isLowSurrogate(value.charAt(i + 1))) {
+        utf8Length += 4L;
+        i++;
+      } else if (Character.isSurrogate(c)) {
+        // malformed surrogates are replaced with '?'
+        utf8Length++;
+      } else {
+        utf8Length += 3L;
+      }
+    }
+    return utf8Length;
+  }
+
+  /**
+   * Collects the bytes in a reusable buffer. URL encoded queries consist of ASCII characters only, so they are copied
+   * char by char without creating an intermediate byte array.
+   */
+  private static final class Writer {
+
+    private final OutputStream outputStream;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private int position;
+
+    private Writer(OutputStream outputStream) {
+      this.outputStream = outputStream;
+    }
+
+    private void writeQuery(String query, boolean hasNext) throws IOException {
+      write((byte) '"');
+      write((byte) '?');
+      for (int i = 0; i < query.length(); i++) {
+        char c = query.charAt(i);
+        if (c >= 0x80) {
+          write(query.substring(i).getBytes(StandardCharsets.UTF_8));
+          break;
+        }
+        write((byte) c);
+      }
+      write((byte) '"');
+      if (hasNext) {
+        write((byte) ',');
+      }
+    }
+
+    private void write(byte b) throws IOException {
+      if (position == buffer.length) {
+        flush();
+      }
+      buffer[position++] = b;
+    }
+
+    private void write(byte[] bytes) throws IOException {
+      for (byte b : bytes) {
+        write(b);
+      }
+    }
+
+    private void flush() throws IOException {
+      outputStream.write(buffer, 0, position);
+      position = 0;
+    }
+
+  }
+
+  private final class ChunkIterator implements Iterator<byte[]> {
+
+    private final ByteArrayOutputStream chunk = new ByteArrayOutputStream(BUFFER_SIZE + 512);
+
+    private final OutputStream target;
+
+    private final Writer writer;
+
+    private final Iterator<String> iterator = queries.iterator();
+
+    private boolean prefixWritten;
+
+    private boolean finished;
+
+    private ChunkIterator() {
+      try {
+        target = compression == null ? chunk : compression.wrap(chunk);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      writer = new Writer(target);
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !finished;
+    }
+
+    @Override
+    public byte[] next() {
+      if (finished) {
+        throw new NoSuchElementException();
+      }
+      try {
+        if (!prefixWritten) {
+          writer.write(PREFIX);
+          prefixWritten = true;
+        }
+        while (chunk.size() < BUFFER_SIZE && iterator.hasNext()) {
+          writer.writeQuery(iterator.next(), iterator.hasNext());
+          if (writer.position >= BUFFER_SIZE / 2) {
+            writer.flush();
+          }
+        }
+        if (!iterator.hasNext()) {
+          writer.write(suffix);
+          writer.flush();
+          target.close();
+          finished = true;
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      byte[] bytes = chunk.toByteArray();
+      chunk.reset();
+      return bytes;
+    }
+
+  }
+
+  /**
+   * Allows to finish a compression stream without closing the connection's output stream
+   */
+  private static final class NonClosingOutputStream extends OutputStream {
+
+    private final OutputStream outputStream;
+
+    private NonClosingOutputStream(OutputStream outputStream) {
+      this.outputStream = outputStream;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      outputStream.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      outputStream.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      outputStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      outputStream.flush();
+    }
+
+  }
+
+}
@@ -0,0 +1,180 @@
+package org.drjekyll.matomo.tracker;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+/**
+ * The outcome of a bulk request as reported by Matomo, e.g.
+ * <code>{"status":"success","tracked":2,"invalid":1,"invalid_indices":[1]}</code>. Matomo only reports the indices of
+ * the invalid queries for authenticated bulk requests.
+ */
+final class BulkResponse {
+
+  /**
+   * The response of an endpoint that did not report any counts, e.g. an empty response
+   */
+  static final BulkResponse UNKNOWN = new BulkResponse(-1, -1, null);
+
+  private static final byte[] TRACKED = "tracked".getBytes(StandardCharsets.US_ASCII);
+
+  private static final byte[] INVALID = "invalid".getBytes(StandardCharsets.US_ASCII);
+
+  private static final byte[] INVALID_INDICES = "invalid_indices".getBytes(StandardCharsets.US_ASCII);
+
+  private final int tracked;
+
+  private final int invalid;
+
+  /**
+   * Sorted ascending, null if unknown
+   */
+  @Nullable
+  private final int[] invalidIndices;
+
+  private BulkResponse(int tracked, int invalid, @Nullable int[] invalidIndices) {
+    this.tracked = tracked;
+    this.invalid = invalid;
+    this.invalidIndices = invalidIndices;
+  }
+
+  /**
+   * @return the number of tracked queries or -1 if unknown
+   */
+  int getTracked() {
+    return tracked;
+  }
+
+  /**
+   * @return the number of invalid queries or -1 if unknown
+   */
+  int getInvalid() {
+    return invalid;
+  }
+
+  /**
+   * @return whether the response reported which queries are invalid
+   */
+  boolean hasInvalidIndices() {
+    return invalidIndices != null;
+  }
+
+  /**
+   * @param index The index of the query in the bulk request
+   * @return true if the response reported the query as invalid
+   */
+  boolean isInvalid(int index) {
+    return invalidIndices != null && Arrays.binarySearch(invalidIndices, index) >= 0;
+  }
+
+  /**
+   * Extracts the counts and the invalid indices from the JSON response body without building a document tree. Other
+   * members are skipped. A body that is no JSON object, e.g. the tracking GIF, results in {@link #UNKNOWN}.
+   *
+   * @param body   The response body
+   * @param length The number of bytes of the body
+   */
+  static BulkResponse parse(byte[] body, int length) {
+    int tracked = -1;
+    int invalid = -1;
+    int[] invalidIndices = null;
+    int position = skipWhitespace(body, 0, length);
+    if (position >= length || body[position] != '{') {
+      return UNKNOWN;
+    }
+    while (position < length) {
+      if (body[position] != '"') {
+        position++;
+        continue;
+      }
+      int keyStart = position + 1;
+      int keyEnd = endOfString(body, keyStart, length);
+      position = skipWhitespace(body, keyEnd + 1, length);
+      if (position >= length || body[position] != ':') {
+        // A string value, not a key
+        continue;
+      }
+      position = skipWhitespace(body, position + 1, length);
+      if (equals(body, keyStart, keyEnd, TRACKED)) {
+        tracked = parseInt(body, position, length);
+      } else if (equals(body, keyStart, keyEnd, INVALID)) {
+        invalid = parseInt(body, position, length);
+      } else if (equals(body, keyStart, keyEnd, INVALID_INDICES) && position < length && body[position] == '[') {
+        invalidIndices = new int[8];
+        int count = 0;
+        position++;
+        while (position < length && body[position] != ']') {
+          if (isDigit(body[position])) {
+            if (count == invalidIndices.length) {
+              invalidIndices = Arrays.copyOf(invalidIndices, count * 2);
+            }
+            invalidIndices[count++] = parseInt(body, position, length);
+            while (position < length && isDigit(body[position])) {
+              position++;
+            }
+          } else {
+            position++;
+          }
+        }
+        invalidIndices = Arrays.copyOf(invalidIndices, count);
+        Arrays.sort(invalidIndices);
+      }
+    }
+    if (tracked < 0 && invalid < 0 && invalidIndices == null) {
+      return UNKNOWN;
+    }
+    return new BulkResponse(tracked, invalid, invalidIndices);
+  }
+
+  private static int skipWhitespace(byte[] body, int position, int length) {
+    int current = position;
+    while (current < length && (body[current] == ' ' || body[current] == '\n' || body[current] == '\r'
+      || body[current] == '\t')) {
+      current++;
+    }
+    return current;
+  }
+
+  /**
+   * @return the position of the closing quote or the length if the string is not terminated
+   */
+  private static int endOfString(byte[] body, int position, int length) {
+    int current = position;
+    while (current < length && body[current] != '"') {
+      current += body[current] == '\\' ? 2 : 1;
+    }
+    return Math.min(current, length);
+  }
+
+  private static boolean equals(byte[] body, int start, int end, byte[] key) {
+    if (end - start != key.length) {
+      return false;
+    }
+    for (int i = 0; i < key.length; i++) {
+      if (body[start + i] != key[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the non-negative integer at the position or -1 if there is none
+   */
+  private static int parseInt(byte[] body, int position, int length) {
+    if (position >= length || !isDigit(body[position])) {
+      return -1;
+    }
+    long value = 0L;
+    for (int current = position; current < length && isDigit(body[current]); current++) {
+      value = Math.min(Integer.MAX_VALUE, value * 10L + body[current] - '0');
+    }
+    return (int) value;
+  }
+
+  private static boolean isDigit(byte b) {
+    return b >= '0' && b <= '9';
+  }
+
+}
@@ -0,0 +1,158 @@
+package org.drjekyll.matomo.tracker;
+
+import java.util.function.LongSupplier;
+
+import javax.annotation.Nullable;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Stops sending bulk requests to an endpoint that fails too often. The breaker records the outcomes of the last bulk
+ * requests in a sliding window. If the failure rate reaches the threshold, the breaker opens and bulk requests fail
+ * immediately. After the open duration, a single probe request is allowed (half-open). If it succeeds, the breaker
+ * closes again, otherwise it stays open for another period.
+ *
+ * <p>Only transient failures (see {@link RetryScheduler#isRetryable(Throwable)}) count as failures. An endpoint that
+ * rejects a bulk request is available.</p>
+ */
+@Slf4j
+class CircuitBreaker {
+
+  enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final boolean enabled;
+
+  private final boolean[] window;
+
+  private final double failureRate;
+
+  private final long openDurationNanos;
+
+  private final LongSupplier nanoClock;
+
+  private State state = State.CLOSED;
+
+  private int position;
+
+  private int calls;
+
+  private int failures;
+
+  private long openedAt;
+
+  private boolean probing;
+
+  CircuitBreaker(TrackerConfiguration trackerConfiguration) {
+    this(trackerConfiguration, System::nanoTime);
+  }
+
+  CircuitBreaker(TrackerConfiguration trackerConfiguration, LongSupplier nanoClock) {
+    enabled = trackerConfiguration.isCircuitBreaker();
+    window = new boolean[Math.max(1, trackerConfiguration.getCircuitBreakerWindowSize())];
+    failureRate = trackerConfiguration.getCircuitBreakerFailureRate();
+    openDurationNanos = trackerConfiguration.getCircuitBreakerOpenDuration().toNanos();
+    this.nanoClock = nanoClock;
+  }
+
+  /**
+   * Asks for permission to send a bulk request
+   *
+   * @return {@link State#CLOSED} if the request may be sent, {@link State#HALF_OPEN} if a single probe request may be
+   * sent and {@link State#OPEN} if no request must be sent
+   */
+  synchronized State acquire() {
+    if (!enabled || state == State.CLOSED) {
+      return State.CLOSED;
+    }
+    if (state == State.OPEN && nanoClock.getAsLong() - openedAt >= openDurationNanos) {
+      log.debug("Circuit breaker is half-open, sending probe request");
+      state = State.HALF_OPEN;
+      probing = false;
+    }
+    if (state == State.HALF_OPEN && !probing) {
+      probing = true;
+      return State.HALF_OPEN;
+    }
+    return State.OPEN;
+  }
+
+  /**
+   * Allows another probe request if the permission to send one was not used
+   */
+  synchronized void cancelProbe() {
+    probing = false;
+  }
+
+  /**
+   * @return the nanoseconds until the breaker lets a probe request through. The open duration while a probe request is
+   * in flight, as the breaker opens again if it fails. 0 if the breaker is closed.
+   */
+  synchronized long getRemainingOpenNanos() {
+    if (state == State.OPEN) {
+      return Math.max(0L, openDurationNanos - (nanoClock.getAsLong() - openedAt));
+    }
+    return state == State.HALF_OPEN && probing ? openDurationNanos : 0L;
+  }
+
+  synchronized boolean isClosed() {
+    return !enabled || state == State.CLOSED;
+  }
+
+  /**
+   * Records the outcome of a bulk request
+   *
+   * @param throwable The failure or null if the request succeeded
+   */
+  synchronized void record(@Nullable Throwable throwable) {
+    if (!enabled) {
+      return;
+    }
+    boolean failed = throwable != null && RetryScheduler.isRetryable(RetryScheduler.unwrap(throwable));
+    if (state == State.HALF_OPEN) {
+      if (failed) {
+        open();
+      } else {
+        log.info("Tracking endpoint is available again, closing circuit breaker");
+        close();
+      }
+    } else if (state == State.CLOSED) {
+      recordInWindow(failed);
+      if (calls == window.length && failures >= failureRate * calls) {
+        log.warn("{} of the last {} bulk requests failed, opening circuit breaker", failures, calls);
+        open();
+      }
+    }
+  }
+
+  private void recordInWindow(boolean failed) {
+    if (calls == window.length) {
+      if (window[position]) {
+        failures--;
+      }
+    } else {
+      calls++;
+    }
+    window[position] = failed;
+    if (failed) {
+      failures++;
+    }
+    position = (position + 1) % window.length;
+  }
+
+  private void open() {
+    state = State.OPEN;
+    openedAt = nanoClock.getAsLong();
+    probing = false;
+  }
+
+  private void close() {
+    state = State.CLOSED;
+    probing = false;
+    position = 0;
+    calls = 0;
+    failures = 0;
+  }
+
+}
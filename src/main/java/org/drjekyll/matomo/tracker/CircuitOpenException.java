@@ -0,0 +1,14 @@
+package org.drjekyll.matomo.tracker;
+
+/**
+ * The bulk request was not sent, because the circuit breaker considers the tracking endpoint unavailable
+ */
+public class CircuitOpenException extends RuntimeException {
+
+  private static final long serialVersionUID = -3190432722569839126L;
+
+  CircuitOpenException(String message) {
+    super(message);
+  }
+
+}
@@ -0,0 +1,24 @@
+package org.drjekyll.matomo.tracker;
+
+/**
+ * Defines what happens to the queued queries while the circuit breaker is open
+ */
+public enum CircuitOpenPolicy {
+
+  /**
+   * Keeps the queries in memory until the endpoint is available again. Their futures complete once they were sent.
+   */
+  KEEP,
+
+  /**
+   * Drops the queries. Their futures complete exceptionally with an {@link ActionDroppedException}.
+   */
+  DROP,
+
+  /**
+   * Moves the queries to the spool. Their futures complete exceptionally with a {@link CircuitOpenException}. Keeps them
+   * in memory if no spool directory is configured.
+   */
+  SPOOL
+
+}
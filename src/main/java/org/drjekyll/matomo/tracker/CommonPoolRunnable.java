@@ -1,16 +1,20 @@
 package org.drjekyll.matomo.tracker;
 
 import java.util.concurrent.Executor;
-import java.util.concurrent.ForkJoinPool;
 
-import lombok.RequiredArgsConstructor;
-
-@RequiredArgsConstructor
+/**
+ * Hands the command over from the scheduler thread to the executor, so the single scheduler thread never blocks
+ */
 class CommonPoolRunnable implements Runnable {
 
   private final Runnable command;
 
-  private final Executor executor = ForkJoinPool.commonPool();
+  private final Executor executor;
+
+  CommonPoolRunnable(Runnable command, Executor executor) {
+    this.command = command;
+    this.executor = executor;
+  }
 
   @Override
   public void run() {
@@ -0,0 +1,49 @@
+package org.drjekyll.matomo.tracker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nullable;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * The compression of the bulk request payloads. The Matomo server (or a reverse proxy in front of it) must accept
+ * compressed request bodies.
+ */
+@RequiredArgsConstructor
+public enum Compression {
+
+  /**
+   * Sends the payload uncompressed
+   */
+  NONE(null),
+
+  /**
+   * Compresses the payload with gzip and sets the header {@code Content-Encoding: gzip}
+   */
+  GZIP("gzip"),
+
+  /**
+   * Compresses the payload with deflate (zlib format) and sets the header {@code Content-Encoding: deflate}
+   */
+  DEFLATE("deflate");
+
+  @Getter
+  @Nullable
+  private final String contentEncoding;
+
+  OutputStream wrap(OutputStream outputStream) throws IOException {
+    if (this == GZIP) {
+      return new GZIPOutputStream(outputStream);
+    }
+    if (this == DEFLATE) {
+      return new DeflaterOutputStream(outputStream);
+    }
+    return outputStream;
+  }
+
+}
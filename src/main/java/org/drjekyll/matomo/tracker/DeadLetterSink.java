@@ -0,0 +1,20 @@
+package org.drjekyll.matomo.tracker;
+
+/**
+ * Receives the queries that the Matomo endpoint rejected, so they can be inspected or replayed later. The sink is
+ * called by the threads sending the bulk requests and must be thread-safe.
+ */
+@FunctionalInterface
+public interface DeadLetterSink {
+
+  /**
+   * @param query  The rejected URL encoded query without a leading question mark, e.g. {@code rec=1&idsite=1}. The
+   *               bulk request prepends the question mark when it sends the query. The {@code token_auth} parameter
+   *               is removed, so the secret token does not end up in logs or files. It has to be added again to
+   *               replay a query that requires authentication.
+   * @param reason The failure the endpoint responded with, e.g. a {@link TrackingFailedException} or an
+   *               {@link ActionRejectedException}
+   */
+  void accept(String query, Throwable reason);
+
+}
@@ -1,21 +1,44 @@
 package org.drjekyll.matomo.tracker;
 
 import java.util.concurrent.Executor;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 
-import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 
-@RequiredArgsConstructor
+@Slf4j
 class DelayedExecutor implements Executor {
 
-  private final ScheduledThreadPoolExecutor scheduledThreadPoolExecutor;
+  private final ScheduledExecutorService scheduledExecutorService;
 
-  private final long delayInMillis;
+  private final Executor executor;
+
+  private final LongSupplier delayInMillis;
+
+  /**
+   * @param executor      Executes the commands after the delay
+   * @param delayInMillis Supplies the delay of each execution, e.g. an adapted one
+   */
+  DelayedExecutor(ScheduledExecutorService scheduledExecutorService, Executor executor, LongSupplier delayInMillis) {
+    this.scheduledExecutorService = scheduledExecutorService;
+    this.executor = executor;
+    this.delayInMillis = delayInMillis;
+  }
 
   @Override
   public void execute(Runnable command) {
-    scheduledThreadPoolExecutor.schedule(new CommonPoolRunnable(command), delayInMillis, TimeUnit.MILLISECONDS);
+    try {
+      scheduledExecutorService.schedule(
+        new CommonPoolRunnable(command, executor),
+        delayInMillis.getAsLong(),
+        TimeUnit.MILLISECONDS
+      );
+    } catch (RejectedExecutionException e) {
+      // The scheduler was shut down when the tracker was closed, the remaining actions were handed over to the fallback
+      log.debug("Could not schedule delayed execution", e);
+    }
   }
 
 }
@@ -0,0 +1,62 @@
+package org.drjekyll.matomo.tracker;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A single Matomo Tracking HTTP API endpoint. Keeps track of its availability by observing the outcomes of the bulk
+ * requests and probes sent to it.
+ */
+@Slf4j
+class Endpoint implements HttpSender {
+
+  private final URI uri;
+
+  private final HttpSender httpSender;
+
+  private volatile boolean available = true;
+
+  Endpoint(URI uri, HttpSender httpSender) {
+    this.uri = uri;
+    this.httpSender = httpSender;
+  }
+
+  @Override
+  public CompletableFuture<BulkResponse> send(Collection<String> queries) {
+    return httpSender.send(queries).whenComplete((result, throwable) -> {
+      if (throwable == null) {
+        available = true;
+      } else if (available && RetryScheduler.isRetryable(RetryScheduler.unwrap(throwable))) {
+        log.warn("Tracking endpoint {} is unavailable", uri);
+        available = false;
+      }
+    });
+  }
+
+  @Override
+  public void warmUp() {
+    httpSender.warmUp();
+  }
+
+  @Override
+  public boolean probe() {
+    boolean responded = httpSender.probe();
+    if (responded && !available) {
+      log.info("Tracking endpoint {} is available again", uri);
+    }
+    available = responded;
+    return responded;
+  }
+
+  URI getUri() {
+    return uri;
+  }
+
+  boolean isAvailable() {
+    return available;
+  }
+
+}
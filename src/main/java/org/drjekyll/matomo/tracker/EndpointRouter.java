@@ -0,0 +1,157 @@
+package org.drjekyll.matomo.tracker;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Chooses the endpoint, and therefore the sender with its own queue, for each action. With failover, the queries that
+ * an unavailable endpoint could not send are moved to the next available endpoint.
+ */
+@Slf4j
+class EndpointRouter {
+
+  private static final int VIRTUAL_NODES = 160;
+
+  private final TrackerConfiguration trackerConfiguration;
+
+  private final List<Endpoint> endpoints;
+
+  private final List<Sender> senders;
+
+  private final long[] ringHashes;
+
+  private final int[] ringIndexes;
+
+  /**
+   * @param endpoints The endpoints in the configured order
+   * @param senders   The senders of the endpoints at the same index
+   */
+  EndpointRouter(TrackerConfiguration trackerConfiguration, List<Endpoint> endpoints, List<Sender> senders) {
+    this.trackerConfiguration = trackerConfiguration;
+    this.endpoints = endpoints;
+    this.senders = senders;
+    int ringSize = endpoints.size() * VIRTUAL_NODES;
+    long[][] nodes = new long[ringSize][];
+    for (int i = 0; i < endpoints.size(); i++) {
+      for (int v = 0; v < VIRTUAL_NODES; v++) {
+        nodes[i * VIRTUAL_NODES + v] = new long[]{hash(endpoints.get(i).getUri() + "#" + v), i};
+      }
+    }
+    Arrays.sort(nodes, (a, b) -> Long.compare(a[0], b[0]));
+    ringHashes = new long[ringSize];
+    ringIndexes = new int[ringSize];
+    for (int i = 0; i < ringSize; i++) {
+      ringHashes[i] = nodes[i][0];
+      ringIndexes[i] = (int) nodes[i][1];
+    }
+    if (senders.size() > 1 && trackerConfiguration.getEndpointRouting() == EndpointRouting.FAILOVER) {
+      for (int i = 0; i < senders.size(); i++) {
+        int index = i;
+        senders.get(i).setFailover(() -> failOver(index));
+      }
+    }
+  }
+
+  /**
+   * Moves the unsent queries of an unavailable endpoint to the first available one, so they do not wait for the
+   * endpoint to recover
+   */
+  private void failOver(int index) {
+    if (endpoints.get(index).isAvailable()) {
+      return;
+    }
+    for (int i = 0; i < endpoints.size(); i++) {
+      if (i != index && endpoints.get(i).isAvailable()) {
+        List<List<QueuedQuery>> unsent = senders.get(index).takeUnsent();
+        if (unsent.stream().anyMatch(queries -> !queries.isEmpty())) {
+          log.info("Moving unsent queries of {} to {}", endpoints.get(index).getUri(), endpoints.get(i).getUri());
+          senders.get(i).adopt(unsent);
+        }
+        return;
+      }
+    }
+  }
+
+  Sender route(Action action) {
+    if (senders.size() == 1) {
+      return senders.get(0);
+    }
+    if (trackerConfiguration.getEndpointRouting() == EndpointRouting.CONSISTENT_HASHING) {
+      return senders.get(ringIndexes[ringPosition(hash(routingKey(action, trackerConfiguration)))]);
+    }
+    for (int i = 0; i < endpoints.size(); i++) {
+      if (endpoints.get(i).isAvailable()) {
+        return senders.get(i);
+      }
+    }
+    return senders.get(0);
+  }
+
+  private int ringPosition(long hash) {
+    int position = Arrays.binarySearch(ringHashes, hash);
+    if (position < 0) {
+      position = -position - 1;
+    }
+    return position == ringHashes.length ? 0 : position;
+  }
+
+  /**
+   * The actions of a visitor share the same key, so they are sent to the same endpoint and in the same lane
+   */
+  static String routingKey(Action action, TrackerConfiguration trackerConfiguration) {
+    if (action.getVisitorId() != null) {
+      return action.getVisitorId().toString();
+    }
+    if (action.getUserId() != null) {
+      return action.getUserId();
+    }
+    if (action.getTemplate() != null && action.getTemplate().getRoutingKey() != null) {
+      return action.getTemplate().getRoutingKey();
+    }
+    Integer siteId = ActionTemplate.siteId(action);
+    if (siteId != null) {
+      return String.valueOf(siteId);
+    }
+    return String.valueOf(trackerConfiguration.getDefaultSiteId());
+  }
+
+  long getDroppedActions() {
+    long droppedActions = 0L;
+    for (Sender sender : senders) {
+      droppedActions += sender.getDroppedActions();
+    }
+    return droppedActions;
+  }
+
+  /**
+   * Sends probe requests to all unavailable endpoints
+   */
+  void probeUnavailableEndpoints() {
+    for (Endpoint endpoint : endpoints) {
+      if (!endpoint.isAvailable()) {
+        endpoint.probe();
+      }
+    }
+  }
+
+  /**
+   * 64 bit FNV-1a followed by the MurmurHash3 finalizer to spread similar keys over the whole ring
+   */
+  static long hash(String key) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+      hash ^= b & 0xFF;
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+}
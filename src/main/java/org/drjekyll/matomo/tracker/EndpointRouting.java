@@ -0,0 +1,22 @@
+package org.drjekyll.matomo.tracker;
+
+/**
+ * Defines how actions are distributed if more than one Matomo Tracking HTTP API endpoint is configured
+ */
+public enum EndpointRouting {
+
+  /**
+   * Sends all actions to the first available endpoint in the configured order. The queries that an endpoint could not
+   * send before it became unavailable are moved to the next available one, except for spooled queries. Unavailable
+   * endpoints are probed periodically and used again as soon as they respond.
+   */
+  FAILOVER,
+
+  /**
+   * Distributes the actions over all endpoints by consistent hashing of the visitor ID, the user ID or the site ID, so
+   * all actions of a visitor reach the same endpoint. Adding or removing an endpoint moves only a small share of the
+   * visitors to another endpoint.
+   */
+  CONSISTENT_HASHING
+
+}
@@ -0,0 +1,164 @@
+package org.drjekyll.matomo.tracker;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Sends bulk requests asynchronously using a single, long-lived {@link HttpClient}. The client keeps its connections
+ * open and multiplexes concurrent bulk requests over one connection if the endpoint supports HTTP/2. The responses are
+ * handled by the executor of the tracker.
+ */
+@Slf4j
+class HttpClientSender implements HttpSender {
+
+  private final TrackerConfiguration trackerConfiguration;
+
+  private final URI apiEndpoint;
+
+  private final HttpClient httpClient;
+
+  private final Executor executor;
+
+  HttpClientSender(TrackerConfiguration trackerConfiguration, URI apiEndpoint, Executor executor) {
+    this.trackerConfiguration = trackerConfiguration;
+    this.apiEndpoint = apiEndpoint;
+    this.executor = executor;
+    httpClient = createHttpClient(trackerConfiguration, executor);
+  }
+
+  private static HttpClient createHttpClient(TrackerConfiguration trackerConfiguration, Executor executor) {
+    HttpClient.Builder builder = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).executor(executor);
+    if (isPositive(trackerConfiguration.getConnectTimeout())) {
+      builder.connectTimeout(trackerConfiguration.getConnectTimeout());
+    }
+    if (Strings.isEmpty(trackerConfiguration.getProxyHost()) || trackerConfiguration.getProxyPort() <= 0) {
+      log.debug("Proxy host or proxy port not configured. Will create HTTP client without proxy");
+    } else {
+      builder.proxy(ProxySelector.of(new InetSocketAddress(
+        trackerConfiguration.getProxyHost(),
+        trackerConfiguration.getProxyPort()
+      )));
+      if (!Strings.isEmpty(trackerConfiguration.getProxyUserName())
+        && !Strings.isEmpty(trackerConfiguration.getProxyPassword())) {
+        builder.authenticator(new ProxyAuthenticator(
+          trackerConfiguration.getProxyUserName(),
+          trackerConfiguration.getProxyPassword()
+        ));
+      }
+    }
+    return builder.build();
+  }
+
+  @Override
+  public CompletableFuture<BulkResponse> send(Collection<String> queries) {
+    try {
+      return sendRequest(queries);
+    } catch (RuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  private CompletableFuture<BulkResponse> sendRequest(Collection<String> queries) {
+    log.debug(
+      "Sending bulk request with {} queries using URI {} asynchronously",
+      queries.size(),
+      apiEndpoint
+    );
+    BulkPayload payload = BulkPayload.create(queries, trackerConfiguration);
+    HttpRequest.Builder request = HttpRequest.newBuilder(apiEndpoint)
+      .POST(createBodyPublisher(payload))
+      .header("Accept", "*/*")
+      .header("Content-Type", "application/json")
+      .header("User-Agent", trackerConfiguration.getUserAgent());
+    if (payload.isCompressed()) {
+      request.header("Content-Encoding", payload.getContentEncoding());
+    }
+    if (isPositive(trackerConfiguration.getSocketTimeout())) {
+      request.timeout(trackerConfiguration.getSocketTimeout());
+    }
+    return httpClient.sendAsync(request.build(), HttpResponse.BodyHandlers.ofByteArray())
+      // The client completes its futures in the common pool, even if it uses the given executor itself
+      .handleAsync((response, throwable) -> {
+        if (throwable != null) {
+          Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+          if (cause instanceof IOException) {
+            throw new ConnectionFailedException(cause);
+          }
+          throw new CompletionException(cause);
+        }
+        if (response.statusCode() > 399) {
+          if (trackerConfiguration.isLogFailedTracking()) {
+            log.error("Received error code {}", response.statusCode());
+          }
+          throw new TrackingFailedException(
+            "Tracking endpoint responded with code " + response.statusCode(),
+            response.statusCode(),
+            RetryScheduler.parseRetryAfter(response.headers().firstValue("Retry-After").orElse(null))
+          );
+        }
+        return BulkResponse.parse(response.body(), response.body().length);
+      }, executor);
+  }
+
+  private static HttpRequest.BodyPublisher createBodyPublisher(BulkPayload payload) {
+    HttpRequest.BodyPublisher chunks = HttpRequest.BodyPublishers.ofByteArrays(payload.chunks());
+    if (payload.isCompressed()) {
+      return chunks;
+    }
+    return HttpRequest.BodyPublishers.fromPublisher(chunks, payload.getLength());
+  }
+
+  @Override
+  public void warmUp() {
+    httpClient.sendAsync(createHeadRequest(), HttpResponse.BodyHandlers.discarding())
+      .whenComplete((response, throwable) -> {
+        if (throwable == null) {
+          log.debug("Warmed up connection to {} with response code {}", apiEndpoint, response.statusCode());
+        } else {
+          log.debug("Could not warm up connection to {}", apiEndpoint, throwable);
+        }
+      });
+  }
+
+  @Override
+  public boolean probe() {
+    try {
+      int statusCode = httpClient.send(createHeadRequest(), HttpResponse.BodyHandlers.discarding()).statusCode();
+      log.debug("Probed {} with response code {}", apiEndpoint, statusCode);
+      return statusCode < 500;
+    } catch (IOException e) {
+      log.debug("Could not connect to {}", apiEndpoint, e);
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private HttpRequest createHeadRequest() {
+    HttpRequest.Builder request = HttpRequest.newBuilder(apiEndpoint)
+      .method("HEAD", HttpRequest.BodyPublishers.noBody())
+      .header("User-Agent", trackerConfiguration.getUserAgent());
+    if (isPositive(trackerConfiguration.getSocketTimeout())) {
+      request.timeout(trackerConfiguration.getSocketTimeout());
+    }
+    return request.build();
+  }
+
+  private static boolean isPositive(Duration duration) {
+    return duration != null && !duration.isZero() && !duration.isNegative();
+  }
+
+}
@@ -0,0 +1,33 @@
+package org.drjekyll.matomo.tracker;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Transmits a batch of queries as a single bulk request to the Matomo Tracking HTTP API endpoint
+ */
+interface HttpSender {
+
+  /**
+   * Sends the bulk request. Blocking implementations return an already completed future.
+   *
+   * @param queries The URL encoded queries to send
+   * @return A future that completes with the response of the endpoint or exceptionally with a
+   * {@link ConnectionFailedException} or a {@link TrackingFailedException} if the queries could not be transmitted
+   */
+  CompletableFuture<BulkResponse> send(Collection<String> queries);
+
+  /**
+   * Resolves the host name of the endpoint and establishes a connection that can be reused by the first bulk request.
+   * Failures are only logged.
+   */
+  void warmUp();
+
+  /**
+   * Sends a HEAD request to the endpoint and waits for the response
+   *
+   * @return true if the endpoint responded without a server error
+   */
+  boolean probe();
+
+}
@@ -0,0 +1,63 @@
+package org.drjekyll.matomo.tracker;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+import javax.annotation.Nullable;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Unmaps memory-mapped files without waiting for the garbage collector, which keeps the files mapped (and on some
+ * operating systems undeletable) in the meantime. The tracker is compiled for Java 11, which has no public API for
+ * this, so the cleaner of {@code sun.misc.Unsafe} is looked up reflectively and only used if it is available.
+ */
+@Slf4j
+final class MappedBuffers {
+
+  @Nullable
+  private static final Object UNSAFE;
+
+  @Nullable
+  private static final Method INVOKE_CLEANER;
+
+  static {
+    Object unsafe = null;
+    Method invokeCleaner = null;
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field field = unsafeClass.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      unsafe = field.get(null);
+      invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      log.debug("Memory-mapped files cannot be unmapped explicitly", e);
+    }
+    UNSAFE = unsafe;
+    INVOKE_CLEANER = invokeCleaner;
+  }
+
+  private MappedBuffers() {
+    // utility class
+  }
+
+  /**
+   * Unmaps the buffer. It must not be accessed afterwards, as this would crash the JVM.
+   */
+  static void unmap(MappedByteBuffer buffer) {
+    if (INVOKE_CLEANER == null) {
+      return;
+    }
+    try {
+      INVOKE_CLEANER.invoke(UNSAFE, buffer);
+    } catch (IllegalAccessException e) {
+      log.debug("Could not unmap buffer", e);
+    } catch (InvocationTargetException e) {
+      log.debug("Could not unmap buffer", e.getCause());
+    }
+  }
+
+}
@@ -1,20 +1,59 @@
 package org.drjekyll.matomo.tracker;
 
+import java.net.URI;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
 
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 
 /**
- * Allows you to send requests to the Matomo Tracking API endpoint
+ * Allows you to send requests to the Matomo Tracking API endpoint. Close the tracker to send the queued actions and to
+ * stop its threads.
  */
 @Slf4j
-public class MatomoTracker {
+public class MatomoTracker implements AutoCloseable {
 
   private final TrackerConfiguration trackerConfiguration;
 
-  private final Sender sender;
+  private final EndpointRouter router;
+
+  private final List<Sender> senders;
+
+  private final RateLimiter rateLimiter;
+
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  /**
+   * The scheduler if the tracker created it, a given scheduler is not shut down
+   */
+  @Nullable
+  private final ScheduledExecutorService ownScheduler;
+
+  /**
+   * The executor if the tracker created it, a given executor is not shut down
+   */
+  @Nullable
+  private final ExecutorService ownExecutor;
+
+  @Nullable
+  private final ScheduledFuture<?> healthCheck;
+
+  @Nullable
+  private final Thread shutdownHook;
 
   /**
    * Creates a new Matomo Tracker instance
@@ -23,36 +62,245 @@ public class MatomoTracker {
    */
   public MatomoTracker(TrackerConfiguration trackerConfiguration) {
     this.trackerConfiguration = trackerConfiguration;
-    DaemonThreadFactory threadFactory = new DaemonThreadFactory();
-    ScheduledThreadPoolExecutor scheduledThreadPoolExecutor = new ScheduledThreadPoolExecutor(1, threadFactory);
+    ownScheduler = trackerConfiguration.getScheduler() == null ? createScheduler() : null;
+    ScheduledExecutorService scheduler = ownScheduler == null ? trackerConfiguration.getScheduler() : ownScheduler;
+    ownExecutor = trackerConfiguration.getExecutor() == null && trackerConfiguration.isVirtualThreads()
+      ? createVirtualThreadExecutor() : null;
+    Executor executor = trackerConfiguration.getExecutor();
+    if (executor == null) {
+      executor = ownExecutor == null ? ForkJoinPool.commonPool() : ownExecutor;
+    }
+    QueryCreator queryCreator = new QueryCreator(trackerConfiguration);
+    DeadLetterSink deadLetterSink = createDeadLetterSink(trackerConfiguration);
+    List<URI> apiEndpoints = new ArrayList<>();
+    apiEndpoints.add(trackerConfiguration.getApiEndpoint());
+    apiEndpoints.addAll(trackerConfiguration.getAdditionalApiEndpoints());
+    List<Endpoint> endpoints = new ArrayList<>(apiEndpoints.size());
+    senders = new ArrayList<>(apiEndpoints.size());
+    for (URI apiEndpoint : apiEndpoints) {
+      Endpoint endpoint = new Endpoint(apiEndpoint, createHttpSender(trackerConfiguration, apiEndpoint, executor));
+      AdaptiveBatching batching = new AdaptiveBatching(trackerConfiguration);
+      Sender sender = new Sender(
+        trackerConfiguration,
+        queryCreator,
+        endpoint,
+        new DelayedExecutor(scheduler, executor, batching::getDelayMillis),
+        executor,
+        scheduler,
+        openSpool(trackerConfiguration, endpoints.size(), apiEndpoint),
+        deadLetterSink,
+        batching
+      );
+      sender.replay();
+      if (trackerConfiguration.isWarmUp()) {
+        executor.execute(endpoint::warmUp);
+      }
+      endpoints.add(endpoint);
+      senders.add(sender);
+    }
+    router = new EndpointRouter(trackerConfiguration, endpoints, senders);
+    rateLimiter = new RateLimiter(trackerConfiguration, scheduler, executor);
+    if (endpoints.size() > 1 && trackerConfiguration.getEndpointRouting() == EndpointRouting.FAILOVER) {
+      long interval = trackerConfiguration.getHealthCheckInterval().toMillis();
+      healthCheck = scheduler.scheduleWithFixedDelay(
+        new CommonPoolRunnable(router::probeUnavailableEndpoints, executor),
+        interval,
+        interval,
+        TimeUnit.MILLISECONDS
+      );
+    } else {
+      healthCheck = null;
+    }
+    if (trackerConfiguration.isShutdownHook()) {
+      shutdownHook = new Thread(this::close, "MatomoTrackerShutdownHook");
+      Runtime.getRuntime().addShutdownHook(shutdownHook);
+    } else {
+      shutdownHook = null;
+    }
+  }
+
+  private static ScheduledExecutorService createScheduler() {
+    ScheduledThreadPoolExecutor scheduledThreadPoolExecutor =
+      new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory());
     scheduledThreadPoolExecutor.setRemoveOnCancelPolicy(true);
-    DelayedExecutor delayedExecutor = new DelayedExecutor(
-      scheduledThreadPoolExecutor,
-      trackerConfiguration.getDelay().toMillis()
+    return scheduledThreadPoolExecutor;
+  }
+
+  @Nullable
+  private static ExecutorService createVirtualThreadExecutor() {
+    ExecutorService executor = VirtualThreads.newExecutor();
+    if (executor == null) {
+      log.warn("Virtual threads are not supported by this JVM, using the common pool instead");
+    }
+    return executor;
+  }
+
+  private static HttpSender createHttpSender(
+    TrackerConfiguration trackerConfiguration, URI apiEndpoint, Executor executor
+  ) {
+    if (trackerConfiguration.getTransport() == Transport.HTTP_CLIENT) {
+      return new HttpClientSender(trackerConfiguration, apiEndpoint, executor);
+    }
+    return new UrlConnectionSender(trackerConfiguration, apiEndpoint);
+  }
+
+  @Nullable
+  private static DeadLetterSink createDeadLetterSink(TrackerConfiguration trackerConfiguration) {
+    if (trackerConfiguration.getDeadLetterSink() != null || trackerConfiguration.getDeadLetterDirectory() == null) {
+      return trackerConfiguration.getDeadLetterSink();
+    }
+    return new RotatingFileDeadLetterSink(trackerConfiguration);
+  }
+
+  /**
+   * The first endpoint uses the spool directory itself, the additional endpoints use subdirectories
+   */
+  @Nullable
+  private static Spool openSpool(TrackerConfiguration trackerConfiguration, int index, URI apiEndpoint) {
+    Path spoolDirectory = trackerConfiguration.getSpoolDirectory();
+    if (spoolDirectory == null) {
+      return null;
+    }
+    if (index == 0) {
+      return Spool.open(trackerConfiguration, spoolDirectory);
+    }
+    return Spool.open(
+      trackerConfiguration,
+      spoolDirectory.resolve(apiEndpoint.toString().replaceAll("[^A-Za-z0-9.-]", "_"))
     );
-    sender = new Sender(trackerConfiguration, new QueryCreator(trackerConfiguration), delayedExecutor);
   }
 
   /**
    * Executes a POST call to the specified Matomo Tracking HTTP API endpoint.
    *
    * @param action Contains the required request parameters of the action to be tracked
-   * @return A {@link CompletableFuture} that can be used to ensure whether the request is done or was errornous
+   * @return A {@link CompletableFuture} that completes when the action was accepted by the endpoint. It completes
+   * exceptionally with an {@link ActionRejectedException} if the endpoint reported the action as invalid, with an
+   * {@link ActionPossiblyRejectedException} if it reported invalid actions of the bulk request without their indices,
+   * with an {@link ActionDroppedException} or {@link ActionSpooledException} if it was not sent and with a
+   * {@link TrackingFailedException} or {@link CircuitOpenException} if the bulk request failed and the action was moved to
+   * the spool. Actions that are kept in memory after a failure are sent again, their futures complete once they were
+   * sent.
    */
   public CompletableFuture<Void> track(@NonNull Action action) {
     if (trackerConfiguration.isEnabled()) {
       validateSiteId(action);
-      return sender.send(action);
+      if (closed.get()) {
+        return CompletableFuture.failedFuture(new ActionDroppedException("Tracker is closed"));
+      }
+      if (rateLimiter.isEnabled()) {
+        Integer siteId = ActionTemplate.siteId(action);
+        if (siteId == null) {
+          siteId = trackerConfiguration.getDefaultSiteId();
+        }
+        return rateLimiter.send(action, siteId, this::send);
+      }
+      return send(action);
     }
     return CompletableFuture.completedFuture(null);
   }
 
+  private CompletableFuture<Void> send(Action action) {
+    return router.route(action).send(action);
+  }
+
+  /**
+   * Sends all queued actions immediately without waiting for the configured delay
+   */
+  public void flush() {
+    senders.forEach(Sender::flush);
+  }
+
+  /**
+   * Closes the tracker within the configured shutdown timeout, see {@link #close(Duration)}
+   */
+  @Override
+  public void close() {
+    close(trackerConfiguration.getShutdownTimeout());
+  }
+
+  /**
+   * Sends all queued actions of all endpoints in parallel and stops the threads of the tracker. Actions that could not
+   * be sent until the deadline are handed over to the configured {@link ShutdownFallback}. Actions tracked afterwards
+   * are dropped. Closing an already closed tracker has no effect.
+   *
+   * @param timeout The maximum duration to wait for the bulk requests
+   */
+  public void close(@NonNull Duration timeout) {
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    removeShutdownHook();
+    long deadline = System.nanoTime() + timeout.toNanos();
+    if (trackerConfiguration.isEnabled()) {
+      rateLimiter.sendDelayedActions();
+      flush();
+      boolean sent = true;
+      for (Sender sender : senders) {
+        sent &= sender.awaitSent(deadline);
+      }
+      if (!sent) {
+        log.warn("Not all actions could be sent within {}", timeout);
+        for (Sender sender : senders) {
+          sender.abandon(trackerConfiguration.getShutdownFallback());
+        }
+      }
+    }
+    senders.forEach(Sender::close);
+    if (healthCheck != null) {
+      healthCheck.cancel(false);
+    }
+    if (ownScheduler != null) {
+      ownScheduler.shutdownNow();
+    }
+    if (ownExecutor != null) {
+      ownExecutor.shutdown();
+    }
+  }
+
+  private void removeShutdownHook() {
+    if (shutdownHook == null || Thread.currentThread() == shutdownHook) {
+      return;
+    }
+    try {
+      Runtime.getRuntime().removeShutdownHook(shutdownHook);
+    } catch (IllegalStateException e) {
+      // The JVM is already shutting down and runs the hook anyway
+      log.debug("Could not remove shutdown hook", e);
+    }
+  }
+
+  /**
+   * @return The number of actions that were dropped without being sent, e.g. because the queue was full
+   */
+  public long getDroppedActions() {
+    return router.getDroppedActions() + rateLimiter.getDroppedActions();
+  }
+
+  /**
+   * @return The ratio of the tokens available in the global rate limit, from 0 (exhausted) to 1 (full). 1 if there is
+   * no global rate limit.
+   */
+  public double getRateLimitFillLevel() {
+    return rateLimiter.getFillLevel();
+  }
+
+  /**
+   * @param siteId The ID of the site
+   * @return The ratio of the tokens available in the rate limit of the site, from 0 (exhausted) to 1 (full). 1 if
+   * there is no rate limit for the site.
+   */
+  public double getRateLimitFillLevel(int siteId) {
+    return rateLimiter.getFillLevel(siteId);
+  }
+
   private void validateSiteId(Action action) {
-    if (trackerConfiguration.getDefaultSiteId() == null && action.getSiteId() == null) {
+    Integer siteId = ActionTemplate.siteId(action);
+    if (trackerConfiguration.getDefaultSiteId() == null && siteId == null) {
       throw new IllegalArgumentException("No default site id and not action site id is given");
     }
 
-    if (action.getSiteId() != null && action.getSiteId() < 0) {
+    if (siteId != null && siteId < 0) {
       throw new IllegalArgumentException("Site ID must not be negative");
     }
   }
@@ -0,0 +1,84 @@
+package org.drjekyll.matomo.tracker;
+
+/**
+ * Encodes values like {@link java.net.URLEncoder} with UTF-8 does, but appends the encoded characters directly to the
+ * query instead of creating intermediate strings and byte arrays. Values that need no escaping, e.g. most IDs and
+ * names, are copied in one go.
+ *
+ * <p>Letters, digits and {@code .-*_} are kept, spaces become {@code +} and all other characters are percent-encoded
+ * as UTF-8 bytes with uppercase hex digits. Unpaired surrogates are encoded as {@code ?}, like the UTF-8 encoder of the
+ * JDK replaces them.</p>
+ */
+final class PercentEncoder {
+
+  private static final boolean[] UNRESERVED = new boolean[128];
+
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+  static {
+    for (char c = 'a'; c <= 'z'; c++) {
+      UNRESERVED[c] = true;
+    }
+    for (char c = 'A'; c <= 'Z'; c++) {
+      UNRESERVED[c] = true;
+    }
+    for (char c = '0'; c <= '9'; c++) {
+      UNRESERVED[c] = true;
+    }
+    UNRESERVED['.'] = true;
+    UNRESERVED['-'] = true;
+    UNRESERVED['*'] = true;
+    UNRESERVED['_'] = true;
+  }
+
+  private PercentEncoder() {
+    // utility class
+  }
+
+  static void encode(CharSequence value, StringBuilder target) {
+    int length = value.length();
+    int start = 0;
+    while (start < length && isUnreserved(value.charAt(start))) {
+      start++;
+    }
+    if (start == length) {
+      target.append(value);
+      return;
+    }
+    target.append(value, 0, start);
+    for (int i = start; i < length; i++) {
+      char c = value.charAt(i);
+      if (isUnreserved(c)) {
+        target.append(c);
+      } else if (c == ' ') {
+        target.append('+');
+      } else if (c < 0x80) {
+        appendByte(c, target);
+      } else if (c < 0x800) {
+        appendByte(0xC0 | c >> 6, target);
+        appendByte(0x80 | c & 0x3F, target);
+      } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        appendByte(0xF0 | codePoint >> 18, target);
+        appendByte(0x80 | codePoint >> 12 & 0x3F, target);
+        appendByte(0x80 | codePoint >> 6 & 0x3F, target);
+        appendByte(0x80 | codePoint & 0x3F, target);
+      } else if (Character.isSurrogate(c)) {
+        appendByte('?', target);
+      } else {
+        appendByte(0xE0 | c >> 12, target);
+        appendByte(0x80 | c >> 6 & 0x3F, target);
+        appendByte(0x80 | c & 0x3F, target);
+      }
+    }
+  }
+
+  private static boolean isUnreserved(char c) {
+    return c < 0x80 && UNRESERVED[c];
+  }
+
+  private static void appendByte(int b, StringBuilder target) {
+    target.append('%').append(HEX_DIGITS[b >> 4 & 0xF]).append(HEX_DIGITS[b & 0xF]);
+  }
+
+}
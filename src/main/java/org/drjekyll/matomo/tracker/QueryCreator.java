@@ -1,87 +1,80 @@
 package org.drjekyll.matomo.tracker;
 
-import java.beans.IntrospectionException;
-import java.beans.Introspector;
-import java.beans.PropertyDescriptor;
-import java.io.UnsupportedEncodingException;
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Member;
-import java.net.URLEncoder;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
-import java.util.regex.Pattern;
+import javax.annotation.Nullable;
 
-import lombok.RequiredArgsConstructor;
-
-@RequiredArgsConstructor
+/**
+ * Creates the query of an action. The tracking parameters are appended by the {@code ActionEncoder} that is generated
+ * from the {@link TrackingParameter} annotations of {@link Action} at build time. The query is built in a buffer that
+ * is reused by each thread, so creating a query allocates the resulting string only. As the query consists of ASCII
+ * characters, the string stores a single byte per character.
+ *
+ * <p>If the action references an {@link ActionTemplate}, its encoded parameters are appended before the ones of the
+ * action. The default parameters of the configuration are encoded once when the creator is created.</p>
+ */
 class QueryCreator {
 
-  private static final List<TrackingParameterMethod> TRACKING_PARAMETER_METHODS = initializeTrackingParameterMethods();
+  /**
+   * Larger buffers are not kept, so a single huge action does not retain its memory
+   */
+  private static final int MAX_BUFFER_CAPACITY = 16 * 1024;
+
+  private static final String TOKEN_AUTH = "&token_auth=";
+
+  private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(512));
+
+  private final String defaultSiteId;
+
+  @Nullable
+  private final String defaultTokenAuth;
 
-  private final TrackerConfiguration trackerConfiguration;
+  QueryCreator(TrackerConfiguration trackerConfiguration) {
+    defaultSiteId = "&idsite=" + trackerConfiguration.getDefaultSiteId();
+    defaultTokenAuth = trackerConfiguration.getDefaultTokenAuth() == null ? null
+      : TOKEN_AUTH + trackerConfiguration.getDefaultTokenAuth();
+  }
 
   public String createQuery(Action action) {
-    StringBuilder query = new StringBuilder("rec=1");
-    if (action.getSiteId() == null) {
-      query.append("&idsite=").append(trackerConfiguration.getDefaultSiteId());
+    StringBuilder query = BUFFER.get();
+    query.setLength(0);
+    query.append("rec=1");
+    if (ActionTemplate.siteId(action) == null) {
+      query.append(defaultSiteId);
     }
-    if (trackerConfiguration.getDefaultTokenAuth() != null && (action.getTokenAuth() == null || action.getTokenAuth()
-      .trim()
-      .isEmpty())) {
-      query.append("&token_auth=").append(trackerConfiguration.getDefaultTokenAuth());
+    if (defaultTokenAuth != null && !ActionTemplate.hasTokenAuth(action)) {
+      query.append(defaultTokenAuth);
     }
-    for (TrackingParameterMethod method : TRACKING_PARAMETER_METHODS) {
-      appendParameter(method, action, query);
+    if (action.getTemplate() != null) {
+      query.append(action.getTemplate().getQuery());
     }
-    return query.toString();
-  }
-
-  private static void appendParameter(TrackingParameterMethod method, Action action, StringBuilder query) {
-    try {
-      Object parameterValue = method.getMethod().invoke(action);
-      if (parameterValue != null) {
-        method.validateParameterValue(parameterValue);
-        query.append('&').append(method.getParameterName()).append('=');
-        if (parameterValue instanceof Boolean) {
-          query.append((boolean) parameterValue ? '1' : '0');
-        } else {
-          query.append(URLEncoder.encode(parameterValue.toString(), "UTF-8"));
-        }
-      }
-    } catch (IllegalAccessException | InvocationTargetException | UnsupportedEncodingException e) {
-      throw new ParameterException(e);
+    ActionEncoder.encode(action, query);
+    String created = query.toString();
+    if (query.capacity() > MAX_BUFFER_CAPACITY) {
+      BUFFER.remove();
     }
+    return created;
   }
 
-  private static List<TrackingParameterMethod> initializeTrackingParameterMethods() {
-    List<TrackingParameterMethod> methods = new ArrayList<>(32);
-    for (Field field : Action.class.getDeclaredFields()) {
-      if (field.isAnnotationPresent(TrackingParameter.class)) {
-        addMethods(methods, field, field.getAnnotation(TrackingParameter.class));
-      }
+  /**
+   * Removes the token auth from a query, so the secret token does not end up in logs or files
+   *
+   * @param query A query created by this class
+   * @return The query without the {@code token_auth} parameter
+   */
+  static String withoutTokenAuth(String query) {
+    int start = query.indexOf(TOKEN_AUTH);
+    if (start < 0) {
+      return query;
     }
-    return methods;
-  }
-
-  private static void addMethods(
-    Collection<TrackingParameterMethod> methods, Member member, TrackingParameter trackingParameter
-  ) {
-    try {
-      for (PropertyDescriptor pd : Introspector.getBeanInfo(Action.class).getPropertyDescriptors()) {
-        if (member.getName().equals(pd.getName())) {
-          String regex = trackingParameter.regex();
-          methods.add(TrackingParameterMethod.builder()
-            .parameterName(trackingParameter.name())
-            .method(pd.getReadMethod())
-            .pattern(regex == null || regex.isEmpty() || regex.trim().isEmpty() ? null : Pattern.compile(trackingParameter.regex()))
-            .build());
-        }
-      }
-    } catch (IntrospectionException e) {
-      throw new InitializationFailedException("Could not initialize read methods", e);
+    StringBuilder stripped = new StringBuilder(query.length());
+    int from = 0;
+    while (start >= 0) {
+      stripped.append(query, from, start);
+      // Values are percent-encoded, so the next ampersand starts the next parameter
+      int end = query.indexOf('&', start + 1);
+      from = end < 0 ? query.length() : end;
+      start = query.indexOf(TOKEN_AUTH, from);
     }
+    return stripped.append(query, from, query.length()).toString();
   }
 
 }
@@ -0,0 +1,63 @@
+package org.drjekyll.matomo.tracker;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number and the total size of the queries a sender keeps in memory, from being queued until they are sent,
+ * dropped or spooled. Includes queries waiting for a retry or in flight. Lock-free, permits are acquired with
+ * compare-and-set loops.
+ */
+class QueueLimit {
+
+  private final AtomicInteger count = new AtomicInteger();
+
+  private final AtomicLong bytes = new AtomicLong();
+
+  private final int maxCount;
+
+  private final long maxBytes;
+
+  QueueLimit(int maxCount, long maxBytes) {
+    this.maxCount = maxCount;
+    this.maxBytes = maxBytes;
+  }
+
+  boolean tryAcquire(int size) {
+    int currentCount;
+    do {
+      currentCount = count.get();
+      if (currentCount >= maxCount) {
+        return false;
+      }
+    } while (!count.compareAndSet(currentCount, currentCount + 1));
+    long currentBytes;
+    do {
+      currentBytes = bytes.get();
+      // A single query is always accepted by an empty queue, even if it is larger than the limit
+      if (currentBytes > 0L && currentBytes + size > maxBytes) {
+        count.decrementAndGet();
+        return false;
+      }
+    } while (!bytes.compareAndSet(currentBytes, currentBytes + size));
+    return true;
+  }
+
+  void release(int size) {
+    bytes.addAndGet(-size);
+    count.decrementAndGet();
+  }
+
+  int count() {
+    return count.get();
+  }
+
+  boolean isFull() {
+    return count.get() >= maxCount;
+  }
+
+  long bytes() {
+    return bytes.get();
+  }
+
+}
@@ -0,0 +1,124 @@
+package org.drjekyll.matomo.tracker;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+/**
+ * A query waiting to be sent together with the future that is returned to the caller of
+ * {@link MatomoTracker#track(Action)}. With deferred encoding, the query holds its action until it is encoded.
+ */
+@Getter
+class QueuedQuery {
+
+  /**
+   * The action until it is encoded, null afterwards
+   */
+  @Nullable
+  private Action action;
+
+  /**
+   * The query once the action is encoded
+   */
+  @Nullable
+  private String query;
+
+  private final ActionPriority priority;
+
+  /**
+   * The record the query was polled from if it was spooled, acknowledged once the query was sent
+   */
+  @Nullable
+  private final Spool.PolledRecord spooled;
+
+  /**
+   * The size the query counts with in the {@link QueueLimit}, estimated if the action is not encoded yet. It does not
+   * change, so the released permits match the acquired ones.
+   */
+  private final int weight;
+
+  private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+  private final long queuedAt = System.nanoTime();
+
+  /**
+   * Whether the query holds a permit of the {@link QueueLimit}. Spooled queries that are read back do not. The query may
+   * be released by several threads at once, e.g. when it is evicted while its batch fails, but only one of them must
+   * return the permit.
+   */
+  @Getter(AccessLevel.NONE)
+  private final AtomicBoolean limited = new AtomicBoolean();
+
+  QueuedQuery(String query, ActionPriority priority) {
+    this.query = query;
+    this.priority = priority;
+    spooled = null;
+    weight = size(query);
+  }
+
+  /**
+   * Creates a query that was read back from the spool
+   */
+  QueuedQuery(Spool.PolledRecord spooled) {
+    query = spooled.getQuery();
+    priority = ActionPriority.NORMAL;
+    this.spooled = spooled;
+    weight = size(query);
+  }
+
+  /**
+   * Creates a query whose action is encoded later
+   *
+   * @param estimatedSize The estimated size of the query, see {@link #size()}
+   */
+  QueuedQuery(Action action, ActionPriority priority, int estimatedSize) {
+    this.action = action;
+    this.priority = priority;
+    spooled = null;
+    weight = estimatedSize;
+  }
+
+  /**
+   * Encodes the action. Throws an exception if the action has an invalid parameter.
+   */
+  void encode(QueryCreator queryCreator) {
+    if (query == null) {
+      query = queryCreator.createQuery(action);
+      action = null;
+    }
+  }
+
+  boolean isEncoded() {
+    return query != null;
+  }
+
+  /**
+   * Queries are URL encoded and therefore consist of ASCII characters only, one byte each. Adds the quotes, the leading
+   * question mark and the separating comma of the bulk request payload.
+   *
+   * @return the size of the query in the bulk request payload, the weight if the action is not encoded yet
+   */
+  int size() {
+    return query == null ? weight : size(query);
+  }
+
+  private static int size(String query) {
+    return query.length() + 4;
+  }
+
+  void limit() {
+    limited.set(true);
+  }
+
+  /**
+   * @return true if the query held a permit, which the caller has to return to the {@link QueueLimit}
+   */
+  boolean unlimit() {
+    return limited.compareAndSet(true, false);
+  }
+
+}
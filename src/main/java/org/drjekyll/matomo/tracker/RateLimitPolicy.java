@@ -0,0 +1,27 @@
+package org.drjekyll.matomo.tracker;
+
+/**
+ * Defines what happens to an action that exceeds the global or the site rate limit. Dropped actions are counted (see
+ * {@link MatomoTracker#getDroppedActions()}) and their futures complete exceptionally with an
+ * {@link ActionDroppedException}.
+ */
+public enum RateLimitPolicy {
+
+  /**
+   * Queues the action as soon as the rate limit allows it, without blocking the tracking thread. The action is dropped
+   * if it would have to wait longer than the {@code rateLimitMaxDelay}.
+   */
+  DELAY,
+
+  /**
+   * Drops the action
+   */
+  DROP,
+
+  /**
+   * Queues a random sample of the actions exceeding the rate limit with the {@code rateLimitSampleRate} and drops the
+   * others. The rate limit is exceeded by this fraction.
+   */
+  SAMPLE
+
+}
@@ -0,0 +1,362 @@
+package org.drjekyll.matomo.tracker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import javax.annotation.Nullable;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Limits the rate of tracked actions globally and per site with token buckets. An action needs a token of the global
+ * bucket and one of the bucket of its site. Actions exceeding a limit are handled according to the
+ * {@link RateLimitPolicy}.
+ */
+@Slf4j
+class RateLimiter {
+
+  /**
+   * The number of site buckets above which the idle ones are removed
+   */
+  private static final int MIN_EVICTION_THRESHOLD = 1024;
+
+  private final TrackerConfiguration trackerConfiguration;
+
+  private final ScheduledExecutorService scheduler;
+
+  private final Executor executor;
+
+  private final LongSupplier nanoClock;
+
+  private final long maxDelayNanos;
+
+  @Nullable
+  private final TokenBucket global;
+
+  private final Map<Integer, TokenBucket> sites = new ConcurrentHashMap<>();
+
+  /**
+   * The actions waiting for a token of a bucket, sent immediately if the tracker is closed
+   */
+  private final Map<TokenBucket, DelayedActions> delayedActions = new ConcurrentHashMap<>();
+
+  private final LongAdder droppedActions = new LongAdder();
+
+  private volatile int evictionThreshold = MIN_EVICTION_THRESHOLD;
+
+  private volatile boolean closed;
+
+  RateLimiter(TrackerConfiguration trackerConfiguration, ScheduledExecutorService scheduler, Executor executor) {
+    this(trackerConfiguration, scheduler, executor, System::nanoTime);
+  }
+
+  RateLimiter(
+    TrackerConfiguration trackerConfiguration,
+    ScheduledExecutorService scheduler,
+    Executor executor,
+    LongSupplier nanoClock
+  ) {
+    this.trackerConfiguration = trackerConfiguration;
+    this.scheduler = scheduler;
+    this.executor = executor;
+    this.nanoClock = nanoClock;
+    maxDelayNanos = trackerConfiguration.getRateLimitPolicy() == RateLimitPolicy.DELAY
+      ? trackerConfiguration.getRateLimitMaxDelay().toNanos() : 0L;
+    global = createBucket(trackerConfiguration.getRateLimit());
+  }
+
+  /**
+   * @return whether any limit is configured, otherwise actions do not need to pass the rate limiter
+   */
+  boolean isEnabled() {
+    return global != null || trackerConfiguration.getDefaultSiteRateLimit() > 0.0
+      || !trackerConfiguration.getSiteRateLimits().isEmpty();
+  }
+
+  /**
+   * Passes the action to the sender as soon as the rate limits allow it
+   *
+   * @param siteId The site of the action
+   * @param send   Queues the action
+   * @return A future that completes with the future returned by the sender
+   */
+  CompletableFuture<Void> send(Action action, int siteId, Function<Action, CompletableFuture<Void>> send) {
+    TokenBucket site = siteBucket(siteId);
+    long now = nanoClock.getAsLong();
+    long siteWait = site == null ? 0L : site.reserve(now, maxDelayNanos);
+    long globalWait = siteWait < 0L ? -1L : reserveGlobal(site, now);
+    if (siteWait == 0L && globalWait == 0L) {
+      return send.apply(action);
+    }
+    if (globalWait >= 0L) {
+      // The action waits for the bucket whose token is available last. Its due time is the time of that token, so the
+      // actions of the bucket are sent in the order of their reservations, even if they are added in another order.
+      TokenBucket bucket = globalWait >= siteWait ? global : site;
+      return delay(bucket, new DelayedAction(action, send, now + Math.max(siteWait, globalWait)));
+    }
+    if (trackerConfiguration.getRateLimitPolicy() == RateLimitPolicy.SAMPLE
+      && ThreadLocalRandom.current().nextDouble() < trackerConfiguration.getRateLimitSampleRate()) {
+      return send.apply(action);
+    }
+    droppedActions.increment();
+    log.debug("Rate limit of site {} exceeded, dropping action", siteId);
+    return CompletableFuture.failedFuture(new ActionDroppedException("Rate limit exceeded"));
+  }
+
+  /**
+   * @return the wait in nanoseconds until the global token is available or -1 if it is not available in time, in
+   * which case the token of the site is returned
+   */
+  private long reserveGlobal(@Nullable TokenBucket site, long now) {
+    if (global == null) {
+      return 0L;
+    }
+    long wait = global.reserve(now, maxDelayNanos);
+    if (wait < 0L && site != null) {
+      site.release();
+    }
+    return wait;
+  }
+
+  private CompletableFuture<Void> delay(TokenBucket bucket, DelayedAction delayed) {
+    // An idle queue may be removed concurrently, the action is then added to a new one
+    while (!delayedActions.computeIfAbsent(bucket, b -> new DelayedActions()).add(delayed)) {
+      Thread.onSpinWait();
+    }
+    return delayed.future;
+  }
+
+  @Nullable
+  private TokenBucket siteBucket(int siteId) {
+    TokenBucket bucket = sites.get(siteId);
+    if (bucket != null) {
+      return bucket;
+    }
+    Double rate = trackerConfiguration.getSiteRateLimits().get(siteId);
+    if ((rate == null || rate <= 0.0) && trackerConfiguration.getDefaultSiteRateLimit() <= 0.0) {
+      return null;
+    }
+    TokenBucket created = sites.computeIfAbsent(siteId, id -> createBucket(
+      rate == null ? trackerConfiguration.getDefaultSiteRateLimit() : rate));
+    if (sites.size() > evictionThreshold) {
+      evictIdleSites(created);
+    }
+    return created;
+  }
+
+  /**
+   * Removes the buckets of the sites that are full, along with their queues of delayed actions if they are empty. A
+   * full bucket behaves like a new one, so the limits do not change. The threshold grows with the number of remaining
+   * sites, so evicting takes amortized constant time per new site.
+   *
+   * @param created The bucket that was just created and is about to be used
+   */
+  private synchronized void evictIdleSites(TokenBucket created) {
+    if (sites.size() <= evictionThreshold) {
+      return;
+    }
+    sites.values().removeIf(bucket -> bucket != created && bucket.getFillLevel() >= 1.0);
+    delayedActions.entrySet().removeIf(entry -> entry.getKey() != global && entry.getKey() != created
+      && entry.getKey().getFillLevel() >= 1.0 && entry.getValue().retire());
+    evictionThreshold = Math.max(MIN_EVICTION_THRESHOLD, 2 * sites.size());
+  }
+
+  @Nullable
+  private TokenBucket createBucket(double rate) {
+    if (rate <= 0.0) {
+      return null;
+    }
+    double capacity = rate * trackerConfiguration.getRateLimitBurst().toNanos() / 1.0E9;
+    return new TokenBucket(rate, capacity, nanoClock);
+  }
+
+  /**
+   * @return the fill level of the global bucket, 1 if there is no global limit
+   */
+  double getFillLevel() {
+    return global == null ? 1.0 : global.getFillLevel();
+  }
+
+  /**
+   * @return the fill level of the bucket of the site, 1 if there is no limit for the site
+   */
+  double getFillLevel(int siteId) {
+    TokenBucket site = siteBucket(siteId);
+    return site == null ? 1.0 : site.getFillLevel();
+  }
+
+  long getDroppedActions() {
+    return droppedActions.sum();
+  }
+
+  /**
+   * Sends the delayed actions immediately, so they are sent before the tracker is closed. Actions that are delayed
+   * afterwards are dropped.
+   */
+  void sendDelayedActions() {
+    closed = true;
+    delayedActions.values().forEach(DelayedActions::sendAll);
+  }
+
+  private void drop(DelayedAction delayed) {
+    droppedActions.increment();
+    delayed.future.completeExceptionally(new ActionDroppedException("Tracker is closed"));
+  }
+
+  /**
+   * The delayed actions of a bucket in the order of their due times. A single timer is armed for the first action and
+   * sends all actions that are due when it fires, then it is armed for the next one. Only threads delaying or sending
+   * actions synchronize on the queue, actions within the limits do not.
+   */
+  private final class DelayedActions {
+
+    private final Queue<DelayedAction> actions = new PriorityQueue<>(
+      (first, second) -> Long.signum(first.due - second.due));
+
+    private boolean armed;
+
+    /**
+     * Whether the queue was removed as idle, actions must be added to a new queue
+     */
+    private boolean retired;
+
+    /**
+     * Adds the action or drops it if the tracker is closed
+     *
+     * @return false if the queue was retired
+     */
+    private boolean add(DelayedAction delayed) {
+      boolean scheduled = false;
+      synchronized (this) {
+        if (retired) {
+          return false;
+        }
+        if (!closed) {
+          actions.add(delayed);
+          scheduled = arm(nanoClock.getAsLong());
+        }
+      }
+      if (closed) {
+        drop(delayed);
+      } else if (!scheduled) {
+        pollAll().forEach(RateLimiter.this::drop);
+      }
+      return true;
+    }
+
+    /**
+     * Arms the timer for the first action unless it is already armed
+     *
+     * @param now The current time, at least the time the previous timer was armed for
+     * @return false if the timer could not be scheduled, because the scheduler was shut down
+     */
+    private boolean arm(long now) {
+      DelayedAction first = actions.peek();
+      if (armed || first == null) {
+        return true;
+      }
+      long due = first.due;
+      try {
+        scheduler.schedule(
+          new CommonPoolRunnable(() -> drain(due), executor),
+          Math.max(0L, due - now),
+          TimeUnit.NANOSECONDS
+        );
+      } catch (RejectedExecutionException e) {
+        log.debug("Could not schedule delayed actions", e);
+        return false;
+      }
+      armed = true;
+      return true;
+    }
+
+    private void drain(long due) {
+      // The timer fired, so the clock has reached the due time even if it is coarser than the scheduler
+      long clock = nanoClock.getAsLong();
+      long now = clock - due > 0L ? clock : due;
+      List<DelayedAction> dueActions = new ArrayList<>();
+      synchronized (this) {
+        for (DelayedAction first = actions.peek(); first != null && first.due - now <= 0L; first = actions.peek()) {
+          dueActions.add(actions.poll());
+        }
+      }
+      // The timer is armed for the next actions only after these were sent, so they stay in order
+      dueActions.forEach(DelayedAction::run);
+      boolean scheduled;
+      synchronized (this) {
+        armed = false;
+        scheduled = arm(now);
+      }
+      if (!scheduled) {
+        pollAll().forEach(RateLimiter.this::drop);
+      }
+    }
+
+    private void sendAll() {
+      pollAll().forEach(DelayedAction::run);
+    }
+
+    private synchronized List<DelayedAction> pollAll() {
+      List<DelayedAction> polled = new ArrayList<>(actions.size());
+      for (DelayedAction delayed = actions.poll(); delayed != null; delayed = actions.poll()) {
+        polled.add(delayed);
+      }
+      return polled;
+    }
+
+    /**
+     * @return true if the queue is empty and was retired
+     */
+    private synchronized boolean retire() {
+      retired = actions.isEmpty();
+      return retired;
+    }
+
+  }
+
+  private static final class DelayedAction implements Runnable {
+
+    private final Action action;
+
+    private final Function<Action, CompletableFuture<Void>> send;
+
+    /**
+     * The time at which the tokens of the action are available
+     */
+    private final long due;
+
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+    private DelayedAction(Action action, Function<Action, CompletableFuture<Void>> send, long due) {
+      this.action = action;
+      this.send = send;
+      this.due = due;
+    }
+
+    @Override
+    public void run() {
+      send.apply(action).whenComplete((result, throwable) -> {
+        if (throwable == null) {
+          future.complete(result);
+        } else {
+          future.completeExceptionally(RetryScheduler.unwrap(throwable));
+        }
+      });
+    }
+
+  }
+
+}
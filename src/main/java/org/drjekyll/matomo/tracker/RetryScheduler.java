@@ -0,0 +1,208 @@
+package org.drjekyll.matomo.tracker;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Retries failed bulk requests with exponential backoff and full jitter. Retries are limited by a budget that is
+ * refilled by every bulk request, so an unavailable endpoint does not receive more than a fraction of additional load.
+ */
+@Slf4j
+class RetryScheduler {
+
+  /**
+   * The budget is kept in thousandths of a retry to allow fractional deposits without floating point arithmetic.
+   */
+  private static final long TOKEN = 1000L;
+
+  private static final long MIN_TOKENS = 10L * TOKEN;
+
+  private static final long MAX_TOKENS = 100L * TOKEN;
+
+  private final TrackerConfiguration trackerConfiguration;
+
+  private final ScheduledExecutorService scheduler;
+
+  private final Executor executor;
+
+  private final long deposit;
+
+  private final AtomicLong tokens = new AtomicLong(MIN_TOKENS);
+
+  RetryScheduler(
+    TrackerConfiguration trackerConfiguration, ScheduledExecutorService scheduler, Executor executor
+  ) {
+    this.trackerConfiguration = trackerConfiguration;
+    this.scheduler = scheduler;
+    this.executor = executor;
+    deposit = Math.max(0L, Math.round(trackerConfiguration.getRetryBudget() * TOKEN));
+  }
+
+  /**
+   * Waits for the given attempt and retries failed attempts using the call. The returned future completes
+   * exceptionally with the last failure if the failure was permanent, all attempts failed, the budget is exhausted or
+   * the retry could not be scheduled, e.g. because the tracker was closed. It completes exceptionally with the
+   * exception of the call if the call throws one.
+   *
+   * @param firstAttempt The first attempt that was already started
+   * @param call         Starts another attempt
+   * @return A future that completes if an attempt succeeded
+   */
+  <T> CompletableFuture<T> retry(CompletableFuture<T> firstAttempt, Supplier<CompletableFuture<T>> call) {
+    tokens.accumulateAndGet(deposit, (current, added) -> Math.min(MAX_TOKENS, current + added));
+    CompletableFuture<T> result = new CompletableFuture<>();
+    handle(firstAttempt, 1, call, result);
+    return result;
+  }
+
+  private <T> void handle(
+    CompletableFuture<T> attempt,
+    int attempts,
+    Supplier<CompletableFuture<T>> call,
+    CompletableFuture<T> result
+  ) {
+    attempt.whenComplete((value, throwable) -> {
+      if (throwable == null) {
+        result.complete(value);
+        return;
+      }
+      Throwable cause = unwrap(throwable);
+      if (!isRetryable(cause) || attempts >= trackerConfiguration.getMaxAttempts() || !acquireToken()) {
+        result.completeExceptionally(cause);
+        return;
+      }
+      long delay = backoff(attempts, cause);
+      log.debug("Retrying bulk request in {} ms after {} failed attempts", delay, attempts);
+      try {
+        scheduler.schedule(() -> {
+          try {
+            executor.execute(() -> attempt(attempts + 1, call, result));
+          } catch (RejectedExecutionException e) {
+            log.debug("Could not execute retry", e);
+            result.completeExceptionally(cause);
+          }
+        }, delay, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        log.debug("Could not schedule retry", e);
+        result.completeExceptionally(cause);
+      }
+    });
+  }
+
+  private <T> void attempt(int attempts, Supplier<CompletableFuture<T>> call, CompletableFuture<T> result) {
+    CompletableFuture<T> attempt;
+    try {
+      attempt = call.get();
+    } catch (RuntimeException e) {
+      result.completeExceptionally(e);
+      return;
+    }
+    handle(attempt, attempts, call, result);
+  }
+
+  private boolean acquireToken() {
+    long current;
+    do {
+      current = tokens.get();
+      if (current < TOKEN) {
+        log.debug("Retry budget exhausted");
+        return false;
+      }
+    } while (!tokens.compareAndSet(current, current - TOKEN));
+    return true;
+  }
+
+  /**
+   * Computes the delay before the next attempt: a random value between zero and the exponentially growing bound (full
+   * jitter), but at least the delay requested by the endpoint.
+   */
+  long backoff(int attempts, Throwable cause) {
+    long initial = trackerConfiguration.getRetryInitialBackoff().toMillis();
+    long max = trackerConfiguration.getRetryMaxBackoff().toMillis();
+    long bound = initial << Math.min(attempts - 1, 30);
+    if (bound < 0L || bound > max) {
+      bound = max;
+    }
+    long delay = bound <= 0L ? 0L : ThreadLocalRandom.current().nextLong(bound + 1L);
+    if (cause instanceof TrackingFailedException) {
+      Duration retryAfter = ((TrackingFailedException) cause).getRetryAfter();
+      if (retryAfter != null) {
+        delay = Math.max(delay, Math.min(retryAfter.toMillis(), max));
+      }
+    }
+    return delay;
+  }
+
+  /**
+   * Connection errors, timeouts, throttling and server errors are transient. Any other client error will fail again.
+   */
+  static boolean isRetryable(Throwable cause) {
+    if (cause instanceof ConnectionFailedException) {
+      return true;
+    }
+    if (cause instanceof TrackingFailedException) {
+      int responseCode = ((TrackingFailedException) cause).getResponseCode();
+      return responseCode == 408 || responseCode == 429 || responseCode > 499;
+    }
+    return false;
+  }
+
+  /**
+   * The endpoint rejected the bulk request with a client error, so sending the same queries again will fail again.
+   */
+  static boolean isPermanent(Throwable cause) {
+    if (cause instanceof TrackingFailedException) {
+      int responseCode = ((TrackingFailedException) cause).getResponseCode();
+      return responseCode > 399 && responseCode < 500 && !isRetryable(cause);
+    }
+    return false;
+  }
+
+  static Throwable unwrap(Throwable throwable) {
+    if (throwable instanceof CompletionException && throwable.getCause() != null) {
+      return throwable.getCause();
+    }
+    return throwable;
+  }
+
+  /**
+   * Parses the value of a {@code Retry-After} header, which is either a number of seconds or an HTTP date
+   */
+  @Nullable
+  static Duration parseRetryAfter(@Nullable String value) {
+    if (Strings.isEmpty(value)) {
+      return null;
+    }
+    String trimmed = value.trim();
+    try {
+      return Duration.ofSeconds(Math.max(0L, Long.parseLong(trimmed)));
+    } catch (NumberFormatException e) {
+      try {
+        Duration duration = Duration.between(
+          ZonedDateTime.now(),
+          ZonedDateTime.parse(trimmed, DateTimeFormatter.RFC_1123_DATE_TIME)
+        );
+        return duration.isNegative() ? Duration.ZERO : duration;
+      } catch (DateTimeParseException ex) {
+        log.debug("Ignoring invalid Retry-After header {}", value);
+        return null;
+      }
+    }
+  }
+
+}
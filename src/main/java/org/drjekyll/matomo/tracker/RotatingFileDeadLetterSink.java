@@ -0,0 +1,98 @@
+package org.drjekyll.matomo.tracker;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Appends rejected queries to {@code dead-letters.log} in a directory. Each line consists of the time, the reason and
+ * the query as passed to the sink, separated by tabs. The file is plain text, so a {@code token_auth} parameter is
+ * removed from the query. If the file exceeds its maximum size, it is renamed to {@code dead-letters.log.1}, older
+ * files are shifted and the oldest one is deleted.
+ */
+@Slf4j
+class RotatingFileDeadLetterSink implements DeadLetterSink {
+
+  private static final String FILE_NAME = "dead-letters.log";
+
+  private final Path directory;
+
+  private final Path file;
+
+  private final long maxFileSize;
+
+  private final int maxFiles;
+
+  private long size;
+
+  RotatingFileDeadLetterSink(TrackerConfiguration trackerConfiguration) {
+    this(
+      trackerConfiguration.getDeadLetterDirectory(),
+      trackerConfiguration.getDeadLetterMaxFileSize(),
+      trackerConfiguration.getDeadLetterMaxFiles()
+    );
+  }
+
+  RotatingFileDeadLetterSink(Path directory, long maxFileSize, int maxFiles) {
+    this.directory = directory;
+    file = directory.resolve(FILE_NAME);
+    this.maxFileSize = maxFileSize;
+    this.maxFiles = Math.max(0, maxFiles);
+    try {
+      Files.createDirectories(directory);
+      size = Files.exists(file) ? Files.size(file) : 0L;
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not open dead letter file in " + directory, e);
+    }
+  }
+
+  @Override
+  public synchronized void accept(String query, Throwable reason) {
+    String stripped = QueryCreator.withoutTokenAuth(query);
+    byte[] line = (Instant.now() + "\t" + singleLine(reason) + '\t' + stripped + '\n')
+      .getBytes(StandardCharsets.UTF_8);
+    try {
+      if (size > 0L && size + line.length > maxFileSize) {
+        rotate();
+      }
+      Files.write(file, line, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+      size += line.length;
+    } catch (IOException e) {
+      log.error("Could not write dead letter to {}: {}", file, stripped, e);
+    }
+  }
+
+  private static String singleLine(Throwable reason) {
+    String description = reason.getMessage() == null ? reason.getClass().getName()
+      : reason.getClass().getSimpleName() + ": " + reason.getMessage();
+    return description.replace('\t', ' ').replace('\r', ' ').replace('\n', ' ');
+  }
+
+  private void rotate() throws IOException {
+    if (maxFiles == 0) {
+      Files.deleteIfExists(file);
+    } else {
+      Files.deleteIfExists(rotated(maxFiles));
+      for (int i = maxFiles - 1; i > 0; i--) {
+        Path source = rotated(i);
+        if (Files.exists(source)) {
+          Files.move(source, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+        }
+      }
+      Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+    }
+    size = 0L;
+  }
+
+  private Path rotated(int index) {
+    return directory.resolve(FILE_NAME + '.' + index);
+  }
+
+}
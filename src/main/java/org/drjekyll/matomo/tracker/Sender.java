@@ -1,143 +1,1065 @@
 package org.drjekyll.matomo.tracker;
 
-import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Authenticator;
-import java.net.HttpURLConnection;
-import java.net.InetSocketAddress;
-import java.net.ProtocolException;
-import java.net.Proxy;
-import java.nio.charset.StandardCharsets;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.annotation.Nullable;
 
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Queues the actions of an endpoint and sends them as bulk requests. The actions are distributed over lanes by their
+ * visitor. Each lane has at most one bulk request in flight, so the actions of a visitor are sent in order while the
+ * lanes send their bulk requests in parallel. With priority lanes, each {@link ActionPriority} has lanes of its own.
+ * With {@link BackpressurePolicy#DROP_BY_PRIORITY}, the lanes are grouped by priority as well, so the oldest action of
+ * the lowest priority is always at the head of a lane.
+ *
+ * <p>If the endpoint rejects a bulk request because of its content, the batch is bisected: both halves are sent
+ * separately, the rejected ones are split further until the rejected queries are isolated. A single rejected query
+ * among n queries thereby costs about 2 log2(n) additional bulk requests. Isolated queries are passed to the dead letter
+ * sink.</p>
+ *
+ * <p>With deferred encoding, the actions are queued as they are. The next batch of a lane is encoded when it is flushed,
+ * as are queries that are spooled or logged before they were sent.</p>
+ */
 @Slf4j
-@RequiredArgsConstructor
 class Sender {
 
   private final TrackerConfiguration trackerConfiguration;
 
   private final QueryCreator queryCreator;
 
-  private final Collection<String> queries = new ArrayList<>(16);
+  /**
+   * Encodes the actions when they are flushed, null if they are encoded when they are queued
+   */
+  @Nullable
+  private final BatchEncoder encoder;
 
-  private final Executor executor;
+  private final HttpSender httpSender;
 
-  CompletableFuture<Void> send(Action action) {
-    synchronized (queries) {
-      String query = queryCreator.createQuery(action);
-      queries.add(query);
+  private final QueueLimit limit;
+
+  /**
+   * The limits of the priorities by their ordinal, null for priorities without a limit of their own
+   */
+  private final QueueLimit[] priorityLimits = new QueueLimit[ActionPriority.values().length];
+
+  /**
+   * Grouped by priority if priority lanes or {@link BackpressurePolicy#DROP_BY_PRIORITY} are enabled, the lanes of the
+   * lowest priority first
+   */
+  private final Lane[] lanes;
+
+  private final int lanesPerPriority;
+
+  /**
+   * Whether any lane uses {@link BackpressurePolicy#BLOCK}
+   */
+  private final boolean blocking;
+
+  private final Executor immediateExecutor;
+
+  private final ScheduledExecutorService scheduler;
+
+  private final RetryScheduler retryScheduler;
+
+  @Nullable
+  private final Spool spool;
+
+  @Nullable
+  private final DeadLetterSink deadLetterSink;
+
+  private final CircuitBreaker circuitBreaker;
+
+  private final AdaptiveBatching batching;
+
+  private final LongAdder droppedActions = new LongAdder();
+
+  /**
+   * Set while a spill of the queued queries to the spool is scheduled or running
+   */
+  private final AtomicBoolean spillArmed = new AtomicBoolean();
+
+  /**
+   * Set while a flush of all lanes is scheduled for when the circuit breaker lets a probe request through
+   */
+  private final AtomicBoolean probeFlushArmed = new AtomicBoolean();
+
+  /**
+   * Producers blocked by {@link BackpressurePolicy#BLOCK} wait on this monitor until permits are released
+   */
+  private final Object space = new Object();
+
+  /**
+   * Set while the tracker waits for the queries to be sent, releasing permits then notifies the waiting thread
+   */
+  private volatile boolean closing;
+
+  /**
+   * Called after a bulk request failed and its queries were kept in memory, e.g. to hand them over to another endpoint
+   */
+  @Nullable
+  private volatile Runnable failover;
+
+  Sender(
+    TrackerConfiguration trackerConfiguration,
+    QueryCreator queryCreator,
+    HttpSender httpSender,
+    Executor executor,
+    Executor immediateExecutor,
+    ScheduledExecutorService scheduler,
+    @Nullable Spool spool,
+    @Nullable DeadLetterSink deadLetterSink,
+    AdaptiveBatching batching
+  ) {
+    this.trackerConfiguration = trackerConfiguration;
+    this.queryCreator = queryCreator;
+    encoder = trackerConfiguration.isDeferredEncoding()
+      ? new BatchEncoder(trackerConfiguration, queryCreator, immediateExecutor) : null;
+    this.httpSender = httpSender;
+    this.immediateExecutor = immediateExecutor;
+    this.scheduler = scheduler;
+    retryScheduler = new RetryScheduler(trackerConfiguration, scheduler, immediateExecutor);
+    this.spool = spool;
+    this.deadLetterSink = deadLetterSink;
+    circuitBreaker = new CircuitBreaker(trackerConfiguration);
+    this.batching = batching;
+    limit = new QueueLimit(trackerConfiguration.getMaxQueueSize(), trackerConfiguration.getMaxQueueBytes());
+    lanesPerPriority = Math.max(1, trackerConfiguration.getLanes());
+    if (trackerConfiguration.isPriorityLanes()) {
+      ActionPriority[] priorities = ActionPriority.values();
+      lanes = new Lane[priorities.length * lanesPerPriority];
+      for (ActionPriority priority : priorities) {
+        Integer maxQueueSize = trackerConfiguration.getPriorityMaxQueueSizes().get(priority);
+        if (maxQueueSize != null) {
+          priorityLimits[priority.ordinal()] = new QueueLimit(maxQueueSize, Long.MAX_VALUE);
+        }
+        Executor delayedExecutor = delayedExecutor(priority, executor, immediateExecutor, scheduler);
+        BackpressurePolicy policy = trackerConfiguration.getPriorityBackpressurePolicies()
+          .getOrDefault(priority, trackerConfiguration.getBackpressurePolicy());
+        for (int i = 0; i < lanesPerPriority; i++) {
+          lanes[priority.ordinal() * lanesPerPriority + i] = new Lane(
+            trackerConfiguration.getMaxQueueSize(),
+            priority.ordinal(),
+            delayedExecutor,
+            policy
+          );
+        }
+      }
+    } else {
+      // Evicting an action of a lower priority only polls the lanes of that priority
+      int groups = trackerConfiguration.getBackpressurePolicy() == BackpressurePolicy.DROP_BY_PRIORITY
+        ? ActionPriority.values().length : 1;
+      lanes = new Lane[groups * lanesPerPriority];
+      for (int i = 0; i < lanes.length; i++) {
+        lanes[i] = new Lane(
+          trackerConfiguration.getMaxQueueSize(),
+          i / lanesPerPriority,
+          executor,
+          trackerConfiguration.getBackpressurePolicy()
+        );
+      }
     }
-    return CompletableFuture.supplyAsync(this::sendRequest, executor);
+    boolean anyBlocking = false;
+    for (Lane lane : lanes) {
+      anyBlocking |= lane.policy == BackpressurePolicy.BLOCK;
+    }
+    blocking = anyBlocking;
   }
 
-  private Void sendRequest() {
-    synchronized (queries) {
-      if (!queries.isEmpty()) {
-        HttpURLConnection connection = openConnection();
-        prepareConnection(connection);
-        log.debug("Sending bulk request using URI {} asynchronously", trackerConfiguration.getApiEndpoint());
-        OutputStream outputStream = null;
+  private Executor delayedExecutor(
+    ActionPriority priority, Executor executor, Executor immediateExecutor, ScheduledExecutorService scheduler
+  ) {
+    Duration delay = trackerConfiguration.getPriorityDelays().get(priority);
+    if (delay == null) {
+      if (priority == ActionPriority.NORMAL) {
+        return executor;
+      }
+      delay = priority == ActionPriority.HIGH ? Duration.ZERO : trackerConfiguration.getDelay().multipliedBy(5L);
+    }
+    if (delay.isZero() || delay.isNegative()) {
+      return immediateExecutor;
+    }
+    long delayInMillis = delay.toMillis();
+    return new DelayedExecutor(scheduler, immediateExecutor, () -> delayInMillis);
+  }
+
+  /**
+   * Queues the action and schedules a bulk request
+   *
+   * @return A future that completes when the bulk request containing the action completed
+   */
+  CompletableFuture<Void> send(Action action) {
+    ActionPriority priority = ActionPriority.of(action);
+    Lane lane = laneOf(action, priority);
+    QueuedQuery queued = encoder == null ? new QueuedQuery(queryCreator.createQuery(action), priority)
+      : new QueuedQuery(action, priority, encoder.getEstimatedSize());
+    if (!enqueue(lane, queued)) {
+      return queued.getFuture();
+    }
+    if (spool != null && queuedBytes() >= trackerConfiguration.getSpillThreshold()
+      && spillArmed.compareAndSet(false, true)) {
+      // Writing to the spool waits for the disk, so the spill at the threshold is not done by the tracking thread. Only
+      // a full queue is spilled by the tracking thread with the SPILL policy, see enqueue().
+      immediateExecutor.execute(() -> {
         try {
-          connection.connect();
-          outputStream = connection.getOutputStream();
-          outputStream.write(createPayload());
-          outputStream.flush();
-          if (connection.getResponseCode() > 399) {
-            if (trackerConfiguration.isLogFailedTracking()) {
-              log.error("Received error code {}", connection.getResponseCode());
-            }
-            throw new TrackingFailedException("Tracking endpoint responded with code " + connection.getResponseCode());
-          }
-          queries.clear();
-        } catch (IOException e) {
-          throw new ConnectionFailedException(e);
+          spill();
         } finally {
-          if (outputStream != null) {
-            try {
-              outputStream.close();
-            } catch (IOException e) {
-              // ignore
+          spillArmed.set(false);
+        }
+      });
+    }
+    if (!lane.inFlight) {
+      // Otherwise the lane is flushed as soon as the bulk request in flight completed
+      schedule(lane, isBatchFull(lane));
+    }
+    return queued.getFuture();
+  }
+
+  /**
+   * Arms at most one delayed and one immediate flush per lane, no matter how many actions are tracked in the meantime.
+   * The flag is cleared before the flush drains the queue, so an action queued afterwards arms the next flush.
+   */
+  private void schedule(Lane lane, boolean immediately) {
+    if (immediately) {
+      if (lane.immediateFlushArmed.compareAndSet(false, true)) {
+        log.debug("Batch limit reached, sending bulk request immediately");
+        immediateExecutor.execute(() -> {
+          lane.immediateFlushArmed.set(false);
+          flush(lane);
+        });
+      }
+    } else if (lane.delayedFlushArmed.compareAndSet(false, true)) {
+      lane.delayedExecutor.execute(() -> {
+        lane.delayedFlushArmed.set(false);
+        flush(lane);
+      });
+    }
+  }
+
+  private Lane laneOf(Action action, ActionPriority priority) {
+    int offset = lanes.length == lanesPerPriority ? 0 : priority.ordinal() * lanesPerPriority;
+    if (lanesPerPriority == 1) {
+      return lanes[offset];
+    }
+    long hash = EndpointRouter.hash(EndpointRouter.routingKey(action, trackerConfiguration));
+    return lanes[offset + (int) Math.floorMod(hash, (long) lanesPerPriority)];
+  }
+
+  void setFailover(Runnable failover) {
+    this.failover = failover;
+  }
+
+  /**
+   * Removes the queries that are neither in flight nor read from the spool, so another sender can send them
+   *
+   * @return the removed queries of each lane in their order, by the index of the lane
+   */
+  List<List<QueuedQuery>> takeUnsent() {
+    List<List<QueuedQuery>> taken = new ArrayList<>(lanes.length);
+    for (Lane lane : lanes) {
+      List<QueuedQuery> unsent = new ArrayList<>();
+      synchronized (lane) {
+        lane.queries.drainTo(lane.unsentQueries, lane.queries.size());
+        for (Iterator<QueuedQuery> iterator = lane.unsentQueries.iterator(); iterator.hasNext(); ) {
+          QueuedQuery queued = iterator.next();
+          // Spooled queries have to be acknowledged in the spool of this sender
+          if (queued.getSpooled() == null) {
+            unsent.add(queued);
+            iterator.remove();
+          }
+        }
+      }
+      unsent.forEach(this::release);
+      taken.add(unsent);
+    }
+    return taken;
+  }
+
+  /**
+   * Queues the queries taken from another sender with the same configuration, before the queries that are already
+   * queued, as they were tracked earlier. Queries that exceed the queue limit are dropped.
+   *
+   * @param taken The queries of each lane, see {@link #takeUnsent()}
+   */
+  void adopt(List<List<QueuedQuery>> taken) {
+    for (int i = 0; i < lanes.length; i++) {
+      List<QueuedQuery> adopted = new ArrayList<>(taken.get(i).size());
+      for (QueuedQuery queued : taken.get(i)) {
+        if (acquire(queued)) {
+          adopted.add(queued);
+        } else {
+          drop(queued, new ActionDroppedException("Tracking queue is full"));
+        }
+      }
+      if (!adopted.isEmpty()) {
+        synchronized (lanes[i]) {
+          lanes[i].unsentQueries.addAll(0, adopted);
+        }
+        schedule(lanes[i], true);
+      }
+    }
+  }
+
+  /**
+   * @return the number of actions that were dropped without being sent
+   */
+  long getDroppedActions() {
+    return droppedActions.sum();
+  }
+
+  /**
+   * Sends the spooled queries of a previous run
+   */
+  void replay() {
+    if (spool != null && !spool.isEmpty()) {
+      flushAll();
+    }
+  }
+
+  /**
+   * Sends all queued queries immediately without waiting for the delay
+   */
+  void flush() {
+    flushAll();
+  }
+
+  /**
+   * Waits until all queries held in memory were sent, dropped or spooled
+   *
+   * @param deadline The deadline as {@link System#nanoTime()}
+   * @return true if all queries were sent, false if the deadline passed or the thread was interrupted
+   */
+  boolean awaitSent(long deadline) {
+    closing = true;
+    synchronized (space) {
+      while (limit.count() > 0) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0L) {
+          return false;
+        }
+        try {
+          TimeUnit.NANOSECONDS.timedWait(space, remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Hands the queries that were not sent until the tracker was closed over to the fallback, including the ones of bulk
+   * requests in flight or waiting for a retry. If such a bulk request succeeds afterwards, its spooled queries are sent
+   * again on the next start. Queries that were read from the spool are still in it and replayed on the next start.
+   */
+  void abandon(ShutdownFallback fallback) {
+    // Queries of a failed batch may already be back in the unsent queries while the batch is still in flight
+    Set<QueuedQuery> pending = new LinkedHashSet<>();
+    for (Lane lane : lanes) {
+      synchronized (lane) {
+        lane.queries.drainTo(lane.unsentQueries, lane.queries.size());
+        if (lane.sending != null) {
+          for (QueuedQuery queued : lane.sending) {
+            if (!queued.getFuture().isDone()) {
+              pending.add(queued);
             }
           }
-          connection.disconnect();
         }
+        pending.addAll(lane.unsentQueries);
+        lane.unsentQueries.clear();
+      }
+    }
+    List<QueuedQuery> abandoned = new ArrayList<>(pending.size());
+    List<QueuedQuery> spooled = new ArrayList<>();
+    for (QueuedQuery queued : pending) {
+      (queued.getSpooled() == null ? abandoned : spooled).add(queued);
+    }
+    completeExceptionally(spooled, new ActionSpooledException("Tracker was closed"));
+    encode(abandoned);
+    if (abandoned.isEmpty()) {
+      return;
+    }
+    if (fallback == ShutdownFallback.SPOOL && spool != null) {
+      try {
+        spool.append(queriesOf(abandoned));
+        log.info("Spooled {} queries that were not sent until the tracker was closed", abandoned.size());
+        completeExceptionally(abandoned, new ActionSpooledException("Tracker was closed"));
+        abandoned.forEach(this::release);
+        return;
+      } catch (UncheckedIOException e) {
+        log.error("Could not spool queries that were not sent until the tracker was closed", e);
+      }
+    }
+    if (fallback == ShutdownFallback.LOG) {
+      for (QueuedQuery queued : abandoned) {
+        log.warn(
+          "Query was not sent until the tracker was closed: {}",
+          QueryCreator.withoutTokenAuth(queued.getQuery())
+        );
+      }
+    } else {
+      log.warn("Dropping {} queries that were not sent until the tracker was closed", abandoned.size());
+    }
+    ActionDroppedException reason = new ActionDroppedException("Tracker was closed");
+    abandoned.forEach(queued -> drop(queued, reason));
+  }
+
+  /**
+   * Closes the spool, after the queries were sent or abandoned
+   */
+  void close() {
+    if (spool != null) {
+      spool.close();
+    }
+  }
+
+  private void flushAll() {
+    for (Lane lane : lanes) {
+      schedule(lane, true);
+    }
+  }
+
+  private boolean enqueue(Lane lane, QueuedQuery queued) {
+    if (offer(lane, queued)) {
+      return true;
+    }
+    BackpressurePolicy policy = lane.policy;
+    if (policy == BackpressurePolicy.BLOCK && offerBlocking(lane, queued)
+      || policy == BackpressurePolicy.DROP_OLDEST && offerEvicting(lane, queued, false)
+      || policy == BackpressurePolicy.DROP_BY_PRIORITY && offerEvicting(lane, queued, true)) {
+      return true;
+    }
+    if (policy == BackpressurePolicy.SPILL && spool != null) {
+      // The new action only fits after the queue was written to the spool, so the tracking thread waits for the disk
+      spill();
+      if (offer(lane, queued)) {
+        return true;
+      }
+    }
+    if (trackerConfiguration.isLogFailedTracking()) {
+      log.error("Tracking queue is full, dropping action");
+    }
+    drop(queued, new ActionDroppedException("Tracking queue is full"));
+    return false;
+  }
+
+  private boolean offer(Lane lane, QueuedQuery queued) {
+    if (!acquire(queued)) {
+      return false;
+    }
+    if (!lane.queries.offer(queued)) {
+      release(queued);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Acquires the permits of the query from the queue limits
+   */
+  private boolean acquire(QueuedQuery queued) {
+    QueueLimit priorityLimit = priorityLimits[queued.getPriority().ordinal()];
+    if (priorityLimit != null && !priorityLimit.tryAcquire(queued.getWeight())) {
+      return false;
+    }
+    if (!limit.tryAcquire(queued.getWeight())) {
+      if (priorityLimit != null) {
+        priorityLimit.release(queued.getWeight());
+      }
+      return false;
+    }
+    queued.limit();
+    return true;
+  }
+
+  private boolean offerBlocking(Lane lane, QueuedQuery queued) {
+    long deadline = System.nanoTime() + trackerConfiguration.getBackpressureTimeout().toNanos();
+    flushAll();
+    synchronized (space) {
+      while (!offer(lane, queued)) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0L) {
+          return false;
+        }
+        try {
+          TimeUnit.NANOSECONDS.timedWait(space, remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Drops queued actions, either the oldest ones or the oldest ones with the lowest priority, until the new action
+   * fits into the queue
+   */
+  private boolean offerEvicting(Lane lane, QueuedQuery queued, boolean byPriority) {
+    QueueLimit priorityLimit = priorityLimits[queued.getPriority().ordinal()];
+    if (byPriority && priorityLimit != null && priorityLimit.isFull()) {
+      // Dropping actions of lower priorities does not make room within the limit of the priority
+      return false;
+    }
+    do {
+      QueuedQuery evicted = byPriority ? evictLowerPriority(queued.getPriority()) : evictOldest(lane);
+      if (evicted == null) {
+        return false;
+      }
+      log.debug("Tracking queue is full, dropping queued action with priority {}", evicted.getPriority());
+      drop(evicted, new ActionDroppedException("Dropped in favour of a newer action"));
+    } while (!offer(lane, queued));
+    return true;
+  }
+
+  /**
+   * Evicts the oldest query of the given lane, or of the first other lane of the same priority if it is empty
+   */
+  @Nullable
+  private QueuedQuery evictOldest(Lane lane) {
+    QueuedQuery evicted = lane.queries.poll();
+    int offset = lane.group * lanesPerPriority;
+    for (int i = offset; evicted == null && i < offset + lanesPerPriority; i++) {
+      evicted = lanes[i].queries.poll();
+    }
+    return evicted;
+  }
+
+  /**
+   * Evicts the head of the first non-empty lane of the lowest priority below the given one. The lanes are grouped by
+   * priority, so no lane has to be searched.
+   */
+  @Nullable
+  private QueuedQuery evictLowerPriority(ActionPriority priority) {
+    for (int i = 0; i < priority.ordinal() * lanesPerPriority; i++) {
+      QueuedQuery evicted = lanes[i].queries.poll();
+      if (evicted != null) {
+        return evicted;
+      }
+    }
+    return null;
+  }
+
+  private void drop(QueuedQuery queued, RuntimeException reason) {
+    droppedActions.increment();
+    queued.getFuture().completeExceptionally(reason);
+    release(queued);
+  }
+
+  /**
+   * Returns the permits of the query. Called after its future was completed, as {@link #awaitSent(long)} returns as
+   * soon as all permits were returned.
+   */
+  private void release(QueuedQuery queued) {
+    if (queued.unlimit()) {
+      limit.release(queued.getWeight());
+      QueueLimit priorityLimit = priorityLimits[queued.getPriority().ordinal()];
+      if (priorityLimit != null) {
+        priorityLimit.release(queued.getWeight());
+      }
+      if (closing || blocking) {
+        synchronized (space) {
+          space.notifyAll();
+        }
+      }
+    }
+  }
+
+  private long queuedBytes() {
+    long bytes = 0L;
+    for (Lane lane : lanes) {
+      bytes += lane.queries.weight();
+    }
+    return bytes;
+  }
+
+  private void spill() {
+    for (Lane lane : lanes) {
+      List<QueuedQuery> spilled = new ArrayList<>();
+      lane.queries.drainTo(spilled, lane.queries.size());
+      encode(spilled);
+      if (!spilled.isEmpty()
+        && toSpool(lane, spilled, new ActionSpooledException("Tracking queue was moved to the spool"))) {
+        log.debug("Moved {} queued queries to the spool", spilled.size());
       }
-      return null;
     }
   }
 
-  private HttpURLConnection openConnection() {
+  /**
+   * Spools the queries and completes their futures with the given reason
+   *
+   * @return true if the queries were spooled, false if they were kept in memory
+   */
+  private boolean toSpool(Lane lane, List<QueuedQuery> batch, Throwable reason) {
+    List<String> queries = new ArrayList<>(batch.size());
+    List<Spool.PolledRecord> spooled = new ArrayList<>();
+    for (QueuedQuery queued : batch) {
+      if (queued.getSpooled() == null) {
+        queries.add(queued.getQuery());
+      } else {
+        spooled.add(queued.getSpooled());
+      }
+    }
     try {
-      if (isEmpty(trackerConfiguration.getProxyHost()) || trackerConfiguration.getProxyPort() <= 0) {
-        log.debug("Proxy host or proxy port not configured. Will create connection without proxy");
-        return (HttpURLConnection) trackerConfiguration.getApiEndpoint().toURL().openConnection();
+      if (!queries.isEmpty()) {
+        spool.append(queries);
       }
-      InetSocketAddress proxyAddress = new InetSocketAddress(
-        trackerConfiguration.getProxyHost(),
-        trackerConfiguration.getProxyPort()
-      );
-      Proxy proxy = new Proxy(Proxy.Type.HTTP, proxyAddress);
-      if (!isEmpty(trackerConfiguration.getProxyUserName()) && !isEmpty(trackerConfiguration.getProxyPassword())) {
-        Authenticator.setDefault(new ProxyAuthenticator(
-          trackerConfiguration.getProxyUserName(),
-          trackerConfiguration.getProxyPassword()
-        ));
+    } catch (UncheckedIOException e) {
+      log.error("Could not spool queries, keeping them in memory", e);
+      synchronized (lane) {
+        lane.unsentQueries.addAll(0, batch);
+      }
+      return false;
+    }
+    // Queries read from the spool are still in it, they are polled again before the newer ones
+    spool.requeue(spooled);
+    completeExceptionally(batch, reason);
+    batch.forEach(this::release);
+    return true;
+  }
+
+  /**
+   * Removes the queries that were read from the spool from it, as they were sent or dropped
+   */
+  private void acknowledge(Collection<QueuedQuery> batch) {
+    if (spool == null) {
+      return;
+    }
+    List<Spool.PolledRecord> spooled = new ArrayList<>();
+    for (QueuedQuery queued : batch) {
+      if (queued.getSpooled() != null) {
+        spooled.add(queued.getSpooled());
+      }
+    }
+    if (!spooled.isEmpty()) {
+      spool.acknowledge(spooled);
+    }
+  }
+
+  /**
+   * Encodes the queries that are not encoded yet and removes the ones whose action could not be encoded
+   */
+  private void encode(List<QueuedQuery> queries) {
+    if (encoder == null) {
+      return;
+    }
+    encoder.encode(queries, (queued, reason) -> {
+      if (trackerConfiguration.isLogFailedTracking()) {
+        log.error("Could not encode action, dropping it", reason);
+      }
+      drop(queued, reason);
+    });
+    queries.removeIf(queued -> !queued.isEncoded());
+  }
+
+  private static List<String> queriesOf(Collection<QueuedQuery> batch) {
+    List<String> queries = new ArrayList<>(batch.size());
+    for (QueuedQuery queued : batch) {
+      queries.add(queued.getQuery());
+    }
+    return queries;
+  }
+
+  private static void completeExceptionally(Collection<QueuedQuery> batch, Throwable throwable) {
+    for (QueuedQuery queued : batch) {
+      queued.getFuture().completeExceptionally(throwable);
+    }
+  }
+
+  private boolean isBatchFull(Lane lane) {
+    return lane.queries.size() >= batching.getBatchSize()
+      || lane.queries.weight() >= trackerConfiguration.getMaxBatchBytes();
+  }
+
+  /**
+   * Sends the next batch of the lane unless a bulk request of the lane is still in flight
+   */
+  private void flush(Lane lane) {
+    List<QueuedQuery> batch;
+    // Only flushing threads synchronize here, producers just append to the lock-free queue
+    synchronized (lane) {
+      lane.queries.drainTo(lane.unsentQueries, lane.queries.size());
+      if (lane.inFlight) {
+        // The lane is flushed again as soon as the bulk request in flight completed
+        return;
+      }
+      CircuitBreaker.State state = circuitBreaker.acquire();
+      if (state == CircuitBreaker.State.OPEN) {
+        shortCircuit(lane);
+        if (!lane.unsentQueries.isEmpty() || spool != null && !spool.isEmpty()) {
+          // The kept and spooled queries are sent without waiting for new actions
+          scheduleProbe();
+        }
+        return;
+      }
+      if (spool != null && !spool.isEmpty()) {
+        // Spooled queries are older than the queued ones, one batch is sent per flush
+        pollSpool(lane);
+      }
+      int maxBatchSize = batching.getBatchSize();
+      if (state == CircuitBreaker.State.HALF_OPEN) {
+        // Only a single probe is sent until the endpoint is known to be available again
+        maxBatchSize = Math.min(maxBatchSize, trackerConfiguration.getCircuitBreakerProbeBatchSize());
+      }
+      if (encoder != null) {
+        // The batch cannot be sized before its queries are encoded
+        encodeBatch(lane, maxBatchSize);
+      }
+      if (lane.unsentQueries.isEmpty()) {
+        if (state == CircuitBreaker.State.HALF_OPEN) {
+          circuitBreaker.cancelProbe();
+        }
+        return;
+      }
+      int batchSize = nextBatchSize(lane, maxBatchSize);
+      List<QueuedQuery> unsentBatch = lane.unsentQueries.subList(0, batchSize);
+      batch = new ArrayList<>(unsentBatch);
+      unsentBatch.clear();
+      lane.inFlight = true;
+      lane.sending = batch;
+    }
+    // Blocking senders only block this thread, the other lanes are flushed by other threads in the meantime
+    sendBatch(lane, batch);
+  }
+
+  /**
+   * Handles the unsent queries according to the configured policy without sending them
+   */
+  private void shortCircuit(Lane lane) {
+    if (lane.unsentQueries.isEmpty()) {
+      return;
+    }
+    List<QueuedQuery> pending = new ArrayList<>(lane.unsentQueries);
+    CircuitOpenPolicy policy = trackerConfiguration.getCircuitOpenPolicy();
+    if (policy == CircuitOpenPolicy.DROP) {
+      if (trackerConfiguration.isLogFailedTracking()) {
+        log.error("Circuit breaker is open, dropping {} queries", pending.size());
+      }
+      lane.unsentQueries.clear();
+      ActionDroppedException reason = new ActionDroppedException("Circuit breaker is open");
+      pending.forEach(queued -> drop(queued, reason));
+      acknowledge(pending);
+      return;
+    }
+    if (policy == CircuitOpenPolicy.SPOOL && spool != null) {
+      lane.unsentQueries.clear();
+      encode(pending);
+      toSpool(lane, pending, new CircuitOpenException("Circuit breaker is open"));
+    }
+    // Kept queries are sent once the endpoint is available again, their futures complete then
+  }
+
+  /**
+   * Flushes all lanes as soon as the circuit breaker lets a probe request through
+   */
+  private void scheduleProbe() {
+    if (!probeFlushArmed.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      scheduler.schedule(() -> {
+        probeFlushArmed.set(false);
+        flushAll();
+      }, circuitBreaker.getRemainingOpenNanos(), TimeUnit.NANOSECONDS);
+    } catch (RejectedExecutionException e) {
+      // The tracker is closed
+      probeFlushArmed.set(false);
+      log.debug("Could not schedule probe request", e);
+    }
+  }
+
+  private CompletableFuture<BulkResponse> attempt(List<QueuedQuery> batch) {
+    long start = System.nanoTime();
+    return httpSender.send(queriesOf(batch)).whenComplete((result, throwable) -> {
+      circuitBreaker.record(throwable);
+      long end = System.nanoTime();
+      batching.record(batch.size(), end - start, end - queuedAt(batch), throwable);
+    });
+  }
+
+  /**
+   * @return the time the oldest query was queued. Queries read from the spool count as queued when they were read.
+   */
+  private static long queuedAt(Collection<QueuedQuery> batch) {
+    long queuedAt = Long.MAX_VALUE;
+    for (QueuedQuery queued : batch) {
+      // Compare the differences, System.nanoTime() may overflow
+      if (queuedAt == Long.MAX_VALUE || queued.getQueuedAt() - queuedAt < 0L) {
+        queuedAt = queued.getQueuedAt();
       }
-      return (HttpURLConnection) trackerConfiguration.getApiEndpoint().toURL().openConnection(proxy);
-    } catch (IOException e) {
-      throw new ConnectionFailedException(e);
     }
+    return queuedAt;
   }
 
-  private void prepareConnection(HttpURLConnection connection) {
+  private void pollSpool(Lane lane) {
     try {
-      connection.setRequestMethod("POST");
-    } catch (ProtocolException e) {
-      throw new TrackingFailedException("Could not set request method", e);
+      List<QueuedQuery> spooled = new ArrayList<>();
+      for (Spool.PolledRecord record : spool.poll(batching.getBatchSize(), trackerConfiguration.getMaxBatchBytes())) {
+        spooled.add(new QueuedQuery(record));
+      }
+      lane.unsentQueries.addAll(0, spooled);
+    } catch (UncheckedIOException e) {
+      log.error("Could not read spooled queries", e);
     }
-    connection.setDoOutput(true);
-    connection.setUseCaches(false);
-    connection.setRequestProperty("Accept", "*/*");
-    connection.setRequestProperty("Content-Type", "application/json");
-    connection.setRequestProperty("User-Agent", trackerConfiguration.getUserAgent());
+  }
+
+  private void sendBatch(Lane lane, List<QueuedQuery> batch) {
+    sendBatch(lane, batch, new ArrayDeque<>(0));
+  }
+
+  /**
+   * @param bisected The halves of rejected batches that are sent after this batch, in the order of their queries
+   */
+  private void sendBatch(Lane lane, List<QueuedQuery> batch, Deque<List<QueuedQuery>> bisected) {
+    retryScheduler.retry(attempt(batch), () -> {
+      if (!circuitBreaker.isClosed()) {
+        return CompletableFuture.failedFuture(new CircuitOpenException("Circuit breaker is open"));
+      }
+      return attempt(batch);
+    }).whenComplete((response, throwable) -> {
+      if (throwable == null) {
+        complete(batch, response);
+        sendNext(lane, bisected);
+        return;
+      }
+      Throwable cause = RetryScheduler.unwrap(throwable);
+      if (RetryScheduler.isPermanent(cause)) {
+        if (batch.size() > 1 && isBisectable(cause)) {
+          int half = batch.size() / 2;
+          log.debug("Tracking endpoint rejected {} queries, sending both halves separately", batch.size());
+          bisected.addFirst(new ArrayList<>(batch.subList(half, batch.size())));
+          sendBatch(lane, new ArrayList<>(batch.subList(0, half)), bisected);
+          return;
+        }
+        if (trackerConfiguration.isLogFailedTracking()) {
+          log.error("Dropping {} queries rejected by the tracking endpoint", batch.size(), cause);
+        }
+        for (QueuedQuery queued : batch) {
+          reject(queued, cause);
+        }
+        acknowledge(batch);
+        droppedActions.add(batch.size());
+        sendNext(lane, bisected);
+        return;
+      }
+      List<QueuedQuery> failed = new ArrayList<>(batch);
+      bisected.forEach(failed::addAll);
+      synchronized (lane) {
+        if (spool != null) {
+          // The remaining queries of the lane follow the failed batch, so the actions of each visitor stay in order
+          failed.addAll(lane.unsentQueries);
+          lane.unsentQueries.clear();
+        } else {
+          lane.unsentQueries.addAll(0, failed);
+        }
+      }
+      if (spool != null) {
+        encode(failed);
+        toSpool(lane, failed, cause);
+      }
+      Runnable handOver = failover;
+      if (handOver != null) {
+        // Before the lane is flushed again, so the kept queries are not sent to this endpoint
+        handOver.run();
+      }
+      // Kept queries are sent again after the delay, their futures complete with the outcome of that bulk request
+      completed(lane, false);
+    });
+  }
 
-    if (trackerConfiguration.getConnectTimeout() != null) {
-      connection.setConnectTimeout((int) trackerConfiguration.getConnectTimeout().toMillis());
+  private void sendNext(Lane lane, Deque<List<QueuedQuery>> bisected) {
+    List<QueuedQuery> next = bisected.pollFirst();
+    if (next == null) {
+      // Continue with the next batch as long as the endpoint is available
+      completed(lane, true);
+    } else {
+      sendBatch(lane, next, bisected);
     }
-    if (trackerConfiguration.getSocketTimeout() != null) {
-      connection.setReadTimeout((int) trackerConfiguration.getSocketTimeout().toMillis());
+  }
+
+  /**
+   * Only these client errors are caused by the content of a bulk request. Others, like an invalid token, affect all
+   * queries alike.
+   */
+  private boolean isBisectable(Throwable cause) {
+    int responseCode = ((TrackingFailedException) cause).getResponseCode();
+    return trackerConfiguration.isBisectRejectedBatches()
+      && (responseCode == 400 || responseCode == 413 || responseCode == 422);
+  }
+
+  /**
+   * Completes the future of each query with its outcome as reported by the endpoint. If the endpoint reported invalid
+   * queries without their indices, it is unknown which ones were tracked. They are not sent again, as the tracked ones
+   * would be counted twice.
+   */
+  private void complete(List<QueuedQuery> batch, BulkResponse response) {
+    int invalid = response.getInvalid();
+    if (invalid > 0 && trackerConfiguration.isLogFailedTracking()) {
+      log.error("Tracking endpoint rejected {} of {} queries", invalid, batch.size());
     }
+    if (invalid > 0 && !response.hasInvalidIndices()) {
+      if (response.getTracked() == 0 || invalid >= batch.size()) {
+        ActionRejectedException reason = new ActionRejectedException("Tracking endpoint rejected the action");
+        batch.forEach(queued -> reject(queued, reason));
+      } else {
+        ActionPossiblyRejectedException reason = new ActionPossiblyRejectedException(
+          "Tracking endpoint rejected " + invalid + " of " + batch.size() + " actions without reporting which ones");
+        for (QueuedQuery queued : batch) {
+          queued.getFuture().completeExceptionally(reason);
+          release(queued);
+        }
+      }
+    } else {
+      for (int i = 0; i < batch.size(); i++) {
+        QueuedQuery queued = batch.get(i);
+        if (response.isInvalid(i)) {
+          reject(queued, new ActionRejectedException("Tracking endpoint rejected the action"));
+        } else {
+          queued.getFuture().complete(null);
+          release(queued);
+        }
+      }
+    }
+    acknowledge(batch);
   }
 
-  private byte[] createPayload() {
-    StringBuilder payload = new StringBuilder("{\"requests\":[");
-    Iterator<String> iterator = queries.iterator();
-    while (iterator.hasNext()) {
-      String query = iterator.next();
-      payload.append("\"?").append(query).append('"');
-      if (iterator.hasNext()) {
-        payload.append(',');
+  private void reject(QueuedQuery queued, Throwable reason) {
+    if (deadLetterSink != null) {
+      try {
+        deadLetterSink.accept(QueryCreator.withoutTokenAuth(queued.getQuery()), reason);
+      } catch (RuntimeException e) {
+        log.error("Dead letter sink failed", e);
       }
     }
-    payload.append(']');
-    if (trackerConfiguration.getDefaultTokenAuth() != null) {
-      payload.append(",\"token_auth\":\"").append(trackerConfiguration.getDefaultTokenAuth()).append('"');
+    queued.getFuture().completeExceptionally(reason);
+    release(queued);
+  }
+
+  /**
+   * Flushes the lane again, because the actions tracked while the bulk request was in flight did not schedule a flush
+   *
+   * @param succeeded Whether the endpoint accepted the bulk request. If not, the failed queries are sent again after the
+   *                  delay along with the newly queued ones.
+   */
+  private void completed(Lane lane, boolean succeeded) {
+    boolean unsent;
+    synchronized (lane) {
+      lane.inFlight = false;
+      lane.sending = null;
+      unsent = !lane.unsentQueries.isEmpty() || spool != null && !spool.isEmpty();
+    }
+    boolean queued = !lane.queries.isEmpty();
+    if (succeeded && (unsent || queued)) {
+      schedule(lane, true);
+    } else if (unsent || queued) {
+      // The failed queries are sent again after the delay, not immediately
+      schedule(lane, !unsent && isBatchFull(lane));
+    }
+    if (succeeded && circuitBreaker.isClosed() && probeFlushArmed.compareAndSet(true, false)) {
+      // The probe request succeeded, the other lanes kept their queries while the circuit breaker was open
+      flushAll();
     }
-    payload.append('}');
-    return payload.toString().getBytes(StandardCharsets.UTF_8);
   }
 
-  private static boolean isEmpty(@Nullable String str) {
-    return str == null || str.isEmpty() || str.trim().isEmpty();
+  /**
+   * Encodes the first queries of the lane up to the maximum batch size. Actions that cannot be encoded are dropped, so
+   * the following queries move up and are encoded as well.
+   */
+  private void encodeBatch(Lane lane, int maxBatchSize) {
+    while (true) {
+      int end = Math.min(lane.unsentQueries.size(), maxBatchSize);
+      int start = 0;
+      while (start < end && lane.unsentQueries.get(start).isEncoded()) {
+        start++;
+      }
+      if (start == end) {
+        return;
+      }
+      encode(lane.unsentQueries.subList(start, end));
+    }
+  }
+
+  /**
+   * @return the number of the first unsent queries that fit into a bulk request. Queries that are not encoded yet end
+   * the batch.
+   */
+  private int nextBatchSize(Lane lane, int maxBatchSize) {
+    int batchSize = 0;
+    long batchBytes = 0L;
+    for (QueuedQuery queued : lane.unsentQueries) {
+      if (!queued.isEncoded()) {
+        break;
+      }
+      batchBytes += queued.size();
+      if (batchSize > 0 && (batchSize >= maxBatchSize
+        || batchBytes > trackerConfiguration.getMaxBatchBytes())) {
+        break;
+      }
+      batchSize++;
+    }
+    return batchSize;
+  }
+
+  /**
+   * Queries of the same visitors. Producers append to the lock-free queue, the flushing thread moves them to the unsent
+   * queries while holding the monitor of the lane.
+   */
+  private static final class Lane {
+
+    private final BoundedQueue<QueuedQuery> queries;
+
+    private final List<QueuedQuery> unsentQueries = new ArrayList<>(16);
+
+    private final AtomicBoolean delayedFlushArmed = new AtomicBoolean();
+
+    private final AtomicBoolean immediateFlushArmed = new AtomicBoolean();
+
+    /**
+     * The ordinal of the priority of the lane if the lanes are grouped by priority, otherwise 0
+     */
+    private final int group;
+
+    private final Executor delayedExecutor;
+
+    private final BackpressurePolicy policy;
+
+    /**
+     * Written while holding the monitor of the lane, read by producers without it
+     */
+    private volatile boolean inFlight;
+
+    /**
+     * The batch in flight or waiting for a retry, including the halves of a bisected batch. Guarded by the monitor of
+     * the lane.
+     */
+    @Nullable
+    private List<QueuedQuery> sending;
+
+    private Lane(int capacity, int group, Executor delayedExecutor, BackpressurePolicy policy) {
+      queries = new BoundedQueue<>(capacity, QueuedQuery::getWeight);
+      this.group = group;
+      this.delayedExecutor = delayedExecutor;
+      this.policy = policy;
+    }
+
   }
 
 }
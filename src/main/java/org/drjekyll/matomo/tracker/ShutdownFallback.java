@@ -0,0 +1,25 @@
+package org.drjekyll.matomo.tracker;
+
+/**
+ * Defines what happens to the queued actions that could not be sent until the tracker was closed
+ */
+public enum ShutdownFallback {
+
+  /**
+   * Writes the queries to the spool, so they are sent after the next start. Drops them if no spool directory is
+   * configured.
+   */
+  SPOOL,
+
+  /**
+   * Logs each query with level WARN, so it can be replayed manually, and counts it as dropped. The {@code token_auth}
+   * parameter is removed from the logged queries.
+   */
+  LOG,
+
+  /**
+   * Counts the actions as dropped, see {@link MatomoTracker#getDroppedActions()}
+   */
+  DROP
+
+}
@@ -0,0 +1,508 @@
+package org.drjekyll.matomo.tracker;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nullable;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A durable first-in-first-out queue of queries on the local disk. The spool is an append-only log split into
+ * memory-mapped segment files. Each record consists of its length, a CRC32 checksum and the UTF-8 encoded query.
+ * Polled records are only marked as read by negating their length once they are acknowledged, i.e. the endpoint
+ * received them. Records that could not be sent are requeued at the head of the spool. Segments whose records were all
+ * acknowledged are deleted.
+ *
+ * <p>On startup, the existing segments are scanned and all records that were not acknowledged yet are replayed, so
+ * each query is sent at least once. A record with an invalid checksum, e.g. one that was only partially written during
+ * a crash, ends its segment. A lock file ensures that only one spool uses the directory at a time.</p>
+ */
+@Slf4j
+class Spool {
+
+  private static final Pattern SEGMENT_FILE_NAME = Pattern.compile("matomo-\\d{20}\\.spool");
+
+  private static final String LOCK_FILE_NAME = "matomo.lock";
+
+  private static final int HEADER_SIZE = 8;
+
+  private final Path directory;
+
+  private final int segmentSize;
+
+  private final long maxSize;
+
+  private final SpoolSync sync;
+
+  private final Deque<Segment> segments = new ArrayDeque<>();
+
+  /**
+   * Polled records that could not be sent, polled again before the records of the segments
+   */
+  private final Deque<PolledRecord> requeued = new ArrayDeque<>();
+
+  /**
+   * The number of records that can be polled
+   */
+  private long records;
+
+  private long size;
+
+  @Nullable
+  private FileChannel lock;
+
+  private boolean closed;
+
+  private Spool(Path directory, int segmentSize, long maxSize, SpoolSync sync) {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.maxSize = maxSize;
+    this.sync = sync;
+  }
+
+  /**
+   * Opens the spool in the given directory and replays the records of existing segments
+   */
+  static Spool open(TrackerConfiguration trackerConfiguration, Path directory) {
+    Spool spool = new Spool(
+      directory,
+      trackerConfiguration.getSpoolSegmentSize(),
+      trackerConfiguration.getSpoolMaxSize(),
+      trackerConfiguration.getSpoolSync()
+    );
+    try {
+      spool.lock();
+      spool.replay();
+    } catch (IOException e) {
+      spool.close();
+      throw new UncheckedIOException("Could not open spool in " + directory, e);
+    }
+    return spool;
+  }
+
+  private void lock() throws IOException {
+    Files.createDirectories(directory);
+    FileChannel channel = FileChannel.open(
+      directory.resolve(LOCK_FILE_NAME),
+      StandardOpenOption.CREATE,
+      StandardOpenOption.WRITE
+    );
+    FileLock fileLock;
+    try {
+      fileLock = channel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      // Locked by another tracker of this JVM
+      fileLock = null;
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    if (fileLock == null) {
+      channel.close();
+      throw new IOException("Spool directory is used by another tracker");
+    }
+    lock = channel;
+  }
+
+  private void replay() throws IOException {
+    List<Path> files;
+    try (Stream<Path> stream = Files.list(directory)) {
+      files = stream.filter(file -> SEGMENT_FILE_NAME.matcher(file.getFileName().toString()).matches())
+        .sorted()
+        .collect(Collectors.toList());
+    }
+    for (Path file : files) {
+      Segment segment = Segment.open(file);
+      segments.addLast(segment);
+      records += segment.records;
+      size += segment.capacity();
+    }
+    if (records > 0L) {
+      log.info("Replaying {} spooled queries from {}", records, directory);
+    }
+  }
+
+  synchronized boolean isEmpty() {
+    return records == 0L;
+  }
+
+  /**
+   * @return the number of records that can be polled
+   */
+  synchronized long size() {
+    return records;
+  }
+
+  /**
+   * Appends the queries to the end of the spool. If the spool exceeds its maximum size, the oldest segment is dropped.
+   */
+  synchronized void append(Collection<String> queries) {
+    if (closed) {
+      throw new UncheckedIOException(new IOException("Spool in " + directory + " is closed"));
+    }
+    try {
+      Segment written = null;
+      for (String query : queries) {
+        byte[] bytes = query.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length == 0) {
+          continue;
+        }
+        written = writer(HEADER_SIZE + bytes.length);
+        written.write(bytes);
+        records++;
+        if (sync == SpoolSync.ALWAYS) {
+          written.buffer.force();
+        }
+      }
+      if (sync == SpoolSync.BATCH && written != null) {
+        written.buffer.force();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not write to spool in " + directory, e);
+    }
+  }
+
+  private Segment writer(int recordSize) throws IOException {
+    Segment writer = segments.peekLast();
+    if (writer != null && writer.capacity() - writer.writePosition >= recordSize) {
+      return writer;
+    }
+    if (writer != null && sync != SpoolSync.NONE) {
+      writer.buffer.force();
+    }
+    Segment segment = Segment.create(
+      directory,
+      writer == null ? 0L : writer.sequence + 1L,
+      Math.max(segmentSize, recordSize)
+    );
+    segments.addLast(segment);
+    size += segment.capacity();
+    while (size > maxSize && segments.size() > 1) {
+      Segment oldest = segments.removeFirst();
+      long dropped = oldest.records;
+      for (Iterator<PolledRecord> iterator = requeued.iterator(); iterator.hasNext(); ) {
+        if (iterator.next().segment == oldest) {
+          iterator.remove();
+          dropped++;
+        }
+      }
+      log.warn("Spool exceeds {} bytes, dropping {} queries", maxSize, dropped);
+      records -= dropped;
+      size -= oldest.capacity();
+      oldest.delete();
+    }
+    return segment;
+  }
+
+  /**
+   * Polls the oldest records. They stay in the spool until they are acknowledged or requeued.
+   *
+   * @param maxCount The maximum number of records
+   * @param maxBytes The maximum size of the queries as estimated for a bulk request. At least one record is returned.
+   * @return The records in the order they were appended, requeued records first
+   */
+  synchronized List<PolledRecord> poll(int maxCount, long maxBytes) {
+    List<PolledRecord> polled = new ArrayList<>();
+    long bytes = 0L;
+    while (polled.size() < maxCount) {
+      PolledRecord record = requeued.peekFirst();
+      Segment reader = record == null ? reader() : null;
+      if (record == null && reader == null) {
+        break;
+      }
+      int length = record == null ? reader.buffer.getInt(reader.readPosition) : record.length;
+      if (!polled.isEmpty() && bytes + length + 4L > maxBytes) {
+        break;
+      }
+      polled.add(record == null ? reader.next() : requeued.removeFirst());
+      records--;
+      bytes += length + 4L;
+    }
+    deleteAcknowledgedSegments();
+    return polled;
+  }
+
+  @Nullable
+  private Segment reader() {
+    for (Segment segment : segments) {
+      if (segment.hasNext()) {
+        return segment;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Marks the records as read after they were sent, so they are not replayed after a restart. Records of segments that
+   * were dropped in the meantime are ignored.
+   */
+  synchronized void acknowledge(Collection<PolledRecord> acknowledged) {
+    if (closed) {
+      return;
+    }
+    Set<Segment> written = new LinkedHashSet<>();
+    for (PolledRecord record : acknowledged) {
+      if (record.segment.deleted) {
+        continue;
+      }
+      record.segment.acknowledge(record.position);
+      if (sync == SpoolSync.ALWAYS) {
+        record.segment.buffer.force();
+      }
+      written.add(record.segment);
+    }
+    if (sync == SpoolSync.BATCH) {
+      written.forEach(segment -> segment.buffer.force());
+    }
+    deleteAcknowledgedSegments();
+  }
+
+  /**
+   * Puts polled records that could not be sent back to the head of the spool, so they are polled again before any other
+   * records
+   */
+  synchronized void requeue(List<PolledRecord> unsent) {
+    if (closed) {
+      return;
+    }
+    for (int i = unsent.size() - 1; i >= 0; i--) {
+      PolledRecord record = unsent.get(i);
+      if (!record.segment.deleted) {
+        requeued.addFirst(record);
+        records++;
+      }
+    }
+  }
+
+  private void deleteAcknowledgedSegments() {
+    // The last segment is still written to
+    while (segments.size() > 1) {
+      Segment oldest = segments.peekFirst();
+      if (oldest.hasNext() || oldest.unacknowledged > 0) {
+        return;
+      }
+      segments.removeFirst();
+      size -= oldest.capacity();
+      oldest.delete();
+    }
+  }
+
+  /**
+   * Unmaps the segments and releases the lock of the directory. Records that were polled, but not acknowledged yet, are
+   * replayed by the next spool using the directory.
+   */
+  synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    for (Segment segment : segments) {
+      segment.unmap();
+    }
+    segments.clear();
+    requeued.clear();
+    records = 0L;
+    if (lock != null) {
+      try {
+        lock.close();
+      } catch (IOException e) {
+        log.warn("Could not release lock of spool in {}", directory, e);
+      }
+    }
+  }
+
+  /**
+   * A polled query and its position in the spool
+   */
+  static final class PolledRecord {
+
+    private final Segment segment;
+
+    private final int position;
+
+    private final int length;
+
+    @Getter(AccessLevel.PACKAGE)
+    private final String query;
+
+    private PolledRecord(Segment segment, int position, int length, String query) {
+      this.segment = segment;
+      this.position = position;
+      this.length = length;
+      this.query = query;
+    }
+
+  }
+
+  private static final class Segment {
+
+    private final Path file;
+
+    private final long sequence;
+
+    private final MappedByteBuffer buffer;
+
+    private int readPosition;
+
+    private int writePosition;
+
+    /**
+     * The number of records that were not polled yet
+     */
+    private long records;
+
+    /**
+     * The number of records that were polled, but not acknowledged yet
+     */
+    private long unacknowledged;
+
+    private boolean deleted;
+
+    private Segment(Path file, long sequence, MappedByteBuffer buffer) {
+      this.file = file;
+      this.sequence = sequence;
+      this.buffer = buffer;
+    }
+
+    private static Segment create(Path directory, long sequence, int capacity) throws IOException {
+      Path file = directory.resolve(String.format(Locale.ROOT, "matomo-%020d.spool", sequence));
+      try (FileChannel channel = FileChannel.open(
+        file,
+        StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE
+      )) {
+        return new Segment(file, sequence, channel.map(FileChannel.MapMode.READ_WRITE, 0L, capacity));
+      }
+    }
+
+    private static Segment open(Path file) throws IOException {
+      String fileName = file.getFileName().toString();
+      long sequence = Long.parseLong(fileName.substring(7, fileName.length() - 6));
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        Segment segment = new Segment(file, sequence, channel.map(FileChannel.MapMode.READ_WRITE, 0L, channel.size()));
+        segment.scan();
+        return segment;
+      }
+    }
+
+    private void scan() {
+      int position = 0;
+      while (position + HEADER_SIZE <= capacity()) {
+        int length = buffer.getInt(position);
+        if (length == 0) {
+          break;
+        }
+        int recordLength = Math.abs(length);
+        if (length == Integer.MIN_VALUE || recordLength > capacity() - position - HEADER_SIZE
+          || length > 0 && crc(position + HEADER_SIZE, recordLength) != buffer.getInt(position + 4)) {
+          log.warn("Ignoring corrupt spool records in {} from position {}", file, position);
+          break;
+        }
+        if (length > 0) {
+          records++;
+        }
+        position += HEADER_SIZE + recordLength;
+      }
+      writePosition = position;
+    }
+
+    private int capacity() {
+      return buffer.capacity();
+    }
+
+    private boolean hasNext() {
+      while (readPosition < writePosition) {
+        int length = buffer.getInt(readPosition);
+        if (length > 0) {
+          return true;
+        }
+        readPosition += HEADER_SIZE - length;
+      }
+      return false;
+    }
+
+    private PolledRecord next() {
+      int length = buffer.getInt(readPosition);
+      byte[] bytes = new byte[length];
+      ByteBuffer record = buffer.duplicate();
+      record.position(readPosition + HEADER_SIZE);
+      record.get(bytes);
+      PolledRecord polled = new PolledRecord(this, readPosition, length, new String(bytes, StandardCharsets.UTF_8));
+      readPosition += HEADER_SIZE + length;
+      records--;
+      unacknowledged++;
+      return polled;
+    }
+
+    private void acknowledge(int position) {
+      int length = buffer.getInt(position);
+      if (length > 0) {
+        buffer.putInt(position, -length);
+        unacknowledged--;
+      }
+    }
+
+    private void write(byte[] bytes) {
+      ByteBuffer record = buffer.duplicate();
+      record.position(writePosition + HEADER_SIZE);
+      record.put(bytes);
+      buffer.putInt(writePosition + 4, crc(writePosition + HEADER_SIZE, bytes.length));
+      // The length is written last, so an incomplete record is never visible
+      buffer.putInt(writePosition, bytes.length);
+      writePosition += HEADER_SIZE + bytes.length;
+      records++;
+    }
+
+    private int crc(int position, int length) {
+      ByteBuffer record = buffer.duplicate();
+      record.position(position);
+      record.limit(position + length);
+      CRC32 crc = new CRC32();
+      crc.update(record);
+      return (int) crc.getValue();
+    }
+
+    private void unmap() {
+      deleted = true;
+      MappedBuffers.unmap(buffer);
+    }
+
+    private void delete() {
+      // Unmapped first, some operating systems do not delete mapped files
+      unmap();
+      try {
+        Files.deleteIfExists(file);
+      } catch (IOException e) {
+        log.warn("Could not delete spool segment {}", file, e);
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,24 @@
+package org.drjekyll.matomo.tracker;
+
+/**
+ * Defines when the spool forces its memory-mapped segments to the storage device
+ */
+public enum SpoolSync {
+
+  /**
+   * Forces the segment after every single record. Safest, but slowest.
+   */
+  ALWAYS,
+
+  /**
+   * Forces the segment once after a batch of records was written or sent.
+   */
+  BATCH,
+
+  /**
+   * Leaves writing the pages to the operating system. Records survive a crash of the JVM, but not of the operating
+   * system or a power failure.
+   */
+  NONE
+
+}
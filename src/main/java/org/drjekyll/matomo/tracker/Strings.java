@@ -0,0 +1,15 @@
+package org.drjekyll.matomo.tracker;
+
+import javax.annotation.Nullable;
+
+final class Strings {
+
+  private Strings() {
+    // utility class
+  }
+
+  static boolean isEmpty(@Nullable String str) {
+    return str == null || str.isEmpty() || str.trim().isEmpty();
+  }
+
+}
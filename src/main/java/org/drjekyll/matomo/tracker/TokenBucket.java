@@ -0,0 +1,71 @@
+package org.drjekyll.matomo.tracker;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A lock-free token bucket implemented as generic cell rate algorithm: instead of the number of tokens, only the time
+ * at which the bucket will be full again (the theoretical arrival time) is stored and updated with a single
+ * compare-and-set. Each token moves this time by the interval between two tokens.
+ */
+class TokenBucket {
+
+  private final long intervalNanos;
+
+  private final long capacityNanos;
+
+  private final LongSupplier nanoClock;
+
+  private final AtomicLong theoreticalArrival;
+
+  /**
+   * @param rate     The number of tokens per second
+   * @param capacity The maximum number of tokens, at least one
+   */
+  TokenBucket(double rate, double capacity, LongSupplier nanoClock) {
+    intervalNanos = Math.max(1L, Math.round(1.0E9 / rate));
+    capacityNanos = Math.round(Math.max(1.0, capacity) * intervalNanos);
+    this.nanoClock = nanoClock;
+    theoreticalArrival = new AtomicLong(nanoClock.getAsLong());
+  }
+
+  /**
+   * Takes a token, possibly one that is only available in the future. Future tokens are available in the order they
+   * were reserved: {@code now} plus the returned duration increases with each reservation that has to wait.
+   *
+   * @param now          The current time of the clock of the bucket, read once for all buckets an action needs
+   * @param maxWaitNanos The maximum duration until the token is available
+   * @return 0 if the token is available now, the duration in nanoseconds until the token is available or -1 if no
+   * token is available within the maximum duration
+   */
+  long reserve(long now, long maxWaitNanos) {
+    while (true) {
+      long current = theoreticalArrival.get();
+      // Compare the differences, System.nanoTime() may overflow
+      long next = (current - now > 0L ? current : now) + intervalNanos;
+      long wait = next - now - capacityNanos;
+      if (wait > maxWaitNanos) {
+        return -1L;
+      }
+      if (theoreticalArrival.compareAndSet(current, next)) {
+        return Math.max(0L, wait);
+      }
+    }
+  }
+
+  /**
+   * Returns a reserved token
+   */
+  void release() {
+    theoreticalArrival.addAndGet(-intervalNanos);
+  }
+
+  /**
+   * @return the ratio of available tokens to the capacity, from 0 (exhausted) to 1 (full)
+   */
+  double getFillLevel() {
+    long debt = Math.max(0L, theoreticalArrival.get() - nanoClock.getAsLong());
+    return Math.max(0.0, (double) (capacityNanos - debt) / capacityNanos);
+  }
+
+}
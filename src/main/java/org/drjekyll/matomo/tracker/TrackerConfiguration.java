@@ -1,12 +1,18 @@
 package org.drjekyll.matomo.tracker;
 
 import java.net.URI;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
 
 import javax.annotation.Nullable;
 
 import lombok.Builder;
 import lombok.NonNull;
+import lombok.Singular;
 import lombok.Value;
 
 /**
@@ -21,6 +27,31 @@ public class TrackerConfiguration {
    */
   @NonNull URI apiEndpoint;
 
+  /**
+   * Further Matomo Tracking HTTP API endpoints. The actions are distributed over all endpoints according to the
+   * {@code endpointRouting}. Each endpoint has its own queue, so a slow endpoint does not delay the others.
+   */
+  @Singular
+  List<URI> additionalApiEndpoints;
+
+  /**
+   * Defines how the actions are distributed if additional endpoints are configured.
+   *
+   * <p>Default: {@link EndpointRouting#FAILOVER}</p>
+   */
+  @NonNull
+  @Builder.Default
+  EndpointRouting endpointRouting = EndpointRouting.FAILOVER;
+
+  /**
+   * The interval in which unavailable endpoints are probed if {@link EndpointRouting#FAILOVER} is used.
+   *
+   * <p>Default: 30 seconds</p>
+   */
+  @NonNull
+  @Builder.Default
+  Duration healthCheckInterval = Duration.ofSeconds(30L);
+
   /**
    * The default ID of the website that will be used if not specified explicitly.
    */
@@ -38,12 +69,495 @@ public class TrackerConfiguration {
   @Builder.Default
   Duration delay = Duration.ofSeconds(1L);
 
+  /**
+   * The maximum number of queries that are kept in memory until they are sent, including queries waiting for a retry.
+   * If the queue is full, the {@code backpressurePolicy} decides what happens.
+   *
+   * <p>Default: 100000</p>
+   */
+  @Builder.Default
+  int maxQueueSize = 100000;
+
+  /**
+   * The maximum total size in bytes of the queries that are kept in memory until they are sent. If the queue is full,
+   * the {@code backpressurePolicy} decides what happens.
+   *
+   * <p>Default: 64 MiB</p>
+   */
+  @Builder.Default
+  long maxQueueBytes = 64L * 1024L * 1024L;
+
+  /**
+   * Defines what happens to a new action if the queue is full. With {@link BackpressurePolicy#SPILL},
+   * {@link MatomoTracker#track(Action)} blocks on disk I/O while it writes the full queue to the spool.
+   *
+   * <p>Default: {@link BackpressurePolicy#DROP_NEWEST}</p>
+   */
+  @NonNull
+  @Builder.Default
+  BackpressurePolicy backpressurePolicy = BackpressurePolicy.DROP_NEWEST;
+
+  /**
+   * The maximum duration {@link MatomoTracker#track(Action)} blocks if {@link BackpressurePolicy#BLOCK} is used.
+   *
+   * <p>Default: 1 second</p>
+   */
+  @NonNull
+  @Builder.Default
+  Duration backpressureTimeout = Duration.ofSeconds(1L);
+
+  /**
+   * The maximum number of actions per second tracked by {@link MatomoTracker#track(Action)} for all sites together. 0
+   * disables the global rate limit.
+   *
+   * <p>Default: 0 (disabled)</p>
+   */
+  @Builder.Default
+  double rateLimit = 0.0;
+
+  /**
+   * The maximum number of actions per second tracked for each site that has no rate limit in {@code siteRateLimits}. 0
+   * disables the limit.
+   *
+   * <p>Default: 0 (disabled)</p>
+   */
+  @Builder.Default
+  double defaultSiteRateLimit = 0.0;
+
+  /**
+   * The maximum number of actions per second tracked for specific sites by their ID.
+   */
+  @Singular
+  Map<Integer, Double> siteRateLimits;
+
+  /**
+   * The number of actions that may be tracked at once without exceeding the rate limit, given as the duration the
+   * rate limit needs to refill them. A burst of one second allows as many actions at once as the rate limit allows per
+   * second.
+   *
+   * <p>Default: 1 second</p>
+   */
+  @NonNull
+  @Builder.Default
+  Duration rateLimitBurst = Duration.ofSeconds(1L);
+
+  /**
+   * Defines what happens to an action that exceeds a rate limit.
+   *
+   * <p>Default: {@link RateLimitPolicy#DELAY}</p>
+   */
+  @NonNull
+  @Builder.Default
+  RateLimitPolicy rateLimitPolicy = RateLimitPolicy.DELAY;
+
+  /**
+   * The maximum duration an action is delayed if {@link RateLimitPolicy#DELAY} is used.
+   *
+   * <p>Default: 1 second</p>
+   */
+  @NonNull
+  @Builder.Default
+  Duration rateLimitMaxDelay = Duration.ofSeconds(1L);
+
+  /**
+   * The ratio of the actions exceeding a rate limit that are tracked anyway if {@link RateLimitPolicy#SAMPLE} is used.
+   *
+   * <p>Default: 0.1</p>
+   */
+  @Builder.Default
+  double rateLimitSampleRate = 0.1;
+
+  /**
+   * The maximum number of queries in a single bulk request. If this number of queries is queued, a bulk request will be
+   * sent immediately without waiting for the {@code delay}. Larger batches are split into several bulk requests.
+   *
+   * <p>Default: 1000</p>
+   */
+  @Builder.Default
+  int maxBatchSize = 1000;
+
+  /**
+   * The maximum size of the queries in a single bulk request in bytes. If the queued queries reach this size, a bulk
+   * request will be sent immediately without waiting for the {@code delay}. Larger batches are split into several bulk
+   * requests. A single query that exceeds this size is sent on its own.
+   *
+   * <p>Default: 1 MiB</p>
+   */
+  @Builder.Default
+  long maxBatchBytes = 1024L * 1024L;
+
+  /**
+   * The number of lanes per endpoint. The actions are distributed over the lanes by their visitor ID, user ID or site
+   * ID. Each lane has at most one bulk request in flight, so the actions of a visitor are sent in order, while the lanes
+   * send their bulk requests in parallel. More lanes increase the throughput over high-latency connections.
+   *
+   * <p>Default: 1</p>
+   */
+  @Builder.Default
+  int lanes = 1;
+
+  /**
+   * Queues and sends the actions of each {@link ActionPriority} separately, each priority with its own lanes, delay,
+   * queue size and backpressure policy. Actions of high priority are then neither delayed by floods of page views nor
+   * dropped in favour of them. The actions of a visitor are only sent in order within the same priority.
+   */
+  boolean priorityLanes;
+
+  /**
+   * The delay of each priority if {@code priorityLanes} is enabled. Priorities without a delay use: no delay for
+   * {@link ActionPriority#HIGH}, the {@code delay} for {@link ActionPriority#NORMAL} and five times the {@code delay}
+   * for {@link ActionPriority#LOW}, so heartbeats are batched aggressively.
+   */
+  @Singular
+  Map<ActionPriority, Duration> priorityDelays;
+
+  /**
+   * The maximum number of queries of each priority that are kept in memory if {@code priorityLanes} is enabled, in
+   * addition to the {@code maxQueueSize} for all priorities together. Limiting the low priorities reserves space for
+   * the high ones.
+   */
+  @Singular
+  Map<ActionPriority, Integer> priorityMaxQueueSizes;
+
+  /**
+   * The backpressure policy of each priority if {@code priorityLanes} is enabled. Priorities without a policy use the
+   * {@code backpressurePolicy}. {@link BackpressurePolicy#DROP_OLDEST} only drops actions of the same priority.
+   */
+  @Singular
+  Map<ActionPriority, BackpressurePolicy> priorityBackpressurePolicies;
+
+  /**
+   * Adapts the flush delay and the batch size to the observed bulk requests instead of using the fixed {@code delay}
+   * and {@code maxBatchSize}. The delay shrinks if actions are sparse and grows under load within the configured bounds,
+   * as long as the delivery latency stays below the {@code adaptiveTargetLatency}. Server errors and slow bulk requests
+   * reduce the batch size down to the {@code adaptiveMinBatchSize}. The {@code delay} is the initial delay, the
+   * {@code maxBatchSize} the initial and maximum batch size.
+   */
+  boolean adaptiveBatching;
+
+  /**
+   * The 99th percentile of the duration from tracking an action until it is delivered that adaptive batching aims for.
+   *
+   * <p>Default: 5 seconds</p>
+   */
+  @NonNull
+  @Builder.Default
+  Duration adaptiveTargetLatency = Duration.ofSeconds(5L);
+
+  /**
+   * The minimum delay until queued queries are sent if adaptive batching is enabled.
+   *
+   * <p>Default: 10 milliseconds</p>
+   */
+  @NonNull
+  @Builder.Default
+  Duration adaptiveMinDelay = Duration.ofMillis(10L);
+
+  /**
+   * The maximum delay until queued queries are sent if adaptive batching is enabled.
+   *
+   * <p>Default: 2 seconds</p>
+   */
+  @NonNull
+  @Builder.Default
+  Duration adaptiveMaxDelay = Duration.ofSeconds(2L);
+
+  /**
+   * The minimum number of queries in a single bulk request if adaptive batching is enabled.
+   *
+   * <p>Default: 10</p>
+   */
+  @Builder.Default
+  int adaptiveMinBatchSize = 10;
+
+  /**
+   * The maximum number of attempts to send a bulk request, including the first one. Only connection errors and the
+   * responses 408, 429 and 5xx are retried. Bulk requests rejected with any other 4xx response are dropped. If all
+   * attempts failed, the queries are kept and sent with the next bulk request.
+   *
+   * <p>Default: 1 (no retries)</p>
+   */
+  @Builder.Default
+  int maxAttempts = 1;
+
+  /**
+   * The upper bound of the randomized delay before the first retry. The bound doubles with each further retry until
+   * {@code retryMaxBackoff} is reached. A delay requested by the endpoint with a {@code Retry-After} header takes
+   * precedence if it is longer.
+   *
+   * <p>Default: 1 second</p>
+   */
+  @NonNull
+  @Builder.Default
+  Duration retryInitialBackoff = Duration.ofSeconds(1L);
+
+  /**
+   * The maximum delay before a retry.
+   *
+   * <p>Default: 1 minute</p>
+   */
+  @NonNull
+  @Builder.Default
+  Duration retryMaxBackoff = Duration.ofMinutes(1L);
+
+  /**
+   * The ratio of retries to bulk requests that may be sent. Limits the additional load retries put on an overloaded
+   * endpoint. A small number of retries is always allowed.
+   *
+   * <p>Default: 0.2 (one retry per five bulk requests)</p>
+   */
+  @Builder.Default
+  double retryBudget = 0.2;
+
+  /**
+   * Enables the spool if set. Bulk requests that could not be sent and queries that exceed the {@code spillThreshold}
+   * are written to memory-mapped files in this directory instead of being kept in memory. The spooled queries are sent
+   * before any other queries and stay in the spool until the endpoint received them, so they survive a restart of the
+   * application. Only one tracker can use the directory at a time, it is locked while the tracker is open. The spools
+   * of additional endpoints are kept in subdirectories.
+   */
+  @Nullable
+  Path spoolDirectory;
+
+  /**
+   * The size of a single spool file in bytes. Full files are deleted as soon as all of their queries are sent.
+   *
+   * <p>Default: 16 MiB</p>
+   */
+  @Builder.Default
+  int spoolSegmentSize = 16 * 1024 * 1024;
+
+  /**
+   * The maximum size of all spool files in bytes. If the spool grows larger, the oldest file and the queries in it are
+   * dropped.
+   *
+   * <p>Default: 1 GiB</p>
+   */
+  @Builder.Default
+  long spoolMaxSize = 1024L * 1024L * 1024L;
+
+  /**
+   * Defines when spooled queries are forced to the storage device.
+   *
+   * <p>Default: {@link SpoolSync#BATCH}</p>
+   */
+  @NonNull
+  @Builder.Default
+  SpoolSync spoolSync = SpoolSync.BATCH;
+
+  /**
+   * The size of the queued queries in bytes at which they are moved from memory to the spool. Only used if a spool
+   * directory is set.
+   *
+   * <p>Default: 16 MiB</p>
+   */
+  @Builder.Default
+  long spillThreshold = 16L * 1024L * 1024L;
+
+  /**
+   * Splits a bulk request that was rejected because of its content (HTTP status 400, 413 or 422) into halves and sends
+   * them separately until the rejected queries are isolated. The other queries of the bulk request are delivered, the
+   * isolated ones are passed to the dead letter sink.
+   *
+   * <p>Default: true</p>
+   */
+  @Builder.Default
+  boolean bisectRejectedBatches = true;
+
+  /**
+   * Receives the queries the endpoint rejected, along with the reason. Takes precedence over the
+   * {@code deadLetterDirectory}.
+   */
+  @Nullable
+  DeadLetterSink deadLetterSink;
+
+  /**
+   * Writes the queries the endpoint rejected to rotating files in this directory if set and no
+   * {@code deadLetterSink} is given. Each line contains the time, the reason and the query separated by tabs.
+   */
+  @Nullable
+  Path deadLetterDirectory;
+
+  /**
+   * The size in bytes at which a dead letter file is rotated.
+   *
+   * <p>Default: 10 MiB</p>
+   */
+  @Builder.Default
+  long deadLetterMaxFileSize = 10L * 1024L * 1024L;
+
+  /**
+   * The number of rotated dead letter files to keep in addition to the current one.
+   *
+   * <p>Default: 5</p>
+   */
+  @Builder.Default
+  int deadLetterMaxFiles = 5;
+
+  /**
+   * Enables the circuit breaker. If too many of the recent bulk requests failed because of connection errors, timeouts
+   * or server errors, no further bulk requests are sent for the {@code circuitBreakerOpenDuration}. Afterwards a single
+   * probe request decides whether the endpoint is available again.
+   */
+  boolean circuitBreaker;
+
+  /**
+   * The number of recent bulk requests the failure rate of the circuit breaker is calculated from.
+   *
+   * <p>Default: 20</p>
+   */
+  @Builder.Default
+  int circuitBreakerWindowSize = 20;
+
+  /**
+   * The ratio of failed bulk requests at which the circuit breaker opens.
+   *
+   * <p>Default: 0.5</p>
+   */
+  @Builder.Default
+  double circuitBreakerFailureRate = 0.5;
+
+  /**
+   * The duration the circuit breaker stays open until a probe request is sent.
+   *
+   * <p>Default: 30 seconds</p>
+   */
+  @NonNull
+  @Builder.Default
+  Duration circuitBreakerOpenDuration = Duration.ofSeconds(30L);
+
+  /**
+   * The maximum number of queries in a probe request.
+   *
+   * <p>Default: 10</p>
+   */
+  @Builder.Default
+  int circuitBreakerProbeBatchSize = 10;
+
+  /**
+   * Defines what happens to queued queries while the circuit breaker is open.
+   *
+   * <p>Default: {@link CircuitOpenPolicy#KEEP}</p>
+   */
+  @NonNull
+  @Builder.Default
+  CircuitOpenPolicy circuitOpenPolicy = CircuitOpenPolicy.KEEP;
+
+  /**
+   * Executes the flushes, including blocking bulk requests, warm-ups and health checks, and handles the responses of
+   * the {@link Transport#HTTP_CLIENT} transport. The tracker does not shut down a given executor. If neither an executor
+   * is given nor {@code virtualThreads} is enabled, the common {@link java.util.concurrent.ForkJoinPool} is used.
+   */
+  @Nullable
+  Executor executor;
+
+  /**
+   * Schedules the delayed flushes, retries and health checks. The tasks are short and hand the work over to the
+   * {@code executor}. The tracker does not shut down a given scheduler. If none is given, the tracker starts a single
+   * daemon thread.
+   */
+  @Nullable
+  ScheduledExecutorService scheduler;
+
+  /**
+   * Runs the flushes on a new virtual thread each if no {@code executor} is given and the JVM supports virtual threads
+   * (Java 21 or later). Blocking bulk requests then neither occupy the common {@link java.util.concurrent.ForkJoinPool}
+   * nor a platform thread. Falls back to the common pool on older JVMs.
+   */
+  boolean virtualThreads;
+
+  /**
+   * Queues the actions as they are and encodes them when their bulk request is flushed, so {@link MatomoTracker#track}
+   * returns without encoding the action. Invalid parameters, e.g. an invalid token auth, then do not throw an
+   * exception on the caller's thread, but complete the future of the action exceptionally. As the size of an action is
+   * not known before it is encoded, the {@code maxQueueBytes} limit is applied to an estimated size.
+   *
+   * <p>Default: false</p>
+   */
+  boolean deferredEncoding;
+
+  /**
+   * With {@code deferredEncoding}, batches with more actions than this threshold are split into fork-join subtasks
+   * that encode the actions in parallel. The subtasks run in the {@code executor} if it is a
+   * {@link java.util.concurrent.ForkJoinPool}, otherwise in the common pool.
+   *
+   * <p>Default: 256</p>
+   */
+  @Builder.Default
+  int parallelEncodingThreshold = 256;
+
+  /**
+   * The maximum duration {@link MatomoTracker#close()} waits for the queued actions to be sent.
+   *
+   * <p>Default: 5 seconds</p>
+   */
+  @NonNull
+  @Builder.Default
+  Duration shutdownTimeout = Duration.ofSeconds(5L);
+
+  /**
+   * Defines what happens to the actions that could not be sent until the tracker was closed.
+   *
+   * <p>Default: {@link ShutdownFallback#SPOOL}</p>
+   */
+  @NonNull
+  @Builder.Default
+  ShutdownFallback shutdownFallback = ShutdownFallback.SPOOL;
+
+  /**
+   * Registers a shutdown hook that closes the tracker when the JVM exits, so the queued actions are sent within the
+   * {@code shutdownTimeout}.
+   */
+  boolean shutdownHook;
+
   /**
    * Allows to stop the tracker to send requests to the Matomo endpoint.
    */
   @Builder.Default
   boolean enabled = true;
 
+  /**
+   * The HTTP implementation that sends the bulk requests.
+   *
+   * <p>Default: {@link Transport#URL_CONNECTION}</p>
+   */
+  @NonNull
+  @Builder.Default
+  Transport transport = Transport.URL_CONNECTION;
+
+  /**
+   * Compresses the bulk request payloads. The Matomo server (or a reverse proxy in front of it) must accept compressed
+   * request bodies.
+   *
+   * <p>Default: {@link Compression#NONE}</p>
+   */
+  @NonNull
+  @Builder.Default
+  Compression compression = Compression.NONE;
+
+  /**
+   * The minimum size of a bulk request payload in bytes to be compressed. Smaller payloads are sent uncompressed.
+   *
+   * <p>Default: 1024 bytes</p>
+   */
+  @Builder.Default
+  int compressionThreshold = 1024;
+
+  /**
+   * Keeps the connections to the Matomo endpoint open if {@link Transport#URL_CONNECTION} is used. The responses of
+   * the bulk requests will be drained and the connections will not be disconnected, so the JDK can reuse the sockets
+   * for subsequent bulk requests instead of establishing a new TCP and TLS connection every time.
+   * {@link Transport#HTTP_CLIENT} always reuses its connections.
+   */
+  boolean keepAlive;
+
+  /**
+   * Resolves the host name of the Matomo endpoint and opens a connection to it asynchronously on creation of the
+   * tracker by sending a HEAD request. Combined with {@code keepAlive} or {@link Transport#HTTP_CLIENT}, the first bulk
+   * request can reuse this connection.
+   */
+  boolean warmUp;
+
   /**
    * The timeout until a connection is established.
    *
@@ -62,6 +576,8 @@ public class TrackerConfiguration {
    * <p>A timeout value of zero is interpreted as an infinite timeout.
    * A `null value is interpreted as undefined (system default if applicable).</p>
    *
+   * <p>If {@link Transport#HTTP_CLIENT} is used, this is the timeout for receiving the response of a bulk request.</p>
+   *
    * <p>Default: 30 seconds</p>
    */
   @Builder.Default
@@ -1,5 +1,9 @@
 package org.drjekyll.matomo.tracker;
 
+import java.time.Duration;
+
+import javax.annotation.Nullable;
+
 /**
  * The Matomo tracking endpoint returned an HTTP error status
  */
@@ -7,12 +11,46 @@ public class TrackingFailedException extends RuntimeException {
 
   private static final long serialVersionUID = 6940609241958574388L;
 
+  /**
+   * The HTTP status code of the response, 0 if there was no response
+   */
+  private final int responseCode;
+
+  /**
+   * The value of the {@code Retry-After} header, null if not given
+   */
+  @Nullable
+  private final Duration retryAfter;
+
   TrackingFailedException(String message) {
-    super(message);
+    this(message, 0, null);
   }
 
   TrackingFailedException(String message, Throwable cause) {
     super(message, cause);
+    responseCode = 0;
+    retryAfter = null;
+  }
+
+  TrackingFailedException(String message, int responseCode, @Nullable Duration retryAfter) {
+    super(message);
+    this.responseCode = responseCode;
+    this.retryAfter = retryAfter;
+  }
+
+  /**
+   * @return The HTTP status code the endpoint responded with or 0 if there was no response
+   */
+  public int getResponseCode() {
+    return responseCode;
+  }
+
+  /**
+   * @return The duration the endpoint asked to wait before retrying (header {@code Retry-After}) or null if not given
+   */
+  @Nullable
+  public Duration getRetryAfter() {
+    return retryAfter;
   }
 
 }
@@ -0,0 +1,20 @@
+package org.drjekyll.matomo.tracker;
+
+/**
+ * The HTTP implementation that is used to send the bulk requests to the Matomo Tracking HTTP API endpoint
+ */
+public enum Transport {
+
+  /**
+   * Opens a new {@link java.net.HttpURLConnection} for each bulk request. The bulk requests are sent one after another
+   * on the executing thread.
+   */
+  URL_CONNECTION,
+
+  /**
+   * Uses a long-lived {@link java.net.http.HttpClient} that keeps its connections open and prefers HTTP/2. Bulk
+   * requests are sent asynchronously, multiple requests can be in flight at the same time and share one connection.
+   */
+  HTTP_CLIENT
+
+}
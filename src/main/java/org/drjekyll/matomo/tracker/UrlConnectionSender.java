@@ -0,0 +1,239 @@
+package org.drjekyll.matomo.tracker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Authenticator;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Proxy;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+import javax.annotation.Nullable;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Sends bulk requests synchronously using an {@link HttpURLConnection} for each request. If keep-alive is enabled, the
+ * responses are drained and the connections are not disconnected, so the JDK can reuse the underlying sockets.
+ */
+@Slf4j
+class UrlConnectionSender implements HttpSender {
+
+  private static final int DRAIN_BUFFER_SIZE = 512;
+
+  /**
+   * Larger responses are drained, but only this number of bytes is parsed
+   */
+  private static final int MAX_RESPONSE_SIZE = 64 * 1024;
+
+  private final TrackerConfiguration trackerConfiguration;
+
+  private final URI apiEndpoint;
+
+  @Nullable
+  private final Proxy proxy;
+
+  @Nullable
+  private final Authenticator proxyAuthenticator;
+
+  UrlConnectionSender(TrackerConfiguration trackerConfiguration, URI apiEndpoint) {
+    this.trackerConfiguration = trackerConfiguration;
+    this.apiEndpoint = apiEndpoint;
+    if (Strings.isEmpty(trackerConfiguration.getProxyHost()) || trackerConfiguration.getProxyPort() <= 0) {
+      log.debug("Proxy host or proxy port not configured. Will create connections without proxy");
+      proxy = null;
+      proxyAuthenticator = null;
+    } else {
+      proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(
+        trackerConfiguration.getProxyHost(),
+        trackerConfiguration.getProxyPort()
+      ));
+      if (Strings.isEmpty(trackerConfiguration.getProxyUserName())
+        || Strings.isEmpty(trackerConfiguration.getProxyPassword())) {
+        proxyAuthenticator = null;
+      } else {
+        proxyAuthenticator = new ProxyAuthenticator(
+          trackerConfiguration.getProxyUserName(),
+          trackerConfiguration.getProxyPassword()
+        );
+      }
+    }
+  }
+
+  @Override
+  public CompletableFuture<BulkResponse> send(Collection<String> queries) {
+    try {
+      return CompletableFuture.completedFuture(sendRequest(queries));
+    } catch (RuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  private BulkResponse sendRequest(Collection<String> queries) {
+    BulkPayload payload = BulkPayload.create(queries, trackerConfiguration);
+    HttpURLConnection connection = openConnection();
+    prepareConnection(connection);
+    if (payload.isCompressed()) {
+      connection.setRequestProperty("Content-Encoding", payload.getContentEncoding());
+      connection.setChunkedStreamingMode(BulkPayload.BUFFER_SIZE);
+    } else {
+      connection.setFixedLengthStreamingMode(payload.getLength());
+    }
+    log.debug(
+      "Sending bulk request with {} queries using URI {} asynchronously",
+      queries.size(),
+      apiEndpoint
+    );
+    OutputStream outputStream = null;
+    try {
+      connection.connect();
+      outputStream = connection.getOutputStream();
+      payload.writeTo(outputStream);
+      outputStream.flush();
+      int responseCode = connection.getResponseCode();
+      if (responseCode < 400) {
+        return readResponse(connection);
+      }
+      drainResponse(connection, responseCode);
+      if (trackerConfiguration.isLogFailedTracking()) {
+        log.error("Received error code {}", responseCode);
+      }
+      throw new TrackingFailedException(
+        "Tracking endpoint responded with code " + responseCode,
+        responseCode,
+        RetryScheduler.parseRetryAfter(connection.getHeaderField("Retry-After"))
+      );
+    } catch (IOException e) {
+      throw new ConnectionFailedException(e);
+    } finally {
+      if (outputStream != null) {
+        try {
+          outputStream.close();
+        } catch (IOException e) {
+          // ignore
+        }
+      }
+      if (!trackerConfiguration.isKeepAlive()) {
+        connection.disconnect();
+      }
+    }
+  }
+
+  /**
+   * Resolves the host name of the endpoint and opens a connection by sending a HEAD request. With keep-alive enabled,
+   * the connection stays open and will be reused by the first bulk request.
+   */
+  @Override
+  public void warmUp() {
+    probe();
+  }
+
+  @Override
+  public boolean probe() {
+    HttpURLConnection connection = null;
+    try {
+      connection = openConnection();
+      connection.setRequestMethod("HEAD");
+      applyTimeouts(connection);
+      connection.setRequestProperty("User-Agent", trackerConfiguration.getUserAgent());
+      int responseCode = connection.getResponseCode();
+      drainResponse(connection, responseCode);
+      log.debug("Probed {} with response code {}", apiEndpoint, responseCode);
+      return responseCode < 500;
+    } catch (IOException | ConnectionFailedException e) {
+      log.debug("Could not connect to {}", apiEndpoint, e);
+      return false;
+    } finally {
+      if (connection != null && !trackerConfiguration.isKeepAlive()) {
+        connection.disconnect();
+      }
+    }
+  }
+
+  /**
+   * Reads the response body to parse it. Reading it completely also allows the JDK to reuse the connection.
+   */
+  private static BulkResponse readResponse(HttpURLConnection connection) throws IOException {
+    try (InputStream inputStream = connection.getInputStream()) {
+      byte[] body = new byte[DRAIN_BUFFER_SIZE];
+      int length = 0;
+      int read;
+      while ((read = inputStream.read(body, length, body.length - length)) != -1) {
+        length += read;
+        if (length == body.length) {
+          if (length >= MAX_RESPONSE_SIZE) {
+            drain(inputStream);
+            break;
+          }
+          body = Arrays.copyOf(body, length * 2);
+        }
+      }
+      return BulkResponse.parse(body, length);
+    }
+  }
+
+  private static void drain(InputStream inputStream) throws IOException {
+    byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+    while (inputStream.read(buffer) != -1) {
+      // discard
+    }
+  }
+
+  private void drainResponse(HttpURLConnection connection, int responseCode) throws IOException {
+    if (!trackerConfiguration.isKeepAlive()) {
+      return;
+    }
+    // The JDK only puts a connection back into the keep-alive cache if the response was read completely
+    try (InputStream inputStream = responseCode > 399 ? connection.getErrorStream() : connection.getInputStream()) {
+      if (inputStream != null) {
+        drain(inputStream);
+      }
+    }
+  }
+
+  private HttpURLConnection openConnection() {
+    try {
+      HttpURLConnection connection;
+      if (proxy == null) {
+        connection = (HttpURLConnection) apiEndpoint.toURL().openConnection();
+      } else {
+        connection = (HttpURLConnection) apiEndpoint.toURL().openConnection(proxy);
+      }
+      if (proxyAuthenticator != null) {
+        connection.setAuthenticator(proxyAuthenticator);
+      }
+      return connection;
+    } catch (IOException e) {
+      throw new ConnectionFailedException(e);
+    }
+  }
+
+  private void prepareConnection(HttpURLConnection connection) {
+    try {
+      connection.setRequestMethod("POST");
+    } catch (ProtocolException e) {
+      throw new TrackingFailedException("Could not set request method", e);
+    }
+    connection.setDoOutput(true);
+    connection.setUseCaches(false);
+    connection.setRequestProperty("Accept", "*/*");
+    connection.setRequestProperty("Content-Type", "application/json");
+    connection.setRequestProperty("User-Agent", trackerConfiguration.getUserAgent());
+    applyTimeouts(connection);
+  }
+
+  private void applyTimeouts(HttpURLConnection connection) {
+    if (trackerConfiguration.getConnectTimeout() != null) {
+      connection.setConnectTimeout((int) trackerConfiguration.getConnectTimeout().toMillis());
+    }
+    if (trackerConfiguration.getSocketTimeout() != null) {
+      connection.setReadTimeout((int) trackerConfiguration.getSocketTimeout().toMillis());
+    }
+  }
+
+}
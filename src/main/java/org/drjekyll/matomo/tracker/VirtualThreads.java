@@ -0,0 +1,38 @@
+package org.drjekyll.matomo.tracker;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nullable;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Creates executors that start a virtual thread per task. The tracker is compiled for Java 11, so virtual threads are
+ * looked up reflectively and only used if the running JVM supports them (Java 21 or later).
+ */
+@Slf4j
+final class VirtualThreads {
+
+  private VirtualThreads() {
+    // utility class
+  }
+
+  /**
+   * @return a new executor that starts a virtual thread per task or null if the JVM does not support virtual threads
+   */
+  @Nullable
+  static ExecutorService newExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      log.debug("Virtual threads are not available", e);
+    } catch (InvocationTargetException e) {
+      // Java 19 and 20 support virtual threads as a preview feature only
+      log.debug("Virtual threads are not enabled", e.getCause());
+    }
+    return null;
+  }
+
+}
@@ -0,0 +1,401 @@
+package org.drjekyll.matomo.tracker.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates an encoder and a builder for each class with fields annotated with {@code TrackingParameter}, e.g.
+ * {@code ActionEncoder} and {@code AbstractActionBuilder} for {@code Action}.
+ *
+ * <p>The builder has a setter for each field of the class. The class must declare a nested builder that extends the
+ * generated one, e.g. {@code Action.ActionBuilder}. The setters return the nested builder, so compiled callers and
+ * the public API only see the nested builder. The setters of tracking parameters record whether the parameter is set
+ * in a presence bitmask, one bit per parameter in the order of their declaration, that is passed to the constructor
+ * along with the fields. The class must therefore declare a {@code long} field for each 64 tracking parameters, see
+ * {@link #PRESENCE_FIELDS}.</p>
+ *
+ * <p>The encoder visits the set bits only and appends the parameter of each bit using a {@code switch}, so the cost
+ * of encoding depends on the number of set parameters, not on the size of the schema. The values are read with the
+ * getters generated by Lombok, without reflection. Numbers and booleans are appended as primitives, they do not need
+ * to be URL encoded. Other values are percent-encoded directly into the query.</p>
+ *
+ * <p>The processor is only used to build this library and is not registered as a service.</p>
+ */
+@SupportedAnnotationTypes(TrackingParameterProcessor.TRACKING_PARAMETER)
+public class TrackingParameterProcessor extends AbstractProcessor {
+
+  static final String TRACKING_PARAMETER = "org.drjekyll.matomo.tracker.TrackingParameter";
+
+  /**
+   * The names of the fields that hold the presence bits of the first 64, the next 64 parameters and so on
+   */
+  static final String[] PRESENCE_FIELDS = {"presentParameters", "morePresentParameters"};
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    Map<TypeElement, List<Element>> fieldsByType = new LinkedHashMap<>();
+    for (TypeElement annotation : annotations) {
+      for (Element field : roundEnv.getElementsAnnotatedWith(annotation)) {
+        fieldsByType.computeIfAbsent((TypeElement) field.getEnclosingElement(), type -> new ArrayList<>());
+      }
+    }
+    for (TypeElement type : fieldsByType.keySet()) {
+      List<Element> fields = new ArrayList<>();
+      for (Element element : type.getEnclosedElements()) {
+        if (element.getKind() == ElementKind.FIELD && !element.getModifiers().contains(Modifier.STATIC)) {
+          fields.add(element);
+        }
+      }
+      if (!hasPresenceFields(type, fields)) {
+        continue;
+      }
+      try {
+        generateEncoder(type, fields);
+        generateBuilder(type, fields);
+      } catch (IOException e) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not generate encoder: " + e, type);
+      }
+    }
+    return true;
+  }
+
+  private boolean hasPresenceFields(TypeElement type, List<Element> fields) {
+    int parameters = 0;
+    for (Element field : fields) {
+      if (trackingParameter(field) != null) {
+        parameters++;
+      }
+    }
+    int words = (parameters + 63) / 64;
+    if (words > PRESENCE_FIELDS.length) {
+      processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Too many tracking parameters", type);
+      return false;
+    }
+    for (int word = 0; word < words; word++) {
+      if (!isPresenceField(fields, PRESENCE_FIELDS[word])) {
+        processingEnv.getMessager().printMessage(
+          Diagnostic.Kind.ERROR,
+          "Missing long field " + PRESENCE_FIELDS[word] + " for the presence of tracking parameters",
+          type
+        );
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isPresenceField(List<Element> fields, String name) {
+    for (Element field : fields) {
+      if (field.getSimpleName().contentEquals(name) && field.asType().getKind() == TypeKind.LONG) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isPresenceField(Element field) {
+    for (String name : PRESENCE_FIELDS) {
+      if (field.getSimpleName().contentEquals(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static AnnotationMirror trackingParameter(Element field) {
+    for (AnnotationMirror annotation : field.getAnnotationMirrors()) {
+      if (((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName()
+        .contentEquals(TRACKING_PARAMETER)) {
+        return annotation;
+      }
+    }
+    return null;
+  }
+
+  private static String value(AnnotationMirror annotation, String name) {
+    for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : annotation.getElementValues()
+      .entrySet()) {
+      if (entry.getKey().getSimpleName().contentEquals(name)) {
+        return (String) entry.getValue().getValue();
+      }
+    }
+    return "";
+  }
+
+  private static List<Element> trackingParameters(List<Element> fields) {
+    List<Element> parameters = new ArrayList<>();
+    for (Element field : fields) {
+      if (trackingParameter(field) != null) {
+        parameters.add(field);
+      }
+    }
+    return parameters;
+  }
+
+  private void generateEncoder(TypeElement type, List<Element> fields) throws IOException {
+    String packageName = ((PackageElement) type.getEnclosingElement()).getQualifiedName().toString();
+    String typeName = type.getSimpleName().toString();
+    String encoderName = typeName + "Encoder";
+    List<Element> parameters = trackingParameters(fields);
+    JavaFileObject file = processingEnv.getFiler().createSourceFile(packageName + '.' + encoderName, type);
+    try (PrintWriter out = new PrintWriter(file.openWriter())) {
+      out.println("package " + packageName + ";");
+      out.println();
+      out.println("import java.util.regex.Pattern;");
+      out.println();
+      out.println("import javax.annotation.processing.Generated;");
+      out.println();
+      out.println("/**");
+      out.println(" * Appends the tracking parameters of {@link " + typeName + "} to a query");
+      out.println(" */");
+      out.println("@Generated(\"" + getClass().getName() + "\")");
+      out.println("final class " + encoderName + " {");
+      out.println();
+      for (Element field : parameters) {
+        String regex = value(trackingParameter(field), "regex");
+        if (!regex.trim().isEmpty()) {
+          out.println("  private static final Pattern " + constant(field) + " = Pattern.compile(" + literal(regex)
+            + ");");
+          out.println();
+        }
+      }
+      out.println("  private " + encoderName + "() {");
+      out.println("    // utility class");
+      out.println("  }");
+      out.println();
+      String source = Character.toLowerCase(typeName.charAt(0)) + typeName.substring(1);
+      out.println("  static void encode(" + typeName + ' ' + source + ", StringBuilder query) {");
+      for (int word = 0; word * 64 < parameters.size(); word++) {
+        String presence = PRESENCE_FIELDS[word];
+        out.println("    for (long bits = " + source + '.' + getter(presence, TypeKind.LONG) + "(); bits != 0L; "
+          + "bits &= bits - 1L) {");
+        out.println("      switch (Long.numberOfTrailingZeros(bits)) {");
+        for (int bit = 0; bit < 64 && word * 64 + bit < parameters.size(); bit++) {
+          out.println("        case " + bit + ": {");
+          generateParameter(out, parameters.get(word * 64 + bit), source);
+          out.println("          break;");
+          out.println("        }");
+        }
+        out.println("        default:");
+        out.println("          throw new IllegalStateException(\"Unknown parameter bit \" + Long.numberOfTrailingZeros("
+          + "bits));");
+        out.println("      }");
+        out.println("    }");
+      }
+      out.println("  }");
+      out.println();
+      out.println("}");
+    }
+  }
+
+  /**
+   * Appends the parameter of the field. The presence bit of the field is set, so its value is not null.
+   */
+  private void generateParameter(PrintWriter out, Element field, String source) {
+    AnnotationMirror annotation = trackingParameter(field);
+    String parameterName = value(annotation, "name");
+    String regex = value(annotation, "regex");
+    TypeMirror type = field.asType();
+    String name = field.getSimpleName().toString();
+    String getter = getter(name, type.getKind());
+    String prefix = literal('&' + parameterName + '=');
+    if (type.getKind() == TypeKind.CHAR) {
+      out.println("          query.append(" + prefix + ");");
+      out.println("          PercentEncoder.encode(String.valueOf(" + source + '.' + getter + "()), query);");
+      return;
+    }
+    if (type.getKind().isPrimitive()) {
+      out.println("          query.append(" + prefix + ").append(" + primitive(type.getKind(), source + '.' + getter
+        + "()") + ");");
+      return;
+    }
+    out.println("          " + type + ' ' + name + " = " + source + '.' + getter + "();");
+    if (!regex.trim().isEmpty() && isCharSequence(type)) {
+      out.println("          if (!" + constant(field) + ".matcher(" + name + ").matches()) {");
+      out.println("            throw new IllegalArgumentException("
+        + literal("Invalid value for " + parameterName + ". Must match regex " + regex) + ");");
+      out.println("          }");
+    }
+    if (TypeKind.BOOLEAN.name().equals(unboxedKind(type))) {
+      out.println("          query.append(" + prefix + ").append(" + name + " ? '1' : '0');");
+    } else if (unboxedKind(type) != null) {
+      out.println("          query.append(" + prefix + ").append(" + name + '.' + unboxedKind(type).toLowerCase()
+        + "Value());");
+    } else {
+      out.println("          query.append(" + prefix + ");");
+      String value = isCharSequence(type) ? name : name + ".toString()";
+      out.println("          PercentEncoder.encode(" + value + ", query);");
+    }
+  }
+
+  private void generateBuilder(TypeElement type, List<Element> fields) throws IOException {
+    String packageName = ((PackageElement) type.getEnclosingElement()).getQualifiedName().toString();
+    String typeName = type.getSimpleName().toString();
+    String builderName = "Abstract" + typeName + "Builder";
+    String concreteName = typeName + '.' + typeName + "Builder";
+    List<Element> parameters = trackingParameters(fields);
+    JavaFileObject file = processingEnv.getFiler().createSourceFile(packageName + '.' + builderName, type);
+    try (PrintWriter out = new PrintWriter(file.openWriter())) {
+      out.println("package " + packageName + ";");
+      out.println();
+      out.println("import javax.annotation.processing.Generated;");
+      out.println();
+      out.println("/**");
+      out.println(" * Builds {@link " + typeName + "} instances and records which tracking parameters are set");
+      out.println(" */");
+      out.println("@Generated(\"" + getClass().getName() + "\")");
+      out.println("abstract class " + builderName + " {");
+      out.println();
+      for (Element field : fields) {
+        out.println("  private " + field.asType() + ' ' + field.getSimpleName() + ';');
+        out.println();
+      }
+      for (Element field : fields) {
+        if (!isPresenceField(field)) {
+          generateSetter(out, field, parameters.indexOf(field), concreteName);
+        }
+      }
+      out.println("  /**");
+      out.println("   * @return A new {@link " + typeName + "} with the values of this builder");
+      out.println("   */");
+      out.println("  public " + typeName + " build() {");
+      out.println("    return new " + typeName + "(");
+      for (int i = 0; i < fields.size(); i++) {
+        out.println("      " + fields.get(i).getSimpleName() + (i < fields.size() - 1 ? "," : ""));
+      }
+      out.println("    );");
+      out.println("  }");
+      out.println();
+      out.println("  @Override");
+      out.println("  public String toString() {");
+      out.println("    return " + literal(concreteName + '('));
+      String separator = "";
+      for (Element field : fields) {
+        if (!isPresenceField(field)) {
+          out.println("      + " + literal(separator + field.getSimpleName() + '=') + " + " + field.getSimpleName());
+          separator = ", ";
+        }
+      }
+      out.println("      + ')';");
+      out.println("  }");
+      out.println();
+      out.println("  private " + concreteName + " self() {");
+      out.println("    return (" + concreteName + ") this;");
+      out.println("  }");
+      out.println();
+      out.println("}");
+    }
+  }
+
+  /**
+   * @param index        The index of the tracking parameter or -1 if the field is no tracking parameter
+   * @param concreteName The name of the builder that extends the generated one
+   */
+  private void generateSetter(PrintWriter out, Element field, int index, String concreteName) {
+    String name = field.getSimpleName().toString();
+    TypeMirror type = field.asType();
+    out.println("  /**");
+    String docComment = processingEnv.getElementUtils().getDocComment(field);
+    if (docComment != null) {
+      // The links of the field may not resolve in the package of the builder, plain ampersands are no valid HTML
+      String javadoc = docComment.replace("{@link ", "{@code ").replaceAll("&(?![a-zA-Z]+;|#[0-9]+;)", "&amp;");
+      for (String line : javadoc.trim().split("\\R")) {
+        out.println(line.trim().isEmpty() ? "   *" : "   * " + line.trim());
+      }
+      out.println("   *");
+    }
+    out.println("   * @param " + name + " The value, null if not set");
+    out.println("   * @return This builder");
+    out.println("   */");
+    out.println("  public " + concreteName + ' ' + name + '(' + type + ' ' + name + ") {");
+    out.println("    this." + name + " = " + name + ';');
+    if (index >= 0) {
+      String presence = PRESENCE_FIELDS[index / 64];
+      String bit = "1L << " + index % 64;
+      if (type.getKind().isPrimitive()) {
+        out.println("    " + presence + " |= " + bit + ';');
+      } else {
+        out.println("    if (" + name + " == null) {");
+        out.println("      " + presence + " &= ~(" + bit + ");");
+        out.println("    } else {");
+        out.println("      " + presence + " |= " + bit + ';');
+        out.println("    }");
+      }
+    }
+    out.println("    return self();");
+    out.println("  }");
+    out.println();
+  }
+
+  private static String getter(String name, TypeKind kind) {
+    return (kind == TypeKind.BOOLEAN ? "is" : "get") + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+  }
+
+  private static String primitive(TypeKind kind, String expression) {
+    if (kind == TypeKind.BOOLEAN) {
+      return expression + " ? '1' : '0'";
+    }
+    return expression;
+  }
+
+  /**
+   * @return the kind of the primitive type if the type is a wrapper of a boolean or a number that is encoded as
+   * digits, null otherwise
+   */
+  private String unboxedKind(TypeMirror type) {
+    try {
+      TypeKind kind = processingEnv.getTypeUtils().unboxedType(type).getKind();
+      return kind == TypeKind.CHAR ? null : kind.name();
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private boolean isCharSequence(TypeMirror type) {
+    TypeElement charSequence = processingEnv.getElementUtils().getTypeElement("java.lang.CharSequence");
+    return processingEnv.getTypeUtils().isAssignable(type, charSequence.asType());
+  }
+
+  private static String constant(Element field) {
+    return field.getSimpleName().toString().replaceAll("([a-z0-9])([A-Z])", "$1_$2").toUpperCase() + "_PATTERN";
+  }
+
+  private static String literal(String value) {
+    StringBuilder literal = new StringBuilder("\"");
+    for (char c : value.toCharArray()) {
+      if (c == '"' || c == '\\') {
+        literal.append('\\');
+      }
+      literal.append(c);
+    }
+    return literal.append('"').toString();
+  }
+
+}
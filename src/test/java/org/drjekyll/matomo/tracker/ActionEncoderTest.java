@@ -0,0 +1,152 @@
+package org.drjekyll.matomo.tracker;
+
+import org.drjekyll.matomo.tracker.parameters.AcceptLanguage;
+import org.drjekyll.matomo.tracker.parameters.Country;
+import org.drjekyll.matomo.tracker.parameters.CustomVariable;
+import org.drjekyll.matomo.tracker.parameters.CustomVariables;
+import org.drjekyll.matomo.tracker.parameters.DeviceResolution;
+import org.drjekyll.matomo.tracker.parameters.EcommerceItem;
+import org.drjekyll.matomo.tracker.parameters.EcommerceItems;
+import org.drjekyll.matomo.tracker.parameters.UniqueId;
+import org.drjekyll.matomo.tracker.parameters.UnixTimestamp;
+import org.drjekyll.matomo.tracker.parameters.VisitorId;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Locale.LanguageRange;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ActionEncoderTest {
+
+  private static final Map<Class<?>, Object> VALUES = new HashMap<>();
+
+  static {
+    VALUES.put(String.class, "Über uns / Kontakt?a=b&c");
+    VALUES.put(Integer.class, -42);
+    VALUES.put(Long.class, 1234567890123L);
+    VALUES.put(Double.class, 1.0E-5);
+    VALUES.put(Boolean.class, true);
+    VALUES.put(VisitorId.class, VisitorId.fromHash(3434343434343434343L));
+    VALUES.put(CustomVariables.class, CustomVariables.builder().variable(new CustomVariable("key", "värde")).build());
+    VALUES.put(UnixTimestamp.class, UnixTimestamp.fromInstant(Instant.ofEpochSecond(1660070052L)));
+    VALUES.put(DeviceResolution.class, DeviceResolution.builder().width(1024).height(768).build());
+    VALUES.put(
+      AcceptLanguage.class,
+      AcceptLanguage.builder().languageRange(new LanguageRange("de-DE", 0.9)).build()
+    );
+    VALUES.put(UniqueId.class, UniqueId.fromValue(999999999999999999L));
+    VALUES.put(
+      EcommerceItems.class,
+      EcommerceItems.builder().item(EcommerceItem.builder().sku("SKU").name("Name").price(1.5).build()).build()
+    );
+    VALUES.put(Country.class, Country.fromLanguageRanges("en-GB;q=0.7,de"));
+  }
+
+  private final StringBuilder query = new StringBuilder();
+
+  @Test
+  void encodesLikeReflectiveEncoder() throws Exception {
+
+    Action action = actionWithAllParameters();
+
+    ActionEncoder.encode(action, query);
+
+    assertThat(query).hasToString(encodeReflectively(action)).contains("&action_name=%C3%9Cber+uns+%2F+Kontakt");
+
+  }
+
+  @Test
+  void skipsNullParameters() {
+
+    ActionEncoder.encode(Action.builder().sendImage(null).build(), query);
+
+    assertThat(query).isEmpty();
+
+  }
+
+  @Test
+  void recordsSetParameters() {
+
+    Action action = Action.builder().url("https://a.b").siteId(1).siteId(null).name("Home").sendImage(null).build();
+
+    assertThat(action.getPresentParameters()).isEqualTo(0b110L);
+    assertThat(action.getMorePresentParameters()).isZero();
+
+  }
+
+  @Test
+  void encodesParametersAfterTheFirst64() {
+
+    Action action = Action.builder().sendImage(null).bots(true).build();
+
+    ActionEncoder.encode(action, query);
+
+    assertThat(query).hasToString("&bots=1");
+    assertThat(action.getPresentParameters()).isZero();
+
+  }
+
+  @Test
+  void validatesParameters() {
+
+    Action action = Action.builder().tokenAuth("invalid").build();
+
+    assertThatThrownBy(() -> ActionEncoder.encode(action, query)).isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Invalid value for token_auth. Must match regex [a-z0-9]{32}");
+
+  }
+
+  @Test
+  void returnsPublicBuilderFromSetters() throws Exception {
+
+    Class<?> returnType = Action.ActionBuilder.class.getMethod("name", String.class).getReturnType();
+
+    assertThat(returnType).isEqualTo(Action.ActionBuilder.class);
+
+  }
+
+  private static Action actionWithAllParameters() throws ReflectiveOperationException {
+    Action.ActionBuilder builder = Action.builder();
+    for (Field field : Action.class.getDeclaredFields()) {
+      if (field.isAnnotationPresent(TrackingParameter.class)) {
+        Object value = "tokenAuth".equals(field.getName()) ? "fdf6e8461ea9de33176b222519627f78"
+          : VALUES.get(field.getType());
+        assertThat(value).as("Sample value for %s", field.getType()).isNotNull();
+        Action.ActionBuilder.class.getMethod(field.getName(), field.getType()).invoke(builder, value);
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * The reflective encoding the generated encoder replaced
+   */
+  private static String encodeReflectively(Action action) throws ReflectiveOperationException {
+    StringBuilder expected = new StringBuilder();
+    for (Field field : Action.class.getDeclaredFields()) {
+      TrackingParameter trackingParameter = field.getAnnotation(TrackingParameter.class);
+      if (trackingParameter == null) {
+        continue;
+      }
+      String getter = "get" + Character.toUpperCase(field.getName().charAt(0)) + field.getName().substring(1);
+      Object value = Action.class.getMethod(getter).invoke(action);
+      if (value != null) {
+        expected.append('&').append(trackingParameter.name()).append('=');
+        if (value instanceof Boolean) {
+          expected.append((boolean) value ? '1' : '0');
+        } else {
+          expected.append(URLEncoder.encode(value.toString(), StandardCharsets.UTF_8));
+        }
+      }
+    }
+    return expected.toString();
+  }
+
+}
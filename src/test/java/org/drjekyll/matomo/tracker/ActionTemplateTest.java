@@ -0,0 +1,93 @@
+package org.drjekyll.matomo.tracker;
+
+import org.drjekyll.matomo.tracker.parameters.VisitorId;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ActionTemplateTest {
+
+  @Test
+  void encodesParametersOnce() {
+
+    ActionTemplate template = ActionTemplate.of(Action.builder().userAgent("Mozilla").url("https://a.b/c").build());
+
+    assertThat(template.getQuery()).isEqualTo("&url=https%3A%2F%2Fa.b%2Fc&ua=Mozilla&send_image=0");
+
+  }
+
+  @Test
+  void includesParametersOfNestedTemplate() {
+
+    ActionTemplate visit = ActionTemplate.of(Action.builder().siteId(7).userId("user@example.com").build());
+
+    ActionTemplate page = ActionTemplate.of(Action.builder().template(visit).url("https://a.b/c").build());
+
+    assertThat(page.getQuery()).isEqualTo(visit.getQuery() + "&url=https%3A%2F%2Fa.b%2Fc&send_image=0");
+    assertThat(page.getSiteId()).isEqualTo(7);
+    assertThat(page.getRoutingKey()).isEqualTo("user@example.com");
+
+  }
+
+  @Test
+  void usesVisitorIdAsRoutingKey() {
+
+    VisitorId visitorId = VisitorId.fromHash(42L);
+
+    ActionTemplate template = ActionTemplate.of(Action.builder().visitorId(visitorId).userId("user@example.com").build());
+
+    assertThat(template.getRoutingKey()).isEqualTo(visitorId.toString());
+
+  }
+
+  @Test
+  void prefersSiteIdOfAction() {
+
+    Action action = Action.builder().template(ActionTemplate.of(Action.builder().siteId(7).build())).siteId(8).build();
+
+    assertThat(ActionTemplate.siteId(action)).isEqualTo(8);
+
+  }
+
+  @Test
+  void validatesParameters() {
+
+    Action action = Action.builder().tokenAuth("invalid-token-auth").build();
+
+    assertThatThrownBy(() -> ActionTemplate.of(action))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Invalid value for token_auth. Must match regex [a-z0-9]{32}");
+
+  }
+
+  @Test
+  void canBeStoredInSession() throws Exception {
+
+    ActionTemplate template = ActionTemplate.of(Action.builder().siteId(7).userId("user@example.com").build());
+
+    assertThat(deserialize(serialize(template))).isEqualTo(template);
+
+  }
+
+  private static byte[] serialize(ActionTemplate template) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(template);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+      return in.readObject();
+    }
+  }
+
+}
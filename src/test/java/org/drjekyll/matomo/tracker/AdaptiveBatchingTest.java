@@ -0,0 +1,127 @@
+package org.drjekyll.matomo.tracker;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AdaptiveBatchingTest {
+
+  private static final long MILLIS = 1000000L;
+
+  private final TrackerConfiguration.TrackerConfigurationBuilder trackerConfigurationBuilder =
+    TrackerConfiguration.builder()
+      .apiEndpoint(URI.create("http://localhost"))
+      .adaptiveBatching(true)
+      .delay(Duration.ofMillis(500L))
+      .adaptiveMinDelay(Duration.ofMillis(100L))
+      .adaptiveMaxDelay(Duration.ofMillis(3300L))
+      .adaptiveTargetLatency(Duration.ofSeconds(5L))
+      .maxBatchSize(330)
+      .adaptiveMinBatchSize(10);
+
+  private AdaptiveBatching batching;
+
+  private void givenBatching() {
+    batching = new AdaptiveBatching(trackerConfigurationBuilder.build());
+  }
+
+  @Test
+  void usesFixedValuesIfDisabled() {
+
+    trackerConfigurationBuilder.adaptiveBatching(false);
+    givenBatching();
+
+    batching.record(1, 10000L * MILLIS, 10000L * MILLIS, null);
+
+    assertThat(batching.getDelayMillis()).isEqualTo(500L);
+    assertThat(batching.getBatchSize()).isEqualTo(330);
+
+  }
+
+  @Test
+  void backsOffOnServerErrors() {
+
+    givenBatching();
+
+    batching.record(330, 100L * MILLIS, 600L * MILLIS, new TrackingFailedException("Server error", 503, null));
+
+    assertThat(batching.getDelayMillis()).isEqualTo(1000L);
+    assertThat(batching.getBatchSize()).isEqualTo(165);
+
+  }
+
+  @Test
+  void ignoresRejectedRequests() {
+
+    givenBatching();
+
+    batching.record(330, 100L * MILLIS, 600L * MILLIS, new TrackingFailedException("Bad request", 400, null));
+
+    assertThat(batching.getDelayMillis()).isEqualTo(500L);
+    assertThat(batching.getBatchSize()).isEqualTo(330);
+
+  }
+
+  @Test
+  void shortensDelayForSparseActions() {
+
+    givenBatching();
+
+    batching.record(1, 50L * MILLIS, 550L * MILLIS, null);
+
+    assertThat(batching.getDelayMillis()).isEqualTo(400L);
+
+  }
+
+  @Test
+  void extendsDelayForFullBatches() {
+
+    givenBatching();
+
+    batching.record(330, 50L * MILLIS, 550L * MILLIS, null);
+
+    assertThat(batching.getDelayMillis()).isEqualTo(600L);
+
+  }
+
+  @Test
+  void staysWithinBounds() {
+
+    givenBatching();
+
+    for (int i = 0; i < 100; i++) {
+      batching.record(1, 50L * MILLIS, 550L * MILLIS, null);
+    }
+
+    assertThat(batching.getDelayMillis()).isEqualTo(100L);
+
+  }
+
+  @Test
+  void shrinksBatchesIfLatencyExceedsTarget() {
+
+    givenBatching();
+
+    batching.record(330, 3000L * MILLIS, 6000L * MILLIS, null);
+
+    assertThat(batching.getDelayMillis()).isEqualTo(250L);
+    assertThat(batching.getBatchSize()).isEqualTo(165);
+
+  }
+
+  @Test
+  void growsBatchesAgainAfterRecovery() {
+
+    givenBatching();
+    batching.record(330, 100L * MILLIS, 600L * MILLIS, new TrackingFailedException("Server error", 503, null));
+
+    batching.record(165, 100L * MILLIS, 600L * MILLIS, null);
+
+    assertThat(batching.getBatchSize()).isEqualTo(175);
+
+  }
+
+}
@@ -0,0 +1,92 @@
+package org.drjekyll.matomo.tracker;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BatchEncoderTest {
+
+  private final TrackerConfiguration trackerConfiguration = TrackerConfiguration.builder()
+    .apiEndpoint(URI.create("http://localhost"))
+    .defaultSiteId(1)
+    .parallelEncodingThreshold(4)
+    .build();
+
+  private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+  private final Map<QueuedQuery, RuntimeException> failures = new ConcurrentHashMap<>();
+
+  private final QueryCreator queryCreator = new QueryCreator(trackerConfiguration) {
+    @Override
+    public String createQuery(Action action) {
+      threads.add(Thread.currentThread());
+      return super.createQuery(action);
+    }
+  };
+
+  private final List<QueuedQuery> queries = new ArrayList<>();
+
+  private void givenQueries(int count) {
+    for (int i = 0; i < count; i++) {
+      queries.add(new QueuedQuery(Action.builder().name("Page " + i).build(), ActionPriority.NORMAL, 64));
+    }
+  }
+
+  private void whenEncodes(ForkJoinPool pool) {
+    new BatchEncoder(trackerConfiguration, queryCreator, pool).encode(queries, failures::put);
+  }
+
+  @Test
+  void encodesSmallBatchOnCallingThread() {
+
+    givenQueries(4);
+
+    whenEncodes(ForkJoinPool.commonPool());
+
+    assertThat(queries).allMatch(QueuedQuery::isEncoded);
+    assertThat(threads).containsExactly(Thread.currentThread());
+
+  }
+
+  @Test
+  void encodesLargeBatchInParallel() {
+
+    givenQueries(1000);
+    ForkJoinPool pool = new ForkJoinPool(4);
+
+    try {
+      whenEncodes(pool);
+    } finally {
+      pool.shutdown();
+    }
+
+    for (int i = 0; i < queries.size(); i++) {
+      assertThat(queries.get(i).getQuery()).isEqualTo("rec=1&idsite=1&action_name=Page+" + i + "&send_image=0");
+      assertThat(queries.get(i).getAction()).isNull();
+    }
+
+  }
+
+  @Test
+  void reportsActionsThatCannotBeEncoded() {
+
+    givenQueries(10);
+    QueuedQuery invalid = new QueuedQuery(Action.builder().tokenAuth("invalid").build(), ActionPriority.NORMAL, 64);
+    queries.add(invalid);
+
+    whenEncodes(ForkJoinPool.commonPool());
+
+    assertThat(failures).containsOnlyKeys(invalid);
+    assertThat(invalid.isEncoded()).isFalse();
+
+  }
+
+}
@@ -0,0 +1,124 @@
+package org.drjekyll.matomo.tracker;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BoundedQueueTest {
+
+  private final BoundedQueue<String> queue = new BoundedQueue<>(2);
+
+  @Test
+  void rejectsElementsAboveCapacity() {
+
+    assertThat(queue.offer("first")).isTrue();
+    assertThat(queue.offer("second")).isTrue();
+    assertThat(queue.offer("third")).isFalse();
+
+    assertThat(queue.size()).isEqualTo(2);
+
+  }
+
+  @Test
+  void drainsInInsertionOrder() {
+
+    queue.offer("first");
+    queue.offer("second");
+    Collection<String> drained = new ArrayList<>();
+
+    int count = queue.drainTo(drained, 10);
+
+    assertThat(count).isEqualTo(2);
+    assertThat(drained).containsExactly("first", "second");
+    assertThat(queue.isEmpty()).isTrue();
+
+  }
+
+  @Test
+  void drainsAtMostMaxElements() {
+
+    queue.offer("first");
+    queue.offer("second");
+    Collection<String> drained = new ArrayList<>();
+
+    queue.drainTo(drained, 1);
+
+    assertThat(drained).containsExactly("first");
+    assertThat(queue.size()).isEqualTo(1);
+    assertThat(queue.offer("third")).isTrue();
+
+  }
+
+  @Test
+  void tracksWeightOfQueuedElements() {
+
+    BoundedQueue<String> weightedQueue = new BoundedQueue<>(10, String::length);
+    weightedQueue.offer("first");
+    weightedQueue.offer("second");
+
+    weightedQueue.drainTo(new ArrayList<>(), 1);
+
+    assertThat(weightedQueue.weight()).isEqualTo(6L);
+
+  }
+
+  @Test
+  void pollsHead() {
+
+    queue.offer("first");
+    queue.offer("second");
+
+    assertThat(queue.poll()).isEqualTo("first");
+    assertThat(queue.size()).isEqualTo(1);
+    assertThat(queue.offer("third")).isTrue();
+
+  }
+
+  @Test
+  void requiresPositiveCapacity() {
+
+    assertThatThrownBy(() -> new BoundedQueue<>(0))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Capacity must be positive");
+
+  }
+
+  @Test
+  void neverExceedsCapacityWithConcurrentProducers() throws Exception {
+
+    BoundedQueue<Integer> concurrentQueue = new BoundedQueue<>(1000);
+    ExecutorService executorService = Executors.newFixedThreadPool(8);
+    CountDownLatch start = new CountDownLatch(1);
+    for (int i = 0; i < 8; i++) {
+      executorService.execute(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        for (int j = 0; j < 500; j++) {
+          concurrentQueue.offer(j);
+        }
+      });
+    }
+    start.countDown();
+    executorService.shutdown();
+    executorService.awaitTermination(10L, TimeUnit.SECONDS);
+    List<Integer> drained = new ArrayList<>();
+
+    concurrentQueue.drainTo(drained, Integer.MAX_VALUE);
+
+    assertThat(drained).hasSize(1000);
+
+  }
+
+}
@@ -0,0 +1,173 @@
+package org.drjekyll.matomo.tracker;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BulkPayloadTest {
+
+  private final TrackerConfiguration.TrackerConfigurationBuilder trackerConfigurationBuilder =
+    TrackerConfiguration.builder().apiEndpoint(URI.create("http://localhost"));
+
+  private Collection<String> queries = Arrays.asList("rec=1&idsite=42", "rec=1&idsite=43");
+
+  private BulkPayload payload;
+
+  @Test
+  void createsUncompressedPayload() throws Exception {
+
+    whenCreatesPayload();
+
+    assertThat(payload.getContentEncoding()).isNull();
+    assertThat(new String(written(), StandardCharsets.UTF_8)).isEqualTo(
+      "{\"requests\":[\"?rec=1&idsite=42\",\"?rec=1&idsite=43\"]}");
+
+  }
+
+  private void whenCreatesPayload() {
+    payload = BulkPayload.create(queries, trackerConfigurationBuilder.build());
+  }
+
+  private byte[] written() throws Exception {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    payload.writeTo(outputStream);
+    return outputStream.toByteArray();
+  }
+
+  private byte[] chunked() throws Exception {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    for (byte[] chunk : payload.chunks()) {
+      outputStream.write(chunk);
+    }
+    return outputStream.toByteArray();
+  }
+
+  @Test
+  void includesTokenAuth() throws Exception {
+
+    trackerConfigurationBuilder.defaultTokenAuth("fdf6e8461ea9de33176b222519627f78");
+    queries = Collections.singletonList("rec=1");
+
+    whenCreatesPayload();
+
+    assertThat(new String(written(), StandardCharsets.UTF_8)).isEqualTo(
+      "{\"requests\":[\"?rec=1\"],\"token_auth\":\"fdf6e8461ea9de33176b222519627f78\"}");
+
+  }
+
+  @Test
+  void calculatesExactLength() throws Exception {
+
+    queries = Arrays.asList("rec=1&action_name=café", "rec=1&action_name=😀", "rec=1&broken=\ud83d");
+
+    whenCreatesPayload();
+
+    assertThat(payload.getLength()).isEqualTo(written().length);
+
+  }
+
+  @Test
+  void writesEmptyPayload() throws Exception {
+
+    queries = Collections.emptyList();
+
+    whenCreatesPayload();
+
+    assertThat(new String(written(), StandardCharsets.UTF_8)).isEqualTo("{\"requests\":[]}");
+    assertThat(payload.getLength()).isEqualTo(15L);
+
+  }
+
+  @Test
+  void producesSameContentInChunks() throws Exception {
+
+    givenManyQueries();
+
+    whenCreatesPayload();
+
+    byte[] chunked = chunked();
+    assertThat(chunked).isEqualTo(written());
+    assertThat(chunked).hasSize((int) payload.getLength());
+
+  }
+
+  private void givenManyQueries() {
+    List<String> manyQueries = new ArrayList<>();
+    for (int i = 0; i < 10000; i++) {
+      manyQueries.add("rec=1&idsite=42&action_name=Action" + i + "&url=https%3A%2F%2Fwww.daniel-heid.de%2F" + i);
+    }
+    queries = manyQueries;
+  }
+
+  @Test
+  void compressesPayloadWithGzip() throws Exception {
+
+    trackerConfigurationBuilder.compression(Compression.GZIP).compressionThreshold(0);
+
+    whenCreatesPayload();
+
+    assertThat(payload.getContentEncoding()).isEqualTo("gzip");
+    assertThat(decompress(new GZIPInputStream(new ByteArrayInputStream(written())))).isEqualTo(
+      "{\"requests\":[\"?rec=1&idsite=42\",\"?rec=1&idsite=43\"]}");
+
+  }
+
+  private static String decompress(InputStream inputStream) throws Exception {
+    try (InputStream in = inputStream) {
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+
+  @Test
+  void compressesChunksWithGzip() throws Exception {
+
+    givenManyQueries();
+    whenCreatesPayload();
+    String uncompressed = new String(written(), StandardCharsets.UTF_8);
+    trackerConfigurationBuilder.compression(Compression.GZIP).compressionThreshold(0);
+
+    whenCreatesPayload();
+
+    assertThat(decompress(new GZIPInputStream(new ByteArrayInputStream(chunked())))).isEqualTo(uncompressed);
+
+  }
+
+  @Test
+  void compressesPayloadWithDeflate() throws Exception {
+
+    trackerConfigurationBuilder.compression(Compression.DEFLATE).compressionThreshold(0);
+
+    whenCreatesPayload();
+
+    assertThat(payload.getContentEncoding()).isEqualTo("deflate");
+    assertThat(decompress(new InflaterInputStream(new ByteArrayInputStream(written())))).isEqualTo(
+      "{\"requests\":[\"?rec=1&idsite=42\",\"?rec=1&idsite=43\"]}");
+
+  }
+
+  @Test
+  void skipsCompressionBelowThreshold() {
+
+    trackerConfigurationBuilder.compression(Compression.GZIP).compressionThreshold(1024);
+
+    whenCreatesPayload();
+
+    assertThat(payload.isCompressed()).isFalse();
+    assertThat(payload.getContentEncoding()).isNull();
+
+  }
+
+}
@@ -0,0 +1,75 @@
+package org.drjekyll.matomo.tracker;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BulkResponseTest {
+
+  private BulkResponse response;
+
+  private void whenParses(String body) {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    response = BulkResponse.parse(bytes, bytes.length);
+  }
+
+  @Test
+  void parsesCountsAndInvalidIndices() {
+
+    whenParses("{\"status\":\"success\",\"tracked\":3,\"invalid\":2,\"invalid_indices\":[4,1]}");
+
+    assertThat(response.getTracked()).isEqualTo(3);
+    assertThat(response.getInvalid()).isEqualTo(2);
+    assertThat(response.hasInvalidIndices()).isTrue();
+    assertThat(response.isInvalid(1)).isTrue();
+    assertThat(response.isInvalid(2)).isFalse();
+    assertThat(response.isInvalid(4)).isTrue();
+
+  }
+
+  @Test
+  void parsesCountsWithoutInvalidIndices() {
+
+    whenParses("{ \"status\" : \"success\",\n  \"tracked\" : 1,\n  \"invalid\" : 1\n}");
+
+    assertThat(response.getTracked()).isEqualTo(1);
+    assertThat(response.getInvalid()).isEqualTo(1);
+    assertThat(response.hasInvalidIndices()).isFalse();
+    assertThat(response.isInvalid(0)).isFalse();
+
+  }
+
+  @Test
+  void skipsOtherMembers() {
+
+    whenParses("{\"message\":\"invalid: tracked\",\"nested\":{\"invalid\":[]},\"tracked\":2}");
+
+    assertThat(response.getTracked()).isEqualTo(2);
+    assertThat(response.hasInvalidIndices()).isFalse();
+
+  }
+
+  @Test
+  void returnsUnknownForEmptyBody() {
+
+    whenParses("");
+
+    assertThat(response).isSameAs(BulkResponse.UNKNOWN);
+
+  }
+
+  @Test
+  void returnsUnknownForTrackingGif() {
+
+    byte[] gif = {'G', 'I', 'F', '8', '9', 'a', 1, 0, 1, 0};
+
+    response = BulkResponse.parse(gif, gif.length);
+
+    assertThat(response).isSameAs(BulkResponse.UNKNOWN);
+    assertThat(response.getInvalid()).isEqualTo(-1);
+
+  }
+
+}
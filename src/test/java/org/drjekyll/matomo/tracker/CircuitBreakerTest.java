@@ -0,0 +1,143 @@
+package org.drjekyll.matomo.tracker;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CircuitBreakerTest {
+
+  private final TrackerConfiguration.TrackerConfigurationBuilder trackerConfigurationBuilder =
+    TrackerConfiguration.builder()
+      .apiEndpoint(URI.create("http://localhost"))
+      .circuitBreaker(true)
+      .circuitBreakerWindowSize(4)
+      .circuitBreakerFailureRate(0.5)
+      .circuitBreakerOpenDuration(Duration.ofSeconds(10L));
+
+  private long now;
+
+  private CircuitBreaker circuitBreaker;
+
+  private void givenCircuitBreaker() {
+    circuitBreaker = new CircuitBreaker(trackerConfigurationBuilder.build(), () -> now);
+  }
+
+  private static TrackingFailedException serverError() {
+    return new TrackingFailedException("Server error", 503, null);
+  }
+
+  @Test
+  void staysClosedBelowFailureRate() {
+
+    givenCircuitBreaker();
+
+    circuitBreaker.record(null);
+    circuitBreaker.record(null);
+    circuitBreaker.record(null);
+    circuitBreaker.record(serverError());
+
+    assertThat(circuitBreaker.acquire()).isEqualTo(CircuitBreaker.State.CLOSED);
+
+  }
+
+  @Test
+  void opensAtFailureRate() {
+
+    givenCircuitBreaker();
+
+    circuitBreaker.record(null);
+    circuitBreaker.record(serverError());
+    circuitBreaker.record(null);
+    circuitBreaker.record(serverError());
+
+    assertThat(circuitBreaker.acquire()).isEqualTo(CircuitBreaker.State.OPEN);
+    assertThat(circuitBreaker.isClosed()).isFalse();
+
+  }
+
+  @Test
+  void waitsForFullWindow() {
+
+    givenCircuitBreaker();
+
+    circuitBreaker.record(serverError());
+    circuitBreaker.record(serverError());
+    circuitBreaker.record(serverError());
+
+    assertThat(circuitBreaker.acquire()).isEqualTo(CircuitBreaker.State.CLOSED);
+
+  }
+
+  @Test
+  void ignoresRejectedRequests() {
+
+    givenCircuitBreaker();
+
+    for (int i = 0; i < 4; i++) {
+      circuitBreaker.record(new TrackingFailedException("Bad request", 400, null));
+    }
+
+    assertThat(circuitBreaker.acquire()).isEqualTo(CircuitBreaker.State.CLOSED);
+
+  }
+
+  @Test
+  void allowsSingleProbeAfterOpenDuration() {
+
+    givenOpenCircuitBreaker();
+    now += Duration.ofSeconds(10L).toNanos();
+
+    assertThat(circuitBreaker.acquire()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+    assertThat(circuitBreaker.acquire()).isEqualTo(CircuitBreaker.State.OPEN);
+
+  }
+
+  private void givenOpenCircuitBreaker() {
+    givenCircuitBreaker();
+    for (int i = 0; i < 4; i++) {
+      circuitBreaker.record(serverError());
+    }
+  }
+
+  @Test
+  void closesAfterSuccessfulProbe() {
+
+    givenOpenCircuitBreaker();
+    now += Duration.ofSeconds(10L).toNanos();
+    circuitBreaker.acquire();
+
+    circuitBreaker.record(null);
+
+    assertThat(circuitBreaker.acquire()).isEqualTo(CircuitBreaker.State.CLOSED);
+
+  }
+
+  @Test
+  void reopensAfterFailedProbe() {
+
+    givenOpenCircuitBreaker();
+    now += Duration.ofSeconds(10L).toNanos();
+    circuitBreaker.acquire();
+
+    circuitBreaker.record(serverError());
+
+    assertThat(circuitBreaker.acquire()).isEqualTo(CircuitBreaker.State.OPEN);
+    now += Duration.ofSeconds(10L).toNanos();
+    assertThat(circuitBreaker.acquire()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+
+  }
+
+  @Test
+  void isAlwaysClosedIfDisabled() {
+
+    trackerConfigurationBuilder.circuitBreaker(false);
+    givenOpenCircuitBreaker();
+
+    assertThat(circuitBreaker.acquire()).isEqualTo(CircuitBreaker.State.CLOSED);
+
+  }
+
+}
@@ -2,6 +2,8 @@ package org.drjekyll.matomo.tracker;
 
 import org.junit.jupiter.api.Test;
 
+import java.util.concurrent.ForkJoinPool;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 class CommonPoolRunnableTest {
@@ -11,7 +13,7 @@ class CommonPoolRunnableTest {
   @Test
   void runsCommandInCommonPool() throws Exception {
 
-    Runnable commonPoolRunnable = new CommonPoolRunnable(() -> result = true);
+    Runnable commonPoolRunnable = new CommonPoolRunnable(() -> result = true, ForkJoinPool.commonPool());
 
     commonPoolRunnable.run();
     Thread.sleep(1000L);
@@ -20,4 +22,15 @@ class CommonPoolRunnableTest {
 
   }
 
+  @Test
+  void runsCommandInGivenExecutor() {
+
+    Runnable commonPoolRunnable = new CommonPoolRunnable(() -> result = true, Runnable::run);
+
+    commonPoolRunnable.run();
+
+    assertThat(result).isTrue();
+
+  }
+
 }
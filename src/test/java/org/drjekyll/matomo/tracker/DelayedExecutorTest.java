@@ -4,9 +4,11 @@ import org.junit.jupiter.api.Test;
 
 import java.time.Instant;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatCode;
 
 class DelayedExecutorTest {
 
@@ -16,7 +18,7 @@ class DelayedExecutorTest {
   void delaysExecution() throws Exception {
 
     ScheduledThreadPoolExecutor scheduledThreadPoolExecutor = new ScheduledThreadPoolExecutor(1);
-    Executor delayedExecutor = new DelayedExecutor(scheduledThreadPoolExecutor, 1000L);
+    Executor delayedExecutor = new DelayedExecutor(scheduledThreadPoolExecutor, ForkJoinPool.commonPool(), () -> 1000L);
 
     Instant startTime = Instant.now();
     delayedExecutor.execute(() -> executionTime = Instant.now());
@@ -28,4 +30,15 @@ class DelayedExecutorTest {
 
   }
 
+  @Test
+  void ignoresCommandsAfterShutdown() {
+
+    ScheduledThreadPoolExecutor scheduledThreadPoolExecutor = new ScheduledThreadPoolExecutor(1);
+    scheduledThreadPoolExecutor.shutdown();
+    Executor delayedExecutor = new DelayedExecutor(scheduledThreadPoolExecutor, ForkJoinPool.commonPool(), () -> 1000L);
+
+    assertThatCode(() -> delayedExecutor.execute(() -> executionTime = Instant.now())).doesNotThrowAnyException();
+
+  }
+
 }
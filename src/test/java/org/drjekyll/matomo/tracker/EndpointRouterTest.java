@@ -0,0 +1,196 @@
+package org.drjekyll.matomo.tracker;
+
+import org.drjekyll.matomo.tracker.parameters.VisitorId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EndpointRouterTest {
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+  private final TrackerConfiguration.TrackerConfigurationBuilder trackerConfigurationBuilder =
+    TrackerConfiguration.builder().apiEndpoint(URI.create("http://localhost")).defaultSiteId(1);
+
+  private final List<Endpoint> endpoints = new ArrayList<>();
+
+  private final List<StubHttpSender> httpSenders = new ArrayList<>();
+
+  private final List<Sender> senders = new ArrayList<>();
+
+  private EndpointRouter router;
+
+  @AfterEach
+  void shutDownScheduler() {
+    scheduler.shutdownNow();
+  }
+
+  private void givenRouter(int endpointCount) {
+    TrackerConfiguration trackerConfiguration = trackerConfigurationBuilder.build();
+    for (int i = 0; i < endpointCount; i++) {
+      StubHttpSender httpSender = new StubHttpSender();
+      Endpoint endpoint = new Endpoint(URI.create("http://matomo" + i + ".example/matomo.php"), httpSender);
+      httpSenders.add(httpSender);
+      endpoints.add(endpoint);
+      senders.add(new Sender(
+        trackerConfiguration,
+        new QueryCreator(trackerConfiguration),
+        endpoint,
+        Runnable::run,
+        Runnable::run,
+        scheduler,
+        null,
+        null,
+        new AdaptiveBatching(trackerConfiguration)
+      ));
+    }
+    router = new EndpointRouter(trackerConfiguration, endpoints, senders);
+  }
+
+  private static Action visitor(long hash) {
+    return Action.builder().visitorId(VisitorId.fromHash(hash)).build();
+  }
+
+  @Test
+  void routesVisitorToSameEndpoint() {
+
+    trackerConfigurationBuilder.endpointRouting(EndpointRouting.CONSISTENT_HASHING);
+    givenRouter(3);
+
+    for (long i = 0L; i < 100L; i++) {
+      assertThat(router.route(visitor(i))).isSameAs(router.route(visitor(i)));
+    }
+
+  }
+
+  @Test
+  void distributesVisitorsOverAllEndpoints() {
+
+    trackerConfigurationBuilder.endpointRouting(EndpointRouting.CONSISTENT_HASHING);
+    givenRouter(3);
+    Map<Sender, Integer> counts = new HashMap<>();
+
+    for (long i = 0L; i < 3000L; i++) {
+      counts.merge(router.route(visitor(i)), 1, Integer::sum);
+    }
+
+    assertThat(counts).hasSize(3);
+    assertThat(counts.values()).allSatisfy(count -> assertThat(count).isGreaterThan(700));
+
+  }
+
+  @Test
+  void routesByUserIdWithoutVisitorId() {
+
+    trackerConfigurationBuilder.endpointRouting(EndpointRouting.CONSISTENT_HASHING);
+    givenRouter(3);
+
+    Sender sender = router.route(Action.builder().userId("user@example.com").build());
+
+    assertThat(router.route(Action.builder().userId("user@example.com").siteId(2).build())).isSameAs(sender);
+
+  }
+
+  @Test
+  void routesByVisitorIdOfTemplate() {
+
+    trackerConfigurationBuilder.endpointRouting(EndpointRouting.CONSISTENT_HASHING);
+    givenRouter(3);
+    ActionTemplate template = ActionTemplate.of(Action.builder().userId("user@example.com").build());
+
+    Sender sender = router.route(Action.builder().userId("user@example.com").build());
+
+    assertThat(router.route(Action.builder().template(template).name("Home").build())).isSameAs(sender);
+
+  }
+
+  @Test
+  void routesToFirstEndpointIfAvailable() {
+
+    givenRouter(2);
+
+    assertThat(router.route(visitor(1L))).isSameAs(senders.get(0));
+
+  }
+
+  @Test
+  void failsOverToNextAvailableEndpoint() {
+
+    givenRouter(2);
+    httpSenders.get(0).available = false;
+
+    endpoints.get(0).send(Collections.singletonList("rec=1"));
+
+    assertThat(router.route(visitor(1L))).isSameAs(senders.get(1));
+
+  }
+
+  @Test
+  void movesUnsentQueriesToNextAvailableEndpoint() {
+
+    givenRouter(2);
+    httpSenders.get(0).available = false;
+
+    CompletableFuture<Void> future = senders.get(0).send(visitor(1L));
+
+    assertThat(future).isCompleted();
+    assertThat(httpSenders.get(0).requests).isEqualTo(1);
+    assertThat(httpSenders.get(1).requests).isEqualTo(1);
+
+  }
+
+  @Test
+  void returnsToFirstEndpointAfterSuccessfulProbe() {
+
+    givenRouter(2);
+    httpSenders.get(0).available = false;
+    endpoints.get(0).send(Collections.singletonList("rec=1"));
+    httpSenders.get(0).available = true;
+
+    router.probeUnavailableEndpoints();
+
+    assertThat(router.route(visitor(1L))).isSameAs(senders.get(0));
+
+  }
+
+  private static final class StubHttpSender implements HttpSender {
+
+    private boolean available = true;
+
+    private int requests;
+
+    @Override
+    public CompletableFuture<BulkResponse> send(Collection<String> queries) {
+      requests++;
+      if (available) {
+        return CompletableFuture.completedFuture(BulkResponse.UNKNOWN);
+      }
+      return CompletableFuture.failedFuture(new ConnectionFailedException(new IOException("Connection refused")));
+    }
+
+    @Override
+    public void warmUp() {
+      // nothing to warm up
+    }
+
+    @Override
+    public boolean probe() {
+      return available;
+    }
+
+  }
+
+}
@@ -0,0 +1,30 @@
+package org.drjekyll.matomo.tracker;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HttpClientSenderTest {
+
+  @Test
+  void failsFutureIfPayloadCannotBeCreated() {
+
+    URI apiEndpoint = URI.create("http://localhost:8099/matomo.php");
+    HttpClientSender sender = new HttpClientSender(
+      TrackerConfiguration.builder().apiEndpoint(apiEndpoint).build(),
+      apiEndpoint,
+      ForkJoinPool.commonPool()
+    );
+
+    CompletableFuture<BulkResponse> response = sender.send(Collections.singletonList(null));
+
+    assertThat(response).isCompletedExceptionally();
+
+  }
+
+}
@@ -1,6 +1,7 @@
 package org.drjekyll.matomo.tracker;
 
 import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.http.RequestMethod;
 import com.github.tomakehurst.wiremock.junit5.WireMockTest;
 
 import org.drjekyll.matomo.tracker.TrackerConfiguration.TrackerConfigurationBuilder;
@@ -16,15 +17,23 @@ import org.drjekyll.matomo.tracker.parameters.UnixTimestamp;
 import org.drjekyll.matomo.tracker.parameters.VisitorId;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.net.URI;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.Locale.LanguageRange;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.stubbing.Scenario.STARTED;
+import static com.github.tomakehurst.wiremock.client.WireMock.head;
 import static com.github.tomakehurst.wiremock.client.WireMock.post;
 import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.resetAllRequests;
@@ -33,6 +42,7 @@ import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import static com.github.tomakehurst.wiremock.matching.RequestPatternBuilder.newRequestPattern;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
@@ -332,7 +342,7 @@ class MatomoTrackerIT {
   @Test
   void reportsErrors() {
 
-    stubFor(post(urlPathEqualTo("/failing")).willReturn(status(500)));
+    stubFor(post(urlPathEqualTo("/failing")).willReturn(status(400)));
     trackerConfigurationBuilder.apiEndpoint(URI.create("http://localhost:8099/failing")).defaultSiteId(SITE_ID);
 
     whenTracksAction(true);
@@ -385,6 +395,389 @@ class MatomoTrackerIT {
 
   }
 
+  @Test
+  void sendsBulkRequestImmediatelyIfBatchIsFull() throws Exception {
+
+    givenTrackerConfigurationWithDefaultSiteId();
+    trackerConfigurationBuilder.delay(Duration.ofMinutes(1L)).maxBatchSize(2);
+    MatomoTracker tracker = new MatomoTracker(trackerConfigurationBuilder.build());
+
+    tracker.track(actionBuilder.name("First").build());
+    CompletableFuture<Void> future = tracker.track(actionBuilder.name("Second").build());
+    future.get();
+
+    verify(postRequestedFor(urlEqualTo("/matomo.php"))
+      .withRequestBody(WireMock.equalToJson(
+        "{\"requests\":[\"?rec=1&idsite=42&action_name=First&send_image=0\",\"?rec=1&idsite=42&action_name=Second&send_image=0\"]}")));
+
+  }
+
+  @Test
+  void splitsBulkRequestsExceedingMaxBatchBytes() throws Exception {
+
+    givenTrackerConfigurationWithDefaultSiteId();
+    trackerConfigurationBuilder.delay(Duration.ofMillis(500L)).maxBatchBytes(120L);
+    MatomoTracker tracker = new MatomoTracker(trackerConfigurationBuilder.build());
+
+    tracker.track(actionBuilder.name("First").build());
+    tracker.track(actionBuilder.name("Second").build());
+    tracker.track(actionBuilder.name("Third").build()).get();
+
+    verify(2, postRequestedFor(urlEqualTo("/matomo.php")));
+    verify(postRequestedFor(urlEqualTo("/matomo.php"))
+      .withRequestBody(WireMock.equalToJson(
+        "{\"requests\":[\"?rec=1&idsite=42&action_name=First&send_image=0\",\"?rec=1&idsite=42&action_name=Second&send_image=0\"]}")));
+    verify(postRequestedFor(urlEqualTo("/matomo.php"))
+      .withRequestBody(WireMock.equalToJson(
+        "{\"requests\":[\"?rec=1&idsite=42&action_name=Third&send_image=0\"]}")));
+
+  }
+
+  @Test
+  void sendsBulkRequestWithHttpClient() throws Exception {
+
+    givenTrackerConfigurationWithDefaultSiteId();
+    trackerConfigurationBuilder.transport(Transport.HTTP_CLIENT);
+    MatomoTracker tracker = new MatomoTracker(trackerConfigurationBuilder.build());
+
+    tracker.track(actionBuilder.name("First").build()).get();
+
+    verify(postRequestedFor(urlEqualTo("/matomo.php"))
+      .withHeader("Accept", equalTo("*/*"))
+      .withHeader("Content-Type", equalTo("application/json"))
+      .withHeader("User-Agent", equalTo("MatomoJavaClient"))
+      .withRequestBody(WireMock.equalToJson("{\"requests\":[\"?rec=1&idsite=42&action_name=First&send_image=0\"]}")));
+
+  }
+
+  @Test
+  void reportsErrorsWithHttpClient() {
+
+    stubFor(post(urlPathEqualTo("/failing")).willReturn(status(400)));
+    trackerConfigurationBuilder.apiEndpoint(URI.create("http://localhost:8099/failing"))
+      .defaultSiteId(SITE_ID)
+      .transport(Transport.HTTP_CLIENT);
+
+    whenTracksAction(false);
+
+    assertThatThrownBy(future::join).hasCauseInstanceOf(TrackingFailedException.class);
+
+  }
+
+  @Test
+  void sendsBulkRequestsWithKeepAlive() throws Exception {
+
+    givenTrackerConfigurationWithDefaultSiteId();
+    trackerConfigurationBuilder.keepAlive(true);
+    MatomoTracker tracker = new MatomoTracker(trackerConfigurationBuilder.build());
+
+    tracker.track(actionBuilder.name("First").build()).get();
+    tracker.track(actionBuilder.name("Second").build()).get();
+
+    verify(2, postRequestedFor(urlEqualTo("/matomo.php")));
+
+  }
+
+  @Test
+  void warmsUpConnection() throws Exception {
+
+    stubFor(head(urlPathEqualTo("/matomo.php")).willReturn(status(200)));
+    givenTrackerConfigurationWithDefaultSiteId();
+    trackerConfigurationBuilder.keepAlive(true).warmUp(true);
+
+    new MatomoTracker(trackerConfigurationBuilder.build());
+    Thread.sleep(500L);
+
+    verify(newRequestPattern(RequestMethod.HEAD, urlEqualTo("/matomo.php")));
+
+  }
+
+  @Test
+  void compressesBulkRequest() throws Exception {
+
+    givenTrackerConfigurationWithDefaultSiteId();
+    trackerConfigurationBuilder.compression(Compression.GZIP).compressionThreshold(0);
+    MatomoTracker tracker = new MatomoTracker(trackerConfigurationBuilder.build());
+
+    tracker.track(actionBuilder.name("First").build()).get();
+
+    verify(postRequestedFor(urlEqualTo("/matomo.php"))
+      .withHeader("Content-Encoding", equalTo("gzip"))
+      .withRequestBody(WireMock.equalToJson("{\"requests\":[\"?rec=1&idsite=42&action_name=First&send_image=0\"]}")));
+
+  }
+
+  @Test
+  void retriesFailedBulkRequest() throws Exception {
+
+    stubFor(post(urlPathEqualTo("/retrying")).inScenario("retry").whenScenarioStateIs(STARTED)
+      .willReturn(status(503).withHeader("Retry-After", "0")).willSetStateTo("recovered"));
+    stubFor(post(urlPathEqualTo("/retrying")).inScenario("retry").whenScenarioStateIs("recovered")
+      .willReturn(status(204)));
+    trackerConfigurationBuilder.apiEndpoint(URI.create("http://localhost:8099/retrying"))
+      .defaultSiteId(SITE_ID)
+      .maxAttempts(3)
+      .retryInitialBackoff(Duration.ofMillis(10L));
+    MatomoTracker tracker = new MatomoTracker(trackerConfigurationBuilder.build());
+
+    tracker.track(actionBuilder.name("First").build()).get();
+
+    verify(2, postRequestedFor(urlEqualTo("/retrying")));
+
+  }
+
+  @Test
+  void doesNotRetryRejectedBulkRequest() {
+
+    stubFor(post(urlPathEqualTo("/rejecting")).willReturn(status(400)));
+    trackerConfigurationBuilder.apiEndpoint(URI.create("http://localhost:8099/rejecting"))
+      .defaultSiteId(SITE_ID)
+      .maxAttempts(3)
+      .retryInitialBackoff(Duration.ofMillis(10L));
+
+    whenTracksAction(false);
+
+    assertThatThrownBy(future::join).hasCauseInstanceOf(TrackingFailedException.class);
+    verify(1, postRequestedFor(urlEqualTo("/rejecting")));
+
+  }
+
+  @Test
+  void rejectsActionsReportedAsInvalid() {
+
+    givenPartiallyRejectingEndpoint();
+
+    thenRejectsSecondAction();
+
+  }
+
+  private void givenPartiallyRejectingEndpoint() {
+    stubFor(post(urlPathEqualTo("/partial")).willReturn(status(200).withHeader("Content-Type", "application/json")
+      .withBody("{\"status\":\"success\",\"tracked\":1,\"invalid\":1,\"invalid_indices\":[1]}")));
+    trackerConfigurationBuilder.apiEndpoint(URI.create("http://localhost:8099/partial"))
+      .defaultSiteId(SITE_ID)
+      .delay(Duration.ofMillis(200L));
+  }
+
+  private void thenRejectsSecondAction() {
+    MatomoTracker tracker = new MatomoTracker(trackerConfigurationBuilder.build());
+    CompletableFuture<Void> first = tracker.track(actionBuilder.name("First").build());
+    CompletableFuture<Void> second = tracker.track(actionBuilder.name("Second").build());
+
+    assertThatThrownBy(second::join).hasCauseInstanceOf(ActionRejectedException.class);
+    assertThat(first.join()).isNull();
+    verify(1, postRequestedFor(urlEqualTo("/partial")));
+  }
+
+  @Test
+  void rejectsActionsReportedAsInvalidWithHttpClient() {
+
+    givenPartiallyRejectingEndpoint();
+    trackerConfigurationBuilder.transport(Transport.HTTP_CLIENT);
+
+    thenRejectsSecondAction();
+
+  }
+
+  @Test
+  void isolatesRejectedActionInDeadLetterDirectory(@TempDir Path deadLetterDirectory) throws Exception {
+
+    stubFor(post(urlPathEqualTo("/poisoned")).willReturn(status(204)));
+    stubFor(post(urlPathEqualTo("/poisoned")).withRequestBody(WireMock.containing("Poison"))
+      .willReturn(status(400)));
+    trackerConfigurationBuilder.apiEndpoint(URI.create("http://localhost:8099/poisoned"))
+      .defaultSiteId(SITE_ID)
+      .delay(Duration.ofMillis(200L))
+      .deadLetterDirectory(deadLetterDirectory);
+    MatomoTracker tracker = new MatomoTracker(trackerConfigurationBuilder.build());
+    CompletableFuture<Void> first = tracker.track(actionBuilder.name("First").build());
+    CompletableFuture<Void> poison = tracker.track(actionBuilder.name("Poison").build());
+    CompletableFuture<Void> third = tracker.track(actionBuilder.name("Third").build());
+
+    assertThatThrownBy(poison::join).hasCauseInstanceOf(TrackingFailedException.class);
+    first.get();
+    third.get();
+    assertThat(deadLetterDirectory.resolve("dead-letters.log")).content().contains("action_name=Poison")
+      .doesNotContain("action_name=First");
+
+  }
+
+  @Test
+  void dropsActionsExceedingRateLimit() throws Exception {
+
+    givenTrackerConfigurationWithDefaultSiteId();
+    trackerConfigurationBuilder.rateLimit(1.0).rateLimitPolicy(RateLimitPolicy.DROP);
+    MatomoTracker tracker = new MatomoTracker(trackerConfigurationBuilder.build());
+    tracker.track(actionBuilder.name("First").build()).get();
+
+    CompletableFuture<Void> second = tracker.track(actionBuilder.name("Second").build());
+
+    assertThatThrownBy(second::join).hasCauseInstanceOf(ActionDroppedException.class);
+    assertThat(tracker.getDroppedActions()).isEqualTo(1L);
+    assertThat(tracker.getRateLimitFillLevel()).isLessThan(1.0);
+
+  }
+
+  @Test
+  void replaysSpooledQueriesAfterOutage(@TempDir Path spoolDirectory) throws Exception {
+
+    stubFor(post(urlPathEqualTo("/failing")).willReturn(status(503)));
+    trackerConfigurationBuilder.apiEndpoint(URI.create("http://localhost:8099/failing"))
+      .defaultSiteId(SITE_ID)
+      .spoolDirectory(spoolDirectory);
+    MatomoTracker failingTracker = new MatomoTracker(trackerConfigurationBuilder.build());
+    assertThatThrownBy(() -> failingTracker.track(actionBuilder.name("First").build()).join())
+      .hasCauseInstanceOf(TrackingFailedException.class);
+    failingTracker.close();
+
+    trackerConfigurationBuilder.apiEndpoint(URI.create("http://localhost:8099/matomo.php"));
+    new MatomoTracker(trackerConfigurationBuilder.build());
+    Thread.sleep(500L);
+
+    verify(postRequestedFor(urlEqualTo("/matomo.php"))
+      .withRequestBody(WireMock.equalToJson("{\"requests\":[\"?rec=1&idsite=42&action_name=First&send_image=0\"]}")));
+
+  }
+
+  @Test
+  void shortCircuitsIfEndpointFails() throws Exception {
+
+    stubFor(post(urlPathEqualTo("/failing")).willReturn(status(503)));
+    trackerConfigurationBuilder.apiEndpoint(URI.create("http://localhost:8099/failing"))
+      .defaultSiteId(SITE_ID)
+      .circuitBreaker(true)
+      .circuitBreakerWindowSize(2);
+    MatomoTracker tracker = new MatomoTracker(trackerConfigurationBuilder.build());
+    CompletableFuture<Void> first = tracker.track(actionBuilder.name("First").build());
+    Thread.sleep(500L);
+
+    CompletableFuture<Void> second = tracker.track(actionBuilder.name("Second").build());
+
+    Thread.sleep(100L);
+    assertThat(first).isNotDone();
+    assertThat(second).isNotDone();
+    verify(2, postRequestedFor(urlEqualTo("/failing")));
+    tracker.close(Duration.ofMillis(100L));
+    assertThatThrownBy(second::join).hasCauseInstanceOf(ActionDroppedException.class);
+
+  }
+
+  @Test
+  void failsOverToAdditionalEndpoint() throws Exception {
+
+    stubFor(post(urlPathEqualTo("/failing")).willReturn(status(503)));
+    trackerConfigurationBuilder.apiEndpoint(URI.create("http://localhost:8099/failing"))
+      .additionalApiEndpoint(URI.create("http://localhost:8099/matomo.php"))
+      .defaultSiteId(SITE_ID);
+    MatomoTracker tracker = new MatomoTracker(trackerConfigurationBuilder.build());
+    tracker.track(actionBuilder.name("First").build()).get();
+
+    tracker.track(actionBuilder.name("Second").build()).get();
+
+    verify(postRequestedFor(urlEqualTo("/failing")));
+    verify(postRequestedFor(urlEqualTo("/matomo.php"))
+      .withRequestBody(WireMock.equalToJson("{\"requests\":[\"?rec=1&idsite=42&action_name=First&send_image=0\"]}")));
+    verify(postRequestedFor(urlEqualTo("/matomo.php"))
+      .withRequestBody(WireMock.equalToJson("{\"requests\":[\"?rec=1&idsite=42&action_name=Second&send_image=0\"]}")));
+
+  }
+
+  @Test
+  void sendsBulkRequestsWithGivenExecutors() throws Exception {
+
+    AtomicInteger executions = new AtomicInteger();
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    givenTrackerConfigurationWithDefaultSiteId();
+    trackerConfigurationBuilder.executor(command -> {
+      executions.incrementAndGet();
+      command.run();
+    }).scheduler(scheduler);
+
+    new MatomoTracker(trackerConfigurationBuilder.build()).track(actionBuilder.build()).get();
+
+    assertThat(executions).hasPositiveValue();
+    scheduler.shutdown();
+
+  }
+
+  @Test
+  void handlesResponsesOfHttpClientWithGivenExecutor() throws Exception {
+
+    ExecutorService executor = Executors.newCachedThreadPool(runnable -> new Thread(runnable, "given-executor"));
+    givenTrackerConfigurationWithDefaultSiteId();
+    trackerConfigurationBuilder.transport(Transport.HTTP_CLIENT).executor(executor);
+
+    String thread = new MatomoTracker(trackerConfigurationBuilder.build()).track(actionBuilder.build())
+      .thenApply(ignored -> Thread.currentThread().getName())
+      .get();
+
+    assertThat(thread).isEqualTo("given-executor");
+    executor.shutdown();
+
+  }
+
+  @Test
+  void sendsBulkRequestsOnVirtualThreadsIfSupported() throws Exception {
+
+    givenTrackerConfigurationWithDefaultSiteId();
+    trackerConfigurationBuilder.virtualThreads(true);
+
+    new MatomoTracker(trackerConfigurationBuilder.build()).track(actionBuilder.build()).get();
+
+    verify(postRequestedFor(urlEqualTo("/matomo.php")));
+
+  }
+
+  @Test
+  void sendsQueuedActionsOnClose() {
+
+    givenTrackerConfigurationWithDefaultSiteId();
+    trackerConfigurationBuilder.delay(Duration.ofMinutes(1L));
+    MatomoTracker tracker = new MatomoTracker(trackerConfigurationBuilder.build());
+    CompletableFuture<Void> future = tracker.track(actionBuilder.build());
+
+    tracker.close(Duration.ofSeconds(5L));
+
+    assertThat(future).isCompleted();
+    verify(postRequestedFor(urlEqualTo("/matomo.php")));
+
+  }
+
+  @Test
+  void spoolsUnsentActionsOnClose(@TempDir Path spoolDirectory) throws Exception {
+
+    stubFor(post(urlPathEqualTo("/matomo.php")).willReturn(status(204).withFixedDelay(1000)));
+    givenTrackerConfigurationWithDefaultSiteId();
+    trackerConfigurationBuilder.spoolDirectory(spoolDirectory).maxBatchSize(1);
+    MatomoTracker tracker = new MatomoTracker(trackerConfigurationBuilder.build());
+    CompletableFuture<Void> first = tracker.track(actionBuilder.name("First").build());
+    CompletableFuture<Void> second = tracker.track(actionBuilder.name("Second").build());
+
+    tracker.close(Duration.ofMillis(100L));
+
+    assertThatThrownBy(first::join).hasCauseInstanceOf(ActionSpooledException.class);
+    assertThatThrownBy(second::join).hasCauseInstanceOf(ActionSpooledException.class);
+    assertThat(Spool.open(trackerConfigurationBuilder.build(), spoolDirectory).poll(10, Long.MAX_VALUE)).hasSize(2)
+      .last()
+      .extracting(Spool.PolledRecord::getQuery)
+      .asString()
+      .contains("action_name=Second");
+
+  }
+
+  @Test
+  void dropsActionsTrackedAfterClose() {
+
+    givenTrackerConfigurationWithDefaultSiteId();
+    MatomoTracker tracker = new MatomoTracker(trackerConfigurationBuilder.build());
+    tracker.close();
+
+    CompletableFuture<Void> future = tracker.track(actionBuilder.build());
+
+    assertThatThrownBy(future::join).hasCauseInstanceOf(ActionDroppedException.class);
+
+  }
+
   @Test
   void failsOnNegativeSiteId() {
 
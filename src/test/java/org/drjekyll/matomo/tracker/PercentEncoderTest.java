@@ -0,0 +1,75 @@
+package org.drjekyll.matomo.tracker;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PercentEncoderTest {
+
+  private final StringBuilder target = new StringBuilder("&");
+
+  private void thenEncodesLikeUrlEncoder(String value) {
+    target.setLength(1);
+    PercentEncoder.encode(value, target);
+    assertThat(target).hasToString("&" + URLEncoder.encode(value, StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void keepsUnreservedCharacters() {
+
+    thenEncodesLikeUrlEncoder("abcXYZ019.-*_");
+
+  }
+
+  @Test
+  void encodesReservedCharacters() {
+
+    thenEncodesLikeUrlEncoder("https://www.daniel-heid.de/some/page?foo=bar&x=~!'()%+ #");
+
+  }
+
+  @Test
+  void encodesMultiByteCharacters() {
+
+    thenEncodesLikeUrlEncoder("Über Straße € 日本 😀");
+
+  }
+
+  @Test
+  void replacesUnpairedSurrogates() {
+
+    thenEncodesLikeUrlEncoder("a\uD83Db\uDE00c\uD83D");
+
+  }
+
+  @Test
+  void encodesAllCharactersLikeUrlEncoder() {
+
+    StringBuilder value = new StringBuilder();
+    for (char c = 0; c < Character.MAX_VALUE; c++) {
+      value.append(c);
+    }
+
+    thenEncodesLikeUrlEncoder(value.toString());
+
+  }
+
+  @Test
+  void encodesRandomStringsLikeUrlEncoder() {
+
+    Random random = new Random(42L);
+    for (int i = 0; i < 1000; i++) {
+      char[] chars = new char[random.nextInt(20)];
+      for (int j = 0; j < chars.length; j++) {
+        chars[j] = (char) (random.nextBoolean() ? random.nextInt(0x80) : random.nextInt(Character.MAX_VALUE));
+      }
+      thenEncodesLikeUrlEncoder(new String(chars));
+    }
+
+  }
+
+}
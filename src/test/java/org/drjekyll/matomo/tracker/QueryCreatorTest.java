@@ -73,6 +73,32 @@ class QueryCreatorTest {
 
   }
 
+  @Test
+  void appendsActionParametersToTemplate() {
+
+    actionBuilder.template(ActionTemplate.of(Action.builder()
+      .siteId(7)
+      .userAgent("Mozilla")
+      .build())).name("Home");
+
+    whenCreatesQuery();
+
+    assertThat(query).isEqualTo("rec=1&idsite=7&ua=Mozilla&send_image=0&action_name=Home&send_image=0");
+
+  }
+
+  @Test
+  void usesTokenAuthOfTemplate() {
+
+    defaultTokenAuth = "f123bfc9a46de0bb5453afdab6f93200";
+    actionBuilder.template(ActionTemplate.of(Action.builder().tokenAuth("e456bfc9a46de0bb5453afdab6f93200").build()));
+
+    whenCreatesQuery();
+
+    assertThat(query).isEqualTo("rec=1&idsite=42&token_auth=e456bfc9a46de0bb5453afdab6f93200&send_image=0&send_image=0");
+
+  }
+
   @Test
   void validatesTokenAuth() {
 
@@ -181,6 +207,25 @@ class QueryCreatorTest {
 
   }
 
+  @Test
+  void removesTokenAuth() {
+
+    String stripped = QueryCreator.withoutTokenAuth(
+      "rec=1&idsite=42&token_auth=f123bfc9a46de0bb5453afdab6f93200&send_image=0&token_auth=e456");
+
+    assertThat(stripped).isEqualTo("rec=1&idsite=42&send_image=0");
+
+  }
+
+  @Test
+  void keepsQueryWithoutTokenAuth() {
+
+    String stripped = QueryCreator.withoutTokenAuth("rec=1&idsite=42&action_name=token_auth%3D");
+
+    assertThat(stripped).isEqualTo("rec=1&idsite=42&action_name=token_auth%3D");
+
+  }
+
   private void whenCreatesQuery() {
     query = new QueryCreator(TrackerConfiguration.builder()
       .delay(Duration.ofNanos(1L))
@@ -0,0 +1,54 @@
+package org.drjekyll.matomo.tracker;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class QueueLimitTest {
+
+  @Test
+  void limitsCount() {
+
+    QueueLimit limit = new QueueLimit(2, 1000L);
+
+    assertThat(limit.tryAcquire(10)).isTrue();
+    assertThat(limit.tryAcquire(10)).isTrue();
+    assertThat(limit.tryAcquire(10)).isFalse();
+
+  }
+
+  @Test
+  void limitsBytes() {
+
+    QueueLimit limit = new QueueLimit(10, 100L);
+
+    assertThat(limit.tryAcquire(60)).isTrue();
+    assertThat(limit.tryAcquire(60)).isFalse();
+
+    assertThat(limit.count()).isEqualTo(1);
+    assertThat(limit.bytes()).isEqualTo(60L);
+
+  }
+
+  @Test
+  void acceptsLargeQueryIfEmpty() {
+
+    QueueLimit limit = new QueueLimit(10, 100L);
+
+    assertThat(limit.tryAcquire(200)).isTrue();
+
+  }
+
+  @Test
+  void releasesPermits() {
+
+    QueueLimit limit = new QueueLimit(1, 100L);
+    limit.tryAcquire(60);
+
+    limit.release(60);
+
+    assertThat(limit.tryAcquire(60)).isTrue();
+
+  }
+
+}
@@ -0,0 +1,248 @@
+package org.drjekyll.matomo.tracker;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RateLimiterTest {
+
+  private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+
+  private final TrackerConfiguration.TrackerConfigurationBuilder trackerConfigurationBuilder =
+    TrackerConfiguration.builder().apiEndpoint(URI.create("http://localhost")).defaultSiteId(1);
+
+  private final List<Action> sent = new ArrayList<>();
+
+  private long now;
+
+  private RateLimiter rateLimiter;
+
+  @AfterEach
+  void shutDownScheduler() {
+    scheduler.shutdownNow();
+  }
+
+  private void givenRateLimiter() {
+    rateLimiter = new RateLimiter(trackerConfigurationBuilder.build(), scheduler, Runnable::run, () -> now);
+  }
+
+  private CompletableFuture<Void> whenSends(int siteId) {
+    return whenSends(Action.builder().build(), siteId);
+  }
+
+  private CompletableFuture<Void> whenSends(Action action, int siteId) {
+    return rateLimiter.send(action, siteId, a -> {
+      sent.add(a);
+      return CompletableFuture.completedFuture(null);
+    });
+  }
+
+  @Test
+  void isDisabledByDefault() {
+
+    givenRateLimiter();
+
+    assertThat(rateLimiter.isEnabled()).isFalse();
+    assertThat(rateLimiter.getFillLevel()).isEqualTo(1.0);
+
+  }
+
+  @Test
+  void dropsActionsExceedingGlobalLimit() {
+
+    trackerConfigurationBuilder.rateLimit(2.0).rateLimitPolicy(RateLimitPolicy.DROP);
+    givenRateLimiter();
+    whenSends(1);
+    whenSends(2);
+
+    CompletableFuture<Void> future = whenSends(3);
+
+    assertThatThrownBy(future::join).hasCauseInstanceOf(ActionDroppedException.class);
+    assertThat(sent).hasSize(2);
+    assertThat(rateLimiter.getDroppedActions()).isEqualTo(1L);
+    assertThat(rateLimiter.getFillLevel()).isZero();
+
+  }
+
+  @Test
+  void limitsSitesSeparately() {
+
+    trackerConfigurationBuilder.defaultSiteRateLimit(1.0).siteRateLimit(2, 2.0).rateLimitPolicy(RateLimitPolicy.DROP);
+    givenRateLimiter();
+    whenSends(1);
+    whenSends(2);
+    whenSends(2);
+
+    CompletableFuture<Void> future = whenSends(1);
+
+    assertThatThrownBy(future::join).hasCauseInstanceOf(ActionDroppedException.class);
+    assertThat(whenSends(3)).isCompleted();
+    assertThat(sent).hasSize(4);
+    assertThat(rateLimiter.getFillLevel(1)).isZero();
+    assertThat(rateLimiter.getFillLevel(4)).isEqualTo(1.0);
+
+  }
+
+  @Test
+  void returnsSiteTokenIfGlobalLimitIsExceeded() {
+
+    trackerConfigurationBuilder.rateLimit(1.0).defaultSiteRateLimit(1.0).rateLimitPolicy(RateLimitPolicy.DROP);
+    givenRateLimiter();
+    whenSends(1);
+
+    whenSends(2);
+
+    assertThat(rateLimiter.getFillLevel(2)).isEqualTo(1.0);
+
+  }
+
+  @Test
+  void delaysActionsExceedingLimit() {
+
+    trackerConfigurationBuilder.rateLimit(100.0).rateLimitBurst(Duration.ofMillis(10L));
+    givenRateLimiter();
+    whenSends(1);
+
+    CompletableFuture<Void> future = whenSends(1);
+
+    assertThat(future).isNotDone();
+    assertThat(future).succeedsWithin(Duration.ofSeconds(1L));
+    assertThat(sent).hasSize(2);
+
+  }
+
+  @Test
+  void dropsActionsExceedingMaxDelay() {
+
+    trackerConfigurationBuilder.rateLimit(1.0).rateLimitMaxDelay(Duration.ofMillis(500L));
+    givenRateLimiter();
+    whenSends(1);
+
+    CompletableFuture<Void> future = whenSends(1);
+
+    assertThatThrownBy(future::join).hasCauseInstanceOf(ActionDroppedException.class);
+
+  }
+
+  @Test
+  void sendsDelayedActionsImmediately() {
+
+    trackerConfigurationBuilder.rateLimit(1.0).rateLimitMaxDelay(Duration.ofSeconds(10L));
+    givenRateLimiter();
+    whenSends(1);
+    CompletableFuture<Void> future = whenSends(1);
+
+    rateLimiter.sendDelayedActions();
+
+    assertThat(future).isCompleted();
+    assertThat(sent).hasSize(2);
+
+  }
+
+  @Test
+  void delaysActionsOfBucketWithSingleTimer() {
+
+    trackerConfigurationBuilder.rateLimit(1.0).rateLimitMaxDelay(Duration.ofSeconds(10L));
+    givenRateLimiter();
+    whenSends(1);
+    Action first = Action.builder().name("first").build();
+    Action second = Action.builder().name("second").build();
+    Action third = Action.builder().name("third").build();
+
+    whenSends(first, 1);
+    whenSends(second, 1);
+    whenSends(third, 1);
+
+    assertThat(scheduler.getQueue()).hasSize(1);
+    rateLimiter.sendDelayedActions();
+    assertThat(sent).hasSize(4).endsWith(first, second, third);
+
+  }
+
+  @Test
+  void sendsDelayedActionsOfBucketInOrder() {
+
+    trackerConfigurationBuilder.rateLimit(100.0).rateLimitBurst(Duration.ofMillis(10L));
+    givenRateLimiter();
+    whenSends(1);
+    Action first = Action.builder().name("first").build();
+    Action second = Action.builder().name("second").build();
+    CompletableFuture<Void> firstFuture = whenSends(first, 1);
+
+    CompletableFuture<Void> secondFuture = whenSends(second, 1);
+
+    assertThat(CompletableFuture.allOf(firstFuture, secondFuture)).succeedsWithin(Duration.ofSeconds(1L));
+    assertThat(sent).hasSize(3).endsWith(first, second);
+
+  }
+
+  @Test
+  void dropsActionsDelayedAfterClose() {
+
+    trackerConfigurationBuilder.rateLimit(1.0).rateLimitMaxDelay(Duration.ofSeconds(10L));
+    givenRateLimiter();
+    whenSends(1);
+    rateLimiter.sendDelayedActions();
+
+    CompletableFuture<Void> future = whenSends(1);
+
+    assertThatThrownBy(future::join).hasCauseInstanceOf(ActionDroppedException.class);
+    assertThat(rateLimiter.getDroppedActions()).isEqualTo(1L);
+
+  }
+
+  @Test
+  void dropsDelayedActionsIfSchedulerIsShutDown() {
+
+    trackerConfigurationBuilder.rateLimit(1.0).rateLimitMaxDelay(Duration.ofSeconds(10L));
+    givenRateLimiter();
+    whenSends(1);
+    scheduler.shutdownNow();
+
+    CompletableFuture<Void> future = whenSends(1);
+
+    assertThatThrownBy(future::join).hasCauseInstanceOf(ActionDroppedException.class);
+    assertThat(sent).hasSize(1);
+
+  }
+
+  @Test
+  void keepsLimitsOfUsedSitesWhenEvictingIdleOnes() {
+
+    trackerConfigurationBuilder.defaultSiteRateLimit(1.0).rateLimitPolicy(RateLimitPolicy.DROP);
+    givenRateLimiter();
+    whenSends(1);
+
+    for (int siteId = 2; siteId < 5000; siteId++) {
+      rateLimiter.getFillLevel(siteId);
+    }
+
+    assertThatThrownBy(whenSends(1)::join).hasCauseInstanceOf(ActionDroppedException.class);
+    assertThat(rateLimiter.getFillLevel(1)).isZero();
+
+  }
+
+  @Test
+  void samplesActionsExceedingLimit() {
+
+    trackerConfigurationBuilder.rateLimit(1.0).rateLimitPolicy(RateLimitPolicy.SAMPLE).rateLimitSampleRate(1.0);
+    givenRateLimiter();
+    whenSends(1);
+
+    CompletableFuture<Void> future = whenSends(1);
+
+    assertThat(future).isCompleted();
+    assertThat(sent).hasSize(2);
+
+  }
+
+}
@@ -0,0 +1,189 @@
+package org.drjekyll.matomo.tracker;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RetrySchedulerTest {
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+  private final TrackerConfiguration.TrackerConfigurationBuilder trackerConfigurationBuilder =
+    TrackerConfiguration.builder()
+      .apiEndpoint(URI.create("http://localhost"))
+      .maxAttempts(3)
+      .retryInitialBackoff(Duration.ofMillis(1L));
+
+  private final AtomicInteger attempts = new AtomicInteger();
+
+  @AfterEach
+  void shutDownScheduler() {
+    scheduler.shutdownNow();
+  }
+
+  private RetryScheduler retryScheduler() {
+    return new RetryScheduler(trackerConfigurationBuilder.build(), scheduler, Runnable::run);
+  }
+
+  @Test
+  void retriesUntilAttemptSucceeds() {
+
+    CompletableFuture<Void> result = retryScheduler().retry(failed(serverError()), () -> {
+      if (attempts.incrementAndGet() < 2) {
+        return failed(serverError());
+      }
+      return CompletableFuture.completedFuture(null);
+    });
+
+    result.join();
+    assertThat(attempts).hasValue(2);
+
+  }
+
+  private static CompletableFuture<Void> failed(Throwable throwable) {
+    return CompletableFuture.failedFuture(throwable);
+  }
+
+  private static TrackingFailedException serverError() {
+    return new TrackingFailedException("Server error", 503, null);
+  }
+
+  @Test
+  void stopsAfterMaxAttempts() {
+
+    CompletableFuture<Void> result = retryScheduler().retry(failed(serverError()), () -> {
+      attempts.incrementAndGet();
+      return failed(serverError());
+    });
+
+    assertThatThrownBy(result::join).hasCauseInstanceOf(TrackingFailedException.class);
+    assertThat(attempts).hasValue(2);
+
+  }
+
+  @Test
+  void doesNotRetryClientErrors() {
+
+    CompletableFuture<Void> result = retryScheduler().retry(
+      failed(new TrackingFailedException("Bad request", 400, null)),
+      () -> {
+        attempts.incrementAndGet();
+        return CompletableFuture.completedFuture(null);
+      }
+    );
+
+    assertThatThrownBy(result::join).hasCauseInstanceOf(TrackingFailedException.class);
+    assertThat(attempts).hasValue(0);
+
+  }
+
+  @Test
+  void stopsIfBudgetIsExhausted() {
+
+    trackerConfigurationBuilder.maxAttempts(Integer.MAX_VALUE).retryBudget(0.0);
+
+    CompletableFuture<Void> result = retryScheduler().retry(failed(serverError()), () -> {
+      attempts.incrementAndGet();
+      return failed(serverError());
+    });
+
+    assertThatThrownBy(result::join).hasCauseInstanceOf(TrackingFailedException.class);
+    assertThat(attempts).hasValue(10);
+
+  }
+
+  @Test
+  void failsIfCallThrows() {
+
+    CompletableFuture<Void> result = retryScheduler().retry(failed(serverError()), () -> {
+      throw new IllegalStateException("Call failed");
+    });
+
+    assertThatThrownBy(result::join).hasCauseInstanceOf(IllegalStateException.class);
+
+  }
+
+  @Test
+  void failsIfRetryCannotBeScheduled() {
+
+    scheduler.shutdown();
+
+    CompletableFuture<Void> result = retryScheduler().retry(failed(serverError()), () -> {
+      attempts.incrementAndGet();
+      return CompletableFuture.completedFuture(null);
+    });
+
+    assertThatThrownBy(result::join).hasCauseInstanceOf(TrackingFailedException.class);
+    assertThat(attempts).hasValue(0);
+
+  }
+
+  @Test
+  void failsIfRetryCannotBeExecuted() {
+
+    CompletableFuture<Void> result = new RetryScheduler(trackerConfigurationBuilder.build(), scheduler, command -> {
+      throw new RejectedExecutionException("Executor was shut down");
+    }).retry(failed(serverError()), () -> CompletableFuture.completedFuture(null));
+
+    assertThatThrownBy(result::join).hasCauseInstanceOf(TrackingFailedException.class);
+
+  }
+
+  @Test
+  void classifiesFailures() {
+
+    assertThat(RetryScheduler.isRetryable(new ConnectionFailedException(new IOException()))).isTrue();
+    assertThat(RetryScheduler.isRetryable(new TrackingFailedException("", 429, null))).isTrue();
+    assertThat(RetryScheduler.isRetryable(new TrackingFailedException("", 500, null))).isTrue();
+    assertThat(RetryScheduler.isRetryable(new TrackingFailedException("", 404, null))).isFalse();
+    assertThat(RetryScheduler.isPermanent(new TrackingFailedException("", 404, null))).isTrue();
+    assertThat(RetryScheduler.isPermanent(new TrackingFailedException("", 429, null))).isFalse();
+    assertThat(RetryScheduler.isPermanent(new ConnectionFailedException(new IOException()))).isFalse();
+
+  }
+
+  @Test
+  void limitsBackoffWithJitter() {
+
+    trackerConfigurationBuilder.retryInitialBackoff(Duration.ofMillis(100L)).retryMaxBackoff(Duration.ofMillis(300L));
+    RetryScheduler retryScheduler = retryScheduler();
+
+    for (int i = 0; i < 100; i++) {
+      assertThat(retryScheduler.backoff(1, serverError())).isBetween(0L, 100L);
+      assertThat(retryScheduler.backoff(2, serverError())).isBetween(0L, 200L);
+      assertThat(retryScheduler.backoff(10, serverError())).isBetween(0L, 300L);
+    }
+
+  }
+
+  @Test
+  void honoursRetryAfter() {
+
+    long backoff = retryScheduler().backoff(1, new TrackingFailedException("", 429, Duration.ofSeconds(5L)));
+
+    assertThat(backoff).isEqualTo(5000L);
+
+  }
+
+  @Test
+  void parsesRetryAfter() {
+
+    assertThat(RetryScheduler.parseRetryAfter("120")).isEqualTo(Duration.ofSeconds(120L));
+    assertThat(RetryScheduler.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT")).isEqualTo(Duration.ZERO);
+    assertThat(RetryScheduler.parseRetryAfter("soon")).isNull();
+    assertThat(RetryScheduler.parseRetryAfter(null)).isNull();
+
+  }
+
+}
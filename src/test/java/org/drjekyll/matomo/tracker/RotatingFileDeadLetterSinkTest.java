@@ -0,0 +1,61 @@
+package org.drjekyll.matomo.tracker;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RotatingFileDeadLetterSinkTest {
+
+  @TempDir
+  private Path directory;
+
+  @Test
+  void writesQueryWithReason() throws IOException {
+
+    RotatingFileDeadLetterSink sink = new RotatingFileDeadLetterSink(directory, 1024L, 2);
+
+    sink.accept("?idsite=1&action_name=Poison", new TrackingFailedException("Bad\nRequest", 400, null));
+
+    assertThat(Files.readAllLines(directory.resolve("dead-letters.log"), StandardCharsets.UTF_8)).singleElement()
+      .asString()
+      .endsWith("\tTrackingFailedException: Bad Request\t?idsite=1&action_name=Poison");
+
+  }
+
+  @Test
+  void removesTokenAuth() throws IOException {
+
+    RotatingFileDeadLetterSink sink = new RotatingFileDeadLetterSink(directory, 1024L, 2);
+
+    sink.accept("rec=1&idsite=1&token_auth=f123bfc9a46de0bb5453afdab6f93200&action_name=Poison",
+      new ActionRejectedException("Rejected"));
+
+    assertThat(directory.resolve("dead-letters.log")).content().endsWith("\trec=1&idsite=1&action_name=Poison\n")
+      .doesNotContain("token_auth");
+
+  }
+
+  @Test
+  void rotatesFiles() {
+
+    RotatingFileDeadLetterSink sink = new RotatingFileDeadLetterSink(directory, 100L, 2);
+
+    for (int i = 0; i < 5; i++) {
+      sink.accept("?idsite=1&action_name=" + i, new ActionRejectedException("Rejected"));
+    }
+
+    assertThat(directory.resolve("dead-letters.log")).exists();
+    assertThat(directory.resolve("dead-letters.log.1")).exists();
+    assertThat(directory.resolve("dead-letters.log.2")).exists();
+    assertThat(directory.resolve("dead-letters.log.3")).doesNotExist();
+    assertThat(directory.resolve("dead-letters.log")).content().contains("action_name=4");
+
+  }
+
+}
@@ -0,0 +1,631 @@
+package org.drjekyll.matomo.tracker;
+
+import org.drjekyll.matomo.tracker.parameters.VisitorId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SenderTest {
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+  private final TrackerConfiguration.TrackerConfigurationBuilder trackerConfigurationBuilder =
+    TrackerConfiguration.builder().apiEndpoint(URI.create("http://localhost")).defaultSiteId(1).maxQueueSize(2);
+
+  private final PendingHttpSender httpSender = new PendingHttpSender();
+
+  private final List<String> deadLetters = new ArrayList<>();
+
+  private Spool spool;
+
+  private Sender sender;
+
+  @AfterEach
+  void shutDownScheduler() {
+    scheduler.shutdownNow();
+    if (spool != null) {
+      spool.close();
+    }
+  }
+
+  /**
+   * Never flushes, so the queue fills up
+   */
+  private void givenSender() {
+    givenSender(command -> {
+    });
+  }
+
+  private void givenSender(Executor executor) {
+    givenSender(executor, executor);
+  }
+
+  private void givenSender(Executor executor, Executor immediateExecutor) {
+    TrackerConfiguration trackerConfiguration = trackerConfigurationBuilder.build();
+    sender = new Sender(
+      trackerConfiguration,
+      new QueryCreator(trackerConfiguration),
+      httpSender,
+      executor,
+      immediateExecutor,
+      scheduler,
+      spool,
+      (query, reason) -> deadLetters.add(query),
+      new AdaptiveBatching(trackerConfiguration)
+    );
+  }
+
+  private static Action visitor(long hash, String name) {
+    return Action.builder().visitorId(VisitorId.fromHash(hash)).name(name).build();
+  }
+
+  private static Action action(String name) {
+    return Action.builder().name(name).build();
+  }
+
+  @Test
+  void dropsNewestAction() {
+
+    givenSender();
+    CompletableFuture<Void> first = sender.send(action("First"));
+    sender.send(action("Second"));
+
+    CompletableFuture<Void> third = sender.send(action("Third"));
+
+    assertThatThrownBy(third::join).hasCauseInstanceOf(ActionDroppedException.class);
+    assertThat(first).isNotDone();
+    assertThat(sender.getDroppedActions()).isEqualTo(1L);
+
+  }
+
+  @Test
+  void dropsOldestAction() {
+
+    trackerConfigurationBuilder.backpressurePolicy(BackpressurePolicy.DROP_OLDEST);
+    givenSender();
+    CompletableFuture<Void> first = sender.send(action("First"));
+    sender.send(action("Second"));
+
+    CompletableFuture<Void> third = sender.send(action("Third"));
+
+    assertThatThrownBy(first::join).hasCauseInstanceOf(ActionDroppedException.class);
+    assertThat(third).isNotDone();
+    assertThat(sender.getDroppedActions()).isEqualTo(1L);
+
+  }
+
+  @Test
+  void dropsActionWithLowestPriority() {
+
+    trackerConfigurationBuilder.backpressurePolicy(BackpressurePolicy.DROP_BY_PRIORITY);
+    givenSender();
+    CompletableFuture<Void> pageView = sender.send(action("Page"));
+    CompletableFuture<Void> ping = sender.send(Action.builder().ping(true).build());
+
+    CompletableFuture<Void> order = sender.send(Action.builder().goalId("0").ecommerceId("order").build());
+
+    assertThatThrownBy(ping::join).hasCauseInstanceOf(ActionDroppedException.class);
+    assertThat(pageView).isNotDone();
+    assertThat(order).isNotDone();
+
+  }
+
+  @Test
+  void dropsOldestActionWithLowestPriorityOfAllLanes() {
+
+    trackerConfigurationBuilder.backpressurePolicy(BackpressurePolicy.DROP_BY_PRIORITY).lanes(2).maxQueueSize(3);
+    givenSender();
+    CompletableFuture<Void> firstPing =
+      sender.send(Action.builder().visitorId(VisitorId.fromHash(1L)).ping(true).build());
+    CompletableFuture<Void> secondPing =
+      sender.send(Action.builder().visitorId(VisitorId.fromHash(2L)).ping(true).build());
+    CompletableFuture<Void> pageView = sender.send(visitor(3L, "Page"));
+
+    CompletableFuture<Void> order = sender.send(Action.builder().goalId("0").ecommerceId("order").build());
+
+    assertThatThrownBy(firstPing::join).hasCauseInstanceOf(ActionDroppedException.class);
+    assertThat(secondPing).isNotDone();
+    assertThat(pageView).isNotDone();
+    assertThat(order).isNotDone();
+
+  }
+
+  @Test
+  void dropsNewActionWithoutLowerPriority() {
+
+    trackerConfigurationBuilder.backpressurePolicy(BackpressurePolicy.DROP_BY_PRIORITY);
+    givenSender();
+    sender.send(action("First"));
+    sender.send(action("Second"));
+
+    CompletableFuture<Void> ping = sender.send(Action.builder().ping(true).build());
+
+    assertThatThrownBy(ping::join).hasCauseInstanceOf(ActionDroppedException.class);
+
+  }
+
+  @Test
+  void dropsBlockedActionAfterTimeout() {
+
+    trackerConfigurationBuilder.backpressurePolicy(BackpressurePolicy.BLOCK)
+      .backpressureTimeout(Duration.ofMillis(50L));
+    givenSender();
+    sender.send(action("First"));
+    sender.send(action("Second"));
+    long start = System.nanoTime();
+
+    CompletableFuture<Void> third = sender.send(action("Third"));
+
+    assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(Duration.ofMillis(50L).toNanos());
+    assertThatThrownBy(third::join).hasCauseInstanceOf(ActionDroppedException.class);
+
+  }
+
+  @Test
+  void limitsQueueBytes() {
+
+    trackerConfigurationBuilder.maxQueueSize(100).maxQueueBytes(1L);
+    givenSender();
+    sender.send(action("First"));
+
+    CompletableFuture<Void> second = sender.send(action("Second"));
+
+    assertThatThrownBy(second::join).hasCauseInstanceOf(ActionDroppedException.class);
+
+  }
+
+  @Test
+  void keepsSingleBulkRequestInFlightPerLane() {
+
+    trackerConfigurationBuilder.maxQueueSize(100);
+    givenSender(Runnable::run);
+    sender.send(action("First"));
+    sender.send(action("Second"));
+
+    assertThat(httpSender.requests).hasSize(1);
+    httpSender.responses.get(0).complete(BulkResponse.UNKNOWN);
+
+    assertThat(httpSender.requests).hasSize(2);
+    assertThat(httpSender.requests.get(1)).singleElement().asString().contains("action_name=Second");
+
+  }
+
+  @Test
+  void sendsLanesInParallel() {
+
+    trackerConfigurationBuilder.maxQueueSize(100).lanes(16);
+    givenSender(Runnable::run);
+
+    for (long hash = 0L; hash < 100L; hash++) {
+      sender.send(visitor(hash, "Page"));
+    }
+
+    assertThat(httpSender.requests).hasSizeGreaterThan(1).hasSizeLessThanOrEqualTo(16);
+
+  }
+
+  @Test
+  void keepsActionsOfVisitorInOrder() {
+
+    trackerConfigurationBuilder.maxQueueSize(100).lanes(16);
+    givenSender(Runnable::run);
+    CompletableFuture<Void> first = sender.send(visitor(1L, "First"));
+
+    CompletableFuture<Void> second = sender.send(visitor(1L, "Second"));
+
+    assertThat(httpSender.requests).hasSize(1);
+    assertThat(second).isNotDone();
+    httpSender.responses.get(0).complete(BulkResponse.UNKNOWN);
+    assertThat(first).isCompleted();
+    assertThat(httpSender.requests.get(1)).singleElement().asString().contains("action_name=Second");
+
+  }
+
+  @Test
+  void schedulesSingleFlushPerWindow() {
+
+    trackerConfigurationBuilder.maxQueueSize(100);
+    List<Runnable> flushes = new ArrayList<>();
+    givenSender(flushes::add);
+
+    for (int i = 0; i < 10; i++) {
+      sender.send(action("Page"));
+    }
+
+    assertThat(flushes).hasSize(1);
+    flushes.get(0).run();
+    assertThat(httpSender.requests).singleElement().asList().hasSize(10);
+
+  }
+
+  @Test
+  void armsNextFlushAfterFlushing() {
+
+    trackerConfigurationBuilder.maxQueueSize(100);
+    List<Runnable> flushes = new ArrayList<>();
+    givenSender(flushes::add);
+    sender.send(action("First"));
+    flushes.get(0).run();
+    httpSender.responses.get(0).complete(BulkResponse.UNKNOWN);
+
+    sender.send(action("Second"));
+
+    assertThat(flushes).hasSize(2);
+
+  }
+
+  @Test
+  void encodesDeferredActionsWhenFlushed() {
+
+    trackerConfigurationBuilder.maxQueueSize(100).deferredEncoding(true);
+    List<Runnable> flushes = new ArrayList<>();
+    givenSender(flushes::add);
+    sender.send(action("First"));
+    sender.send(action("Second"));
+
+    flushes.get(0).run();
+
+    assertThat(httpSender.requests).singleElement()
+      .asList()
+      .containsExactly("rec=1&idsite=1&action_name=First&send_image=0", "rec=1&idsite=1&action_name=Second&send_image=0");
+
+  }
+
+  @Test
+  void dropsDeferredActionThatCannotBeEncoded() {
+
+    trackerConfigurationBuilder.maxQueueSize(100).deferredEncoding(true);
+    List<Runnable> flushes = new ArrayList<>();
+    givenSender(flushes::add);
+    CompletableFuture<Void> invalid = sender.send(Action.builder().tokenAuth("invalid-token-auth").build());
+    sender.send(action("Valid"));
+
+    flushes.get(0).run();
+
+    assertThatThrownBy(invalid::join).hasCauseInstanceOf(IllegalArgumentException.class);
+    assertThat(httpSender.requests).singleElement().asList().singleElement().asString().contains("action_name=Valid");
+    assertThat(sender.getDroppedActions()).isEqualTo(1L);
+
+  }
+
+  @Test
+  void fillsBatchWithEncodedActionsAfterDroppingInvalidOne() {
+
+    trackerConfigurationBuilder.maxQueueSize(100).maxBatchSize(3).deferredEncoding(true);
+    List<Runnable> flushes = new ArrayList<>();
+    givenSender(flushes::add);
+    CompletableFuture<Void> invalid = sender.send(Action.builder().tokenAuth("invalid-token-auth").build());
+    sender.send(action("A"));
+    sender.send(action("B"));
+    CompletableFuture<Void> c = sender.send(action("C"));
+
+    flushes.get(0).run();
+
+    assertThatThrownBy(invalid::join).hasCauseInstanceOf(IllegalArgumentException.class);
+    assertThat(httpSender.requests).singleElement()
+      .asList()
+      .hasSize(3)
+      .doesNotContainNull()
+      .last()
+      .asString()
+      .contains("action_name=C");
+    assertThat(c).isNotDone();
+
+  }
+
+  @Test
+  void rejectsInvalidActions() {
+
+    trackerConfigurationBuilder.maxQueueSize(100);
+    List<Runnable> flushes = new ArrayList<>();
+    givenSender(flushes::add);
+    CompletableFuture<Void> first = sender.send(action("First"));
+    CompletableFuture<Void> second = sender.send(action("Second"));
+    flushes.get(0).run();
+
+    byte[] body = "{\"status\":\"success\",\"tracked\":1,\"invalid\":1,\"invalid_indices\":[1]}".getBytes(
+      StandardCharsets.UTF_8);
+    httpSender.responses.get(0).complete(BulkResponse.parse(body, body.length));
+
+    assertThat(first).isCompleted();
+    assertThatThrownBy(second::join).hasCauseInstanceOf(ActionRejectedException.class);
+
+  }
+
+  @Test
+  void failsActionsIfInvalidIndicesAreUnknown() {
+
+    trackerConfigurationBuilder.maxQueueSize(100);
+    List<Runnable> flushes = new ArrayList<>();
+    givenSender(flushes::add);
+    CompletableFuture<Void> first = sender.send(action("First"));
+    CompletableFuture<Void> second = sender.send(action("Second"));
+    flushes.get(0).run();
+
+    byte[] body = "{\"status\":\"success\",\"tracked\":1,\"invalid\":1}".getBytes(StandardCharsets.UTF_8);
+    httpSender.responses.get(0).complete(BulkResponse.parse(body, body.length));
+
+    assertThatThrownBy(first::join).hasCauseInstanceOf(ActionPossiblyRejectedException.class);
+    assertThatThrownBy(second::join).hasCauseInstanceOf(ActionPossiblyRejectedException.class);
+    assertThat(httpSender.requests).hasSize(1);
+    assertThat(deadLetters).isEmpty();
+
+  }
+
+  @Test
+  void rejectsAllActionsIfNoneWasTracked() {
+
+    trackerConfigurationBuilder.maxQueueSize(100);
+    List<Runnable> flushes = new ArrayList<>();
+    givenSender(flushes::add);
+    CompletableFuture<Void> first = sender.send(action("First"));
+    CompletableFuture<Void> second = sender.send(action("Second"));
+    flushes.get(0).run();
+
+    byte[] body = "{\"status\":\"success\",\"tracked\":0,\"invalid\":2}".getBytes(StandardCharsets.UTF_8);
+    httpSender.responses.get(0).complete(BulkResponse.parse(body, body.length));
+
+    assertThatThrownBy(first::join).hasCauseInstanceOf(ActionRejectedException.class);
+    assertThatThrownBy(second::join).hasCauseInstanceOf(ActionRejectedException.class);
+    assertThat(deadLetters).hasSize(2);
+
+  }
+
+  @Test
+  void isolatesRejectedActionByBisection() {
+
+    trackerConfigurationBuilder.maxQueueSize(100).defaultTokenAuth("f123bfc9a46de0bb5453afdab6f93200");
+    List<Runnable> flushes = new ArrayList<>();
+    givenSender(flushes::add);
+    List<CompletableFuture<Void>> futures = new ArrayList<>();
+    for (String name : new String[]{"First", "Second", "Poison", "Fourth"}) {
+      futures.add(sender.send(action(name)));
+    }
+    flushes.get(0).run();
+
+    rejectRequest(0);
+    httpSender.responses.get(1).complete(BulkResponse.UNKNOWN);
+    rejectRequest(2);
+    rejectRequest(3);
+    httpSender.responses.get(4).complete(BulkResponse.UNKNOWN);
+
+    assertThat(httpSender.requests).extracting(Collection::size).containsExactly(4, 2, 2, 1, 1);
+    assertThat(futures.get(0)).isCompleted();
+    assertThat(futures.get(1)).isCompleted();
+    assertThatThrownBy(futures.get(2)::join).hasCauseInstanceOf(TrackingFailedException.class);
+    assertThat(futures.get(3)).isCompleted();
+    assertThat(deadLetters).singleElement().asString().contains("action_name=Poison").doesNotContain("token_auth");
+
+  }
+
+  @Test
+  void doesNotBisectUnauthorizedBulkRequest() {
+
+    trackerConfigurationBuilder.maxQueueSize(100);
+    List<Runnable> flushes = new ArrayList<>();
+    givenSender(flushes::add);
+    CompletableFuture<Void> first = sender.send(action("First"));
+    sender.send(action("Second"));
+    flushes.get(0).run();
+
+    httpSender.responses.get(0).completeExceptionally(new TrackingFailedException("Unauthorized", 401, null));
+
+    assertThat(httpSender.requests).hasSize(1);
+    assertThatThrownBy(first::join).hasCauseInstanceOf(TrackingFailedException.class);
+    assertThat(deadLetters).hasSize(2);
+
+  }
+
+  @Test
+  void sendsHighPriorityActionsWithoutDelay() {
+
+    trackerConfigurationBuilder.maxQueueSize(100).priorityLanes(true);
+    List<Runnable> delayedFlushes = new ArrayList<>();
+    givenSender(delayedFlushes::add, Runnable::run);
+    sender.send(action("Page"));
+
+    sender.send(Action.builder().goalId("1").revenue(9.99).build());
+
+    assertThat(httpSender.requests).singleElement().asList().singleElement().asString().contains("idgoal=1");
+    assertThat(delayedFlushes).hasSize(1);
+
+  }
+
+  @Test
+  void sendsExplicitPriority() {
+
+    trackerConfigurationBuilder.maxQueueSize(100).priorityLanes(true);
+    givenSender(command -> {
+    }, Runnable::run);
+
+    sender.send(Action.builder().name("Checkout").priority(ActionPriority.HIGH).build());
+
+    assertThat(httpSender.requests).singleElement().asList().singleElement().asString().contains("action_name=Checkout");
+
+  }
+
+  @Test
+  void limitsQueueOfPriority() {
+
+    trackerConfigurationBuilder.maxQueueSize(100).priorityLanes(true).priorityMaxQueueSize(ActionPriority.LOW, 1);
+    givenSender();
+    sender.send(Action.builder().ping(true).build());
+
+    CompletableFuture<Void> ping = sender.send(Action.builder().ping(true).build());
+    CompletableFuture<Void> pageView = sender.send(action("Page"));
+
+    assertThatThrownBy(ping::join).hasCauseInstanceOf(ActionDroppedException.class);
+    assertThat(pageView).isNotDone();
+
+  }
+
+  @Test
+  void appliesBackpressurePolicyOfPriority() {
+
+    trackerConfigurationBuilder.priorityLanes(true)
+      .priorityBackpressurePolicy(ActionPriority.HIGH, BackpressurePolicy.DROP_BY_PRIORITY);
+    givenSender();
+    CompletableFuture<Void> first = sender.send(action("First"));
+    sender.send(action("Second"));
+
+    CompletableFuture<Void> order = sender.send(Action.builder().ecommerceId("order").build());
+
+    assertThatThrownBy(first::join).hasCauseInstanceOf(ActionDroppedException.class);
+    assertThat(order).isNotDone();
+
+  }
+
+  @Test
+  void handsBatchInFlightOverToFallback() {
+
+    trackerConfigurationBuilder.maxQueueSize(100);
+    givenSender(Runnable::run);
+    CompletableFuture<Void> inFlight = sender.send(action("First"));
+    CompletableFuture<Void> queued = sender.send(action("Second"));
+
+    sender.abandon(ShutdownFallback.DROP);
+
+    assertThatThrownBy(inFlight::join).hasCauseInstanceOf(ActionDroppedException.class);
+    assertThatThrownBy(queued::join).hasCauseInstanceOf(ActionDroppedException.class);
+    assertThat(sender.getDroppedActions()).isEqualTo(2L);
+    assertThat(sender.awaitSent(System.nanoTime())).isTrue();
+
+  }
+
+  @Test
+  void keepsFutureOfFailedActionPendingUntilItWasSent() {
+
+    List<Runnable> flushes = new ArrayList<>();
+    givenSender(flushes::add);
+    CompletableFuture<Void> first = sender.send(action("First"));
+    flushes.get(0).run();
+
+    httpSender.responses.get(0).completeExceptionally(new TrackingFailedException("Unavailable", 503, null));
+
+    assertThat(first).isNotDone();
+    flushes.get(1).run();
+    httpSender.responses.get(1).complete(BulkResponse.UNKNOWN);
+    assertThat(first).isCompleted();
+    assertThat(httpSender.requests).hasSize(2);
+
+  }
+
+  @Test
+  void sendsKeptActionsWhenCircuitBreakerLetsProbeThrough() throws Exception {
+
+    trackerConfigurationBuilder.circuitBreaker(true)
+      .circuitBreakerWindowSize(1)
+      .circuitBreakerOpenDuration(Duration.ofMillis(50L));
+    givenSender(Runnable::run);
+    CompletableFuture<Void> first = sender.send(action("First"));
+
+    httpSender.responses.get(0).completeExceptionally(new TrackingFailedException("Unavailable", 503, null));
+
+    assertThat(first).isNotDone();
+    assertThat(httpSender.requests).hasSize(1);
+    Thread.sleep(500L);
+    assertThat(httpSender.requests).hasSize(2);
+    httpSender.responses.get(1).complete(BulkResponse.UNKNOWN);
+    assertThat(first).isCompleted();
+
+  }
+
+  @Test
+  void replaysSpooledQueryInFlightAfterRestart(@TempDir Path spoolDirectory) {
+
+    trackerConfigurationBuilder.spoolDirectory(spoolDirectory);
+    spool = Spool.open(trackerConfigurationBuilder.build(), spoolDirectory);
+    spool.append(Collections.singletonList("rec=1&idsite=1"));
+    givenSender(Runnable::run);
+    sender.replay();
+
+    sender.close();
+
+    assertThat(httpSender.requests).containsExactly(Collections.singletonList("rec=1&idsite=1"));
+    spool = Spool.open(trackerConfigurationBuilder.build(), spoolDirectory);
+    assertThat(spool.size()).isEqualTo(1L);
+
+  }
+
+  @Test
+  void removesSpooledQueryAfterItWasSent(@TempDir Path spoolDirectory) {
+
+    trackerConfigurationBuilder.spoolDirectory(spoolDirectory);
+    spool = Spool.open(trackerConfigurationBuilder.build(), spoolDirectory);
+    spool.append(Collections.singletonList("rec=1&idsite=1"));
+    givenSender(Runnable::run);
+    sender.replay();
+
+    httpSender.responses.get(0).complete(BulkResponse.UNKNOWN);
+
+    sender.close();
+    spool = Spool.open(trackerConfigurationBuilder.build(), spoolDirectory);
+    assertThat(spool.isEmpty()).isTrue();
+
+  }
+
+  @Test
+  void requeuesFailedSpooledQueriesAtHeadOfSpool(@TempDir Path spoolDirectory) {
+
+    trackerConfigurationBuilder.spoolDirectory(spoolDirectory).maxBatchSize(1);
+    spool = Spool.open(trackerConfigurationBuilder.build(), spoolDirectory);
+    spool.append(Arrays.asList("rec=1&idsite=1", "rec=1&idsite=2"));
+    givenSender(command -> {
+    }, Runnable::run);
+    sender.replay();
+
+    httpSender.responses.get(0).completeExceptionally(new TrackingFailedException("Unavailable", 503, null));
+
+    assertThat(spool.poll(10, Long.MAX_VALUE)).extracting(Spool.PolledRecord::getQuery)
+      .containsExactly("rec=1&idsite=1", "rec=1&idsite=2");
+
+  }
+
+  private void rejectRequest(int index) {
+    httpSender.responses.get(index).completeExceptionally(new TrackingFailedException("Bad Request", 400, null));
+  }
+
+  private static final class PendingHttpSender implements HttpSender {
+
+    private final List<Collection<String>> requests = new ArrayList<>();
+
+    private final List<CompletableFuture<BulkResponse>> responses = new ArrayList<>();
+
+    @Override
+    public CompletableFuture<BulkResponse> send(Collection<String> queries) {
+      CompletableFuture<BulkResponse> response = new CompletableFuture<>();
+      requests.add(new ArrayList<>(queries));
+      responses.add(response);
+      return response;
+    }
+
+    @Override
+    public void warmUp() {
+      // nothing to warm up
+    }
+
+    @Override
+    public boolean probe() {
+      return true;
+    }
+
+  }
+
+}
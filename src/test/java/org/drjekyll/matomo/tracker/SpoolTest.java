@@ -0,0 +1,175 @@
+package org.drjekyll.matomo.tracker;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SpoolTest {
+
+  @TempDir
+  Path directory;
+
+  private final TrackerConfiguration.TrackerConfigurationBuilder trackerConfigurationBuilder =
+    TrackerConfiguration.builder().apiEndpoint(URI.create("http://localhost"));
+
+  private Spool openSpool() {
+    return Spool.open(trackerConfigurationBuilder.build(), directory);
+  }
+
+  private static List<String> poll(Spool spool, int maxCount, long maxBytes) {
+    return spool.poll(maxCount, maxBytes).stream().map(Spool.PolledRecord::getQuery).collect(Collectors.toList());
+  }
+
+  @Test
+  void pollsInAppendOrder() {
+
+    Spool spool = openSpool();
+    spool.append(Arrays.asList("rec=1&idsite=1", "rec=1&idsite=2"));
+    spool.append(Collections.singletonList("rec=1&idsite=3"));
+
+    List<String> polled = poll(spool, 10, Long.MAX_VALUE);
+
+    assertThat(polled).containsExactly("rec=1&idsite=1", "rec=1&idsite=2", "rec=1&idsite=3");
+    assertThat(spool.isEmpty()).isTrue();
+
+  }
+
+  @Test
+  void limitsPolledQueries() {
+
+    Spool spool = openSpool();
+    spool.append(Arrays.asList("rec=1&idsite=1", "rec=1&idsite=2", "rec=1&idsite=3"));
+
+    assertThat(spool.poll(2, Long.MAX_VALUE)).hasSize(2);
+    assertThat(poll(spool, 10, 1L)).containsExactly("rec=1&idsite=3");
+
+  }
+
+  @Test
+  void replaysUnacknowledgedQueriesAfterRestart() {
+
+    Spool spool = openSpool();
+    spool.append(Arrays.asList("rec=1&idsite=1", "rec=1&idsite=2", "rec=1&idsite=3"));
+    spool.acknowledge(spool.poll(1, Long.MAX_VALUE));
+    spool.poll(1, Long.MAX_VALUE);
+    spool.close();
+
+    Spool reopened = openSpool();
+
+    assertThat(reopened.size()).isEqualTo(2L);
+    assertThat(poll(reopened, 10, Long.MAX_VALUE)).containsExactly("rec=1&idsite=2", "rec=1&idsite=3");
+
+  }
+
+  @Test
+  void pollsRequeuedQueriesFirst() {
+
+    Spool spool = openSpool();
+    spool.append(Arrays.asList("rec=1&idsite=1", "rec=1&idsite=2", "rec=1&idsite=3"));
+    List<Spool.PolledRecord> unsent = spool.poll(2, Long.MAX_VALUE);
+
+    spool.requeue(unsent);
+
+    assertThat(spool.size()).isEqualTo(3L);
+    assertThat(poll(spool, 10, Long.MAX_VALUE)).containsExactly("rec=1&idsite=1", "rec=1&idsite=2", "rec=1&idsite=3");
+
+  }
+
+  @Test
+  void refusesDirectoryUsedByAnotherSpool() {
+
+    Spool spool = openSpool();
+
+    assertThatThrownBy(this::openSpool).isInstanceOf(UncheckedIOException.class)
+      .hasRootCauseMessage("Spool directory is used by another tracker");
+
+    spool.close();
+    assertThat(openSpool().isEmpty()).isTrue();
+
+  }
+
+  @Test
+  void rotatesAndDeletesReadSegments() throws Exception {
+
+    trackerConfigurationBuilder.spoolSegmentSize(64);
+    Spool spool = openSpool();
+    spool.append(queries(10));
+
+    assertThat(segmentFiles()).hasSizeGreaterThan(1);
+    List<Spool.PolledRecord> polled = spool.poll(100, Long.MAX_VALUE);
+    assertThat(segmentFiles()).hasSizeGreaterThan(1);
+    spool.acknowledge(polled);
+    assertThat(segmentFiles()).hasSize(1);
+    assertThat(polled).extracting(Spool.PolledRecord::getQuery).isEqualTo(queries(10));
+
+  }
+
+  private static List<String> queries(int count) {
+    return IntStream.range(0, count).mapToObj(i -> "rec=1&idsite=" + i).collect(Collectors.toList());
+  }
+
+  private List<Path> segmentFiles() throws Exception {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.filter(file -> file.toString().endsWith(".spool")).collect(Collectors.toList());
+    }
+  }
+
+  @Test
+  void dropsOldestSegmentIfMaxSizeIsExceeded() {
+
+    trackerConfigurationBuilder.spoolSegmentSize(64).spoolMaxSize(128L);
+    Spool spool = openSpool();
+
+    spool.append(queries(10));
+
+    List<String> polled = poll(spool, 100, Long.MAX_VALUE);
+    assertThat(polled).hasSizeLessThan(10).endsWith("rec=1&idsite=9");
+
+  }
+
+  @Test
+  void ignoresCorruptRecords() throws Exception {
+
+    Spool spool = openSpool();
+    spool.append(Arrays.asList("rec=1&idsite=1", "rec=1&idsite=2"));
+    try (RandomAccessFile file = new RandomAccessFile(segmentFiles().get(0).toFile(), "rw")) {
+      file.seek(22L + 8L + 3L);
+      file.write('X');
+    }
+    spool.close();
+
+    Spool reopened = openSpool();
+
+    assertThat(poll(reopened, 10, Long.MAX_VALUE)).containsExactly("rec=1&idsite=1");
+
+  }
+
+  @Test
+  void appendsAfterReplay() {
+
+    Spool spool = openSpool();
+    spool.append(Collections.singletonList("rec=1&idsite=1"));
+    spool.close();
+
+    Spool reopened = openSpool();
+    reopened.append(Collections.singletonList("rec=1&idsite=2"));
+
+    assertThat(poll(reopened, 10, Long.MAX_VALUE)).containsExactly("rec=1&idsite=1", "rec=1&idsite=2");
+
+  }
+
+}
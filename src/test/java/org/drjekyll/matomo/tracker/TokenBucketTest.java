@@ -0,0 +1,67 @@
+package org.drjekyll.matomo.tracker;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TokenBucketTest {
+
+  private long now = Long.MAX_VALUE - 500_000_000L;
+
+  private final TokenBucket tokenBucket = new TokenBucket(10.0, 5.0, () -> now);
+
+  @Test
+  void allowsBurstUpToCapacity() {
+
+    for (int i = 0; i < 5; i++) {
+      assertThat(tokenBucket.reserve(now, 0L)).isZero();
+    }
+
+    assertThat(tokenBucket.reserve(now, 0L)).isEqualTo(-1L);
+    assertThat(tokenBucket.getFillLevel()).isZero();
+
+  }
+
+  @Test
+  void reservesFutureToken() {
+
+    for (int i = 0; i < 5; i++) {
+      tokenBucket.reserve(now, 0L);
+    }
+
+    long wait = tokenBucket.reserve(now, 1_000_000_000L);
+
+    assertThat(wait).isEqualTo(100_000_000L);
+
+  }
+
+  @Test
+  void refillsOverTime() {
+
+    for (int i = 0; i < 5; i++) {
+      tokenBucket.reserve(now, 0L);
+    }
+
+    now += 200_000_000L;
+
+    assertThat(tokenBucket.getFillLevel()).isEqualTo(0.4);
+    assertThat(tokenBucket.reserve(now, 0L)).isZero();
+    assertThat(tokenBucket.reserve(now, 0L)).isZero();
+    assertThat(tokenBucket.reserve(now, 0L)).isEqualTo(-1L);
+
+  }
+
+  @Test
+  void returnsReleasedToken() {
+
+    for (int i = 0; i < 5; i++) {
+      tokenBucket.reserve(now, 0L);
+    }
+
+    tokenBucket.release();
+
+    assertThat(tokenBucket.reserve(now, 0L)).isZero();
+
+  }
+
+}